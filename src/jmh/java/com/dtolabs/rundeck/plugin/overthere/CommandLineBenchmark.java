@@ -0,0 +1,57 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import com.xebialabs.overthere.OperatingSystemFamily;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the command line for a command with many arguments.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandLineBenchmark {
+    @Param({"10", "100", "1000"})
+    public int argumentCount;
+
+    private String[] command;
+
+    @Setup
+    public void setup() {
+        command = new String[argumentCount];
+        command[0] = "Write-Output";
+        for (int i = 1; i < argumentCount; i++) {
+            command[i] = i % 4 == 0 ? "\"quoted argument " + i + "\"" : "argument-" + i;
+        }
+    }
+
+    @Benchmark
+    public void raw(final Blackhole blackhole) {
+        blackhole.consume(OTWinRMNodeExecutor.buildCmdLineRaw(command).toCommandLine(OperatingSystemFamily.WINDOWS, false));
+    }
+
+    @Benchmark
+    public void powershell(final Blackhole blackhole) {
+        blackhole.consume(OTWinRMNodeExecutor.buildCmdLinePowershell(command).toCommandLine(OperatingSystemFamily.WINDOWS, false));
+    }
+
+    @Benchmark
+    public void powershellEncoded(final Blackhole blackhole) {
+        blackhole.consume(EncodedPowerShellCommand.of(command).getCommandLine());
+    }
+}
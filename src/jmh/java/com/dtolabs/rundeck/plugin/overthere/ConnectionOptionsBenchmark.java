@@ -0,0 +1,92 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import com.dtolabs.rundeck.core.common.INodeEntry;
+import com.dtolabs.rundeck.core.common.NodeEntryImpl;
+import com.dtolabs.rundeck.core.execution.ExecutionContext;
+import com.dtolabs.rundeck.core.execution.ExecutionContextImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolving the connection options for many nodes, as done for every node of every step.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConnectionOptionsBenchmark {
+    @Param({"1000", "10000"})
+    public int nodeCount;
+
+    private List<INodeEntry> nodes;
+    private ExecutionContext context;
+    private ProjectConfig config;
+
+    @Setup
+    public void setup() {
+        nodes = new ArrayList<INodeEntry>(nodeCount);
+        for (int i = 0; i < nodeCount; i++) {
+            NodeEntryImpl node = new NodeEntryImpl("win" + i + ".example.com", "win" + i);
+            node.setUsername(i % 2 == 0 ? "rundeck" : "rundeck@example.com");
+            node.getAttributes().put(OTWinRMPlugin.WINRM_PROTOCOL, i % 3 == 0 ? "http" : "https");
+            node.getAttributes().put(OTWinRMPlugin.WINRM_IS_DOMAIN_MEMBER, "true");
+            nodes.add(node);
+        }
+
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put(OTWinRMPlugin.WINRM_AUTH_TYPE, OTWinRMPlugin.AUTH_TYPE_KERBEROS);
+        properties.put(OTWinRMPlugin.WINRM_CERT_TRUST, OTWinRMPlugin.CERT_TRUST_ALL);
+        properties.put(OTWinRMPlugin.WINRM_CONNECTION_TIMEOUT_PROPERTY, "30000");
+        config = ProjectConfig.of(properties);
+
+        Map<String, Map<String, String>> privateData = new HashMap<String, Map<String, String>>();
+        Map<String, String> options = new HashMap<String, String>();
+        options.put(OTWinRMPlugin.DEFAULT_WINRM_PASSWORD_OPTION, "secret");
+        privateData.put("option", options);
+        context = ExecutionContextImpl.builder()
+                .frameworkProject("benchmark")
+                .privateDataContext(privateData)
+                .build();
+    }
+
+    @Benchmark
+    public void buildOptions(final Blackhole blackhole) throws Exception {
+        for (INodeEntry node : nodes) {
+            blackhole.consume(new OTWinRMPlugin.ConnectionOptionsBuilder(context, node, null, config).build());
+        }
+    }
+
+    @Benchmark
+    public void resolveProperty(final Blackhole blackhole) {
+        for (INodeEntry node : nodes) {
+            blackhole.consume(config.resolve(node, OTWinRMPlugin.WINRM_PROTOCOL, OTWinRMPlugin.DEFAULT_WINRM_PROTOCOL));
+            blackhole.consume(config.resolve(node, OTWinRMPlugin.WINRM_LOCALE, null));
+        }
+    }
+
+    @Benchmark
+    public void kerberosUsername(final Blackhole blackhole) throws Exception {
+        for (INodeEntry node : nodes) {
+            blackhole.consume(OTWinRMPlugin.ConnectionOptionsBuilder.getKerberosUsername(
+                    new OTWinRMPlugin.ConnectionOptionsBuilder(context, node, null, config)));
+        }
+    }
+}
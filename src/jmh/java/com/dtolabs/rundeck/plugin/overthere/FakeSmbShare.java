@@ -0,0 +1,204 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import com.xebialabs.overthere.ConnectionOptions;
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.OverthereFile;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in for the SMB share the file copier writes to in its default mode, for comparing it with the WinRM
+ * file transfer against a {@link FakeWinRMServer} with the same latency. SMB is not spoken over the network: the load
+ * test opens connections to this share instead of SMB connections, and each SMB2 request the copy would send costs
+ * one round trip of the configured latency. Opening a connection is negotiate, two NTLM session setups and a tree
+ * connect, writing a file is a create, one write per write size and a close, and closing a connection is a tree
+ * disconnect and a logoff.
+ *
+ * Only the round trips are modelled: the bytes are counted but not sent, so the results leave out the transfer time
+ * of the data itself, which the WinRM transfer pays over the loopback connection after base64 encoding.
+ */
+public class FakeSmbShare {
+    static final int CONNECT_REQUESTS = 4;
+    static final int DISCONNECT_REQUESTS = 2;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong openConnections = new AtomicLong();
+
+    private volatile long latency;
+    private volatile int writeSize = 64 * 1024;
+
+    /**
+     * @param latency milliseconds of every SMB2 request
+     */
+    public FakeSmbShare setLatency(final long latency) {
+        this.latency = latency;
+        return this;
+    }
+
+    /**
+     * @param writeSize maximum number of bytes of one SMB2 write, 65536 for SMB 2.0.2
+     */
+    public FakeSmbShare setWriteSize(final int writeSize) {
+        this.writeSize = writeSize;
+        return this;
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @return number of file bytes written to the share
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public long getOpenConnectionCount() {
+        return openConnections.get();
+    }
+
+    private void request() {
+        requests.incrementAndGet();
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Open a connection to the share, as the SMB connection builder would
+     *
+     * @param options connection options
+     */
+    public OverthereConnection connect(final ConnectionOptions options) {
+        for (int i = 0; i < CONNECT_REQUESTS; i++) {
+            request();
+        }
+        openConnections.incrementAndGet();
+        return (OverthereConnection) Proxy.newProxyInstance(
+                OverthereConnection.class.getClassLoader(),
+                new Class[]{OverthereConnection.class},
+                new InvocationHandler() {
+                    private boolean closed;
+
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        final String name = method.getName();
+                        if ("getFile".equals(name)) {
+                            return file((String) args[0]);
+                        }
+                        if ("getTempFile".equals(name)) {
+                            return file(OTWinRMPlugin.DEFAULT_TEMP_DIRECTORY + "\\" + args[0] + "-"
+                                    + System.nanoTime() + (args.length > 1 ? args[1] : ".tmp"));
+                        }
+                        if ("getOptions".equals(name)) {
+                            return options;
+                        }
+                        if ("canStartProcess".equals(name)) {
+                            return false;
+                        }
+                        if ("close".equals(name)) {
+                            synchronized (this) {
+                                if (!closed) {
+                                    closed = true;
+                                    for (int i = 0; i < DISCONNECT_REQUESTS; i++) {
+                                        request();
+                                    }
+                                    openConnections.decrementAndGet();
+                                }
+                            }
+                            return null;
+                        }
+                        if ("toString".equals(name)) {
+                            return "smb://fake-share";
+                        }
+                        throw new UnsupportedOperationException(name);
+                    }
+                }
+        );
+    }
+
+    private OverthereFile file(final String path) {
+        return (OverthereFile) Proxy.newProxyInstance(
+                OverthereFile.class.getClassLoader(),
+                new Class[]{OverthereFile.class},
+                new InvocationHandler() {
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        final String name = method.getName();
+                        if ("getPath".equals(name) || "toString".equals(name)) {
+                            return path;
+                        }
+                        if ("getName".equals(name)) {
+                            return path.substring(path.lastIndexOf('\\') + 1);
+                        }
+                        if ("exists".equals(name)) {
+                            request();
+                            return true;
+                        }
+                        if ("getOutputStream".equals(name)) {
+                            request();
+                            return new WriteStream();
+                        }
+                        if ("delete".equals(name)) {
+                            request();
+                            return null;
+                        }
+                        throw new UnsupportedOperationException(name);
+                    }
+                }
+        );
+    }
+
+    /**
+     * Output stream of an open file, sends a write request for every write size of bytes, and a close request
+     */
+    private final class WriteStream extends OutputStream {
+        private int buffered;
+        private boolean closed;
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            int remaining = len;
+            while (remaining > 0) {
+                final int length = Math.min(remaining, writeSize - buffered);
+                buffered += length;
+                remaining -= length;
+                if (buffered == writeSize) {
+                    send();
+                }
+            }
+        }
+
+        private void send() {
+            request();
+            bytesReceived.addAndGet(buffered);
+            buffered = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (buffered > 0) {
+                send();
+            }
+            request();
+        }
+    }
+}
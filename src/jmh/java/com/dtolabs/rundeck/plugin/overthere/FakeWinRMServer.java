@@ -0,0 +1,466 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.codec.binary.Base64;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Local stand-in for a WinRM endpoint, for running the node executor and file copier without a Windows host. Speaks
+ * enough WS-Management over HTTP with Basic authentication for Overthere: Create, Command, Send, Receive, Signal and
+ * Delete of cmd shells.
+ *
+ * Commands print a configurable amount of output and exit with a configurable code, after a configurable latency
+ * which is added to every request. Commands which read stdin are understood as well: "cmd /Q" and the PowerShell
+ * host loop used for shell reuse, long encoded commands sent through stdin, and the PowerShell receiver used to copy
+ * files over WinRM, which counts the bytes received and reports them as a real receiver does. SMB is not simulated
+ * here, copies in the default mode go to a {@link FakeSmbShare}.
+ */
+public class FakeWinRMServer {
+    private static final String SHELL_NS = "http://schemas.microsoft.com/wbem/wsman/1/windows/shell";
+    private static final String DONE_STATE = SHELL_NS + "/CommandState/Done";
+    private static final String RUNNING_STATE = SHELL_NS + "/CommandState/Running";
+    private static final long RECEIVE_WAIT = 200;
+    private static final Pattern ACTION = Pattern.compile("Action[^>]*>\\s*([^<\\s]+)\\s*<");
+    private static final Pattern SHELL_ID = Pattern.compile("Name=\"ShellId\"[^>]*>([^<]+)<");
+    private static final Pattern COMMAND_ID = Pattern.compile("CommandId=\"([^\"]+)\"");
+    private static final Pattern COMMAND = Pattern.compile("<(?:\\w+:)?Command>([^<]*)</");
+    private static final Pattern ARGUMENTS = Pattern.compile("<(?:\\w+:)?Arguments>([^<]*)</");
+    private static final Pattern STDIN = Pattern.compile("<(?:\\w+:)?Stream[^>]*Name=\"stdin\"[^>]*>([^<]*)</");
+    private static final Pattern ENCODED = Pattern.compile("-EncodedCommand\\s+(\\S+)");
+    private static final Pattern HOST_MARKER = Pattern.compile("\\$m = '([^']+)'");
+    private static final String RECEIVER_SIGN = "$f.Write($b, 0, $b.Length)";
+    private static final String HOST_LOOP_SIGN = "[ScriptBlock]::Create";
+    private static final String LOADER_SIGN = "$sb.Append($l)";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ConcurrentMap<String, Shell> shells = new ConcurrentHashMap<String, Shell>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong commands = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    private volatile long latency;
+    private volatile int outputBytes = 100;
+    private volatile int exitCode;
+    private volatile int receiveChunk = 64 * 1024;
+
+    /**
+     * Create a server listening on a free local port, call {@link #start()} to start it
+     */
+    public FakeWinRMServer() throws IOException {
+        this(0);
+    }
+
+    public FakeWinRMServer(final int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        executor = Executors.newCachedThreadPool(WinRMScheduler.daemonThreadFactory("fake-winrm"));
+        server.setExecutor(executor);
+        server.createContext("/wsman", new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                FakeWinRMServer.this.handle(exchange);
+            }
+        });
+    }
+
+    public FakeWinRMServer start() {
+        server.start();
+        return this;
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @param latency milliseconds added to every request
+     */
+    public FakeWinRMServer setLatency(final long latency) {
+        this.latency = latency;
+        return this;
+    }
+
+    /**
+     * @param outputBytes number of bytes of stdout printed by each command
+     */
+    public FakeWinRMServer setOutputBytes(final int outputBytes) {
+        this.outputBytes = outputBytes;
+        return this;
+    }
+
+    /**
+     * @param exitCode exit code of each command
+     */
+    public FakeWinRMServer setExitCode(final int exitCode) {
+        this.exitCode = exitCode;
+        return this;
+    }
+
+    /**
+     * @param receiveChunk maximum number of output bytes returned by one Receive
+     */
+    public FakeWinRMServer setReceiveChunk(final int receiveChunk) {
+        this.receiveChunk = receiveChunk;
+        return this;
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    public long getCommandCount() {
+        return commands.get();
+    }
+
+    /**
+     * @return number of file bytes received by file receivers
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public int getOpenShellCount() {
+        return shells.size();
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        try {
+            if (null == exchange.getRequestHeaders().getFirst("Authorization")) {
+                exchange.getResponseHeaders().add("WWW-Authenticate", "Basic realm=\"WSMAN\"");
+                exchange.sendResponseHeaders(401, -1);
+                return;
+            }
+            requests.incrementAndGet();
+            final String request = read(exchange.getRequestBody());
+            if (latency > 0) {
+                Thread.sleep(latency);
+            }
+            final String body = dispatch(request);
+            if (null == body) {
+                exchange.sendResponseHeaders(500, -1);
+                return;
+            }
+            final byte[] response = envelope(body).getBytes("UTF-8");
+            exchange.getResponseHeaders().add("Content-Type", "application/soap+xml;charset=UTF-8");
+            exchange.sendResponseHeaders(200, response.length);
+            final OutputStream out = exchange.getResponseBody();
+            out.write(response);
+            out.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private String dispatch(final String request) throws InterruptedException {
+        final String action = find(ACTION, request);
+        if (null == action) {
+            return null;
+        }
+        if (action.endsWith("/transfer/Create")) {
+            final Shell shell = new Shell(UUID.randomUUID().toString().toUpperCase());
+            shells.put(shell.id, shell);
+            return "<x:ResourceCreated><a:Address>http://127.0.0.1:" + getPort() + "/wsman</a:Address>"
+                    + "<a:ReferenceParameters><w:ResourceURI>" + SHELL_NS + "/cmd</w:ResourceURI>"
+                    + "<w:SelectorSet><w:Selector Name=\"ShellId\">" + shell.id + "</w:Selector></w:SelectorSet>"
+                    + "</a:ReferenceParameters></x:ResourceCreated>"
+                    + "<rsp:Shell><rsp:ShellId>" + shell.id + "</rsp:ShellId></rsp:Shell>";
+        }
+        if (action.endsWith("/transfer/Delete")) {
+            shells.remove(find(SHELL_ID, request));
+            return "";
+        }
+        final Shell shell = shells.get(find(SHELL_ID, request));
+        if (null == shell) {
+            return null;
+        }
+        if (action.endsWith("/shell/Command")) {
+            commands.incrementAndGet();
+            final Command command = new Command(UUID.randomUUID().toString().toUpperCase(),
+                    unescape(find(COMMAND, request)) + " " + unescape(allArguments(request)));
+            shell.commands.put(command.id, command);
+            command.begin();
+            return "<rsp:CommandResponse><rsp:CommandId>" + command.id + "</rsp:CommandId></rsp:CommandResponse>";
+        }
+        final Command command = shell.commands.get(find(COMMAND_ID, request));
+        if (null == command) {
+            return null;
+        }
+        if (action.endsWith("/shell/Send")) {
+            final String data = find(STDIN, request);
+            if (null != data && data.length() > 0) {
+                command.input(Base64.decodeBase64(data));
+            }
+            return "<rsp:SendResponse/>";
+        }
+        if (action.endsWith("/shell/Receive")) {
+            return command.receive();
+        }
+        if (action.endsWith("/shell/Signal")) {
+            command.terminate();
+            shell.commands.remove(command.id);
+            return "<rsp:SignalResponse/>";
+        }
+        return null;
+    }
+
+    private static String allArguments(final String request) {
+        final StringBuilder sb = new StringBuilder();
+        final Matcher matcher = ARGUMENTS.matcher(request);
+        while (matcher.find()) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(matcher.group(1));
+        }
+        return sb.toString();
+    }
+
+    private static final class Shell {
+        private final String id;
+        private final ConcurrentMap<String, Command> commands = new ConcurrentHashMap<String, Command>();
+
+        private Shell(final String id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * A running command, output is queued until it is received
+     */
+    private final class Command {
+        private final String id;
+        private final String text;
+        private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        private final StringBuilder input = new StringBuilder();
+        private String script;
+        private String marker;
+        private long received;
+        private boolean done;
+        private int exit;
+
+        private Command(final String id, final String text) {
+            this.id = id;
+            this.text = text;
+        }
+
+        private synchronized void begin() {
+            final String encoded = find(ENCODED, text);
+            if (null != encoded) {
+                try {
+                    script = new String(Base64.decodeBase64(encoded), "UTF-16LE");
+                } catch (UnsupportedEncodingException e) {
+                    throw new IllegalStateException(e);
+                }
+                marker = find(HOST_MARKER, script);
+            }
+            if (readsInput()) {
+                return;
+            }
+            print(outputBytes);
+            finish(exitCode);
+        }
+
+        private boolean readsInput() {
+            if (null != script) {
+                return script.contains(RECEIVER_SIGN) || script.contains(HOST_LOOP_SIGN);
+            }
+            return text.trim().startsWith("cmd /Q");
+        }
+
+        private synchronized void input(final byte[] data) {
+            try {
+                input.append(new String(data, "UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+            int newline;
+            while ((newline = input.indexOf("\n")) >= 0) {
+                String line = input.substring(0, newline).trim();
+                input.delete(0, newline + 1);
+                line(line);
+            }
+            notifyAll();
+        }
+
+        private void line(final String line) {
+            if (null != script && script.contains(RECEIVER_SIGN)) {
+                if (".".equals(line)) {
+                    write(WinRMFileTransfer.RESULT_PREFIX + received + "\r\n");
+                    finish(0);
+                } else if (line.length() > 0) {
+                    final long length = Base64.decodeBase64(line).length;
+                    received += length;
+                    bytesReceived.addAndGet(length);
+                }
+            } else if (null != script && script.contains(LOADER_SIGN)) {
+                //encoded command sent through stdin, runs when the "." line is received
+                if (".".equals(line)) {
+                    print(outputBytes);
+                    finish(exitCode);
+                }
+            } else if (null != marker) {
+                //PowerShell host loop: one base64 encoded script per line
+                if ("exit".equals(line)) {
+                    finish(0);
+                } else if (line.length() > 0) {
+                    commands.incrementAndGet();
+                    print(outputBytes);
+                    write(marker + " " + exitCode + "\r\n");
+                }
+            } else if (line.startsWith("echo __RD_WINRM_DONE_")) {
+                //cmd shell, the echo of the exit code marker follows each command
+                write(line.substring("echo ".length()).replace("%ERRORLEVEL%", Integer.toString(exitCode))
+                        + "\r\n");
+            } else if ("exit".equals(line)) {
+                finish(0);
+            } else if (line.length() > 0) {
+                commands.incrementAndGet();
+                print(outputBytes);
+            }
+        }
+
+        private void print(final int bytes) {
+            final StringBuilder sb = new StringBuilder();
+            int remaining = bytes;
+            while (remaining > 0) {
+                int length = Math.min(78, remaining);
+                for (int i = 0; i < length; i++) {
+                    sb.append((char) ('a' + i % 26));
+                }
+                sb.append("\r\n");
+                remaining -= length;
+            }
+            write(sb.toString());
+        }
+
+        private void write(final String text) {
+            try {
+                output.write(text.getBytes("UTF-8"));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private synchronized void finish(final int code) {
+            exit = code;
+            done = true;
+            notifyAll();
+        }
+
+        private synchronized void terminate() {
+            finish(-1);
+        }
+
+        /**
+         * Return the queued output, waiting a short time for output if there is none, as a long poll would
+         */
+        private synchronized String receive() throws InterruptedException {
+            if (output.size() == 0 && !done) {
+                wait(RECEIVE_WAIT);
+            }
+            final byte[] all = output.toByteArray();
+            final int length = Math.min(all.length, receiveChunk);
+            output.reset();
+            output.write(all, length, all.length - length);
+            final boolean finished = done && output.size() == 0;
+
+            final StringBuilder sb = new StringBuilder("<rsp:ReceiveResponse>");
+            if (length > 0) {
+                final byte[] chunk = new byte[length];
+                System.arraycopy(all, 0, chunk, 0, length);
+                sb.append("<rsp:Stream Name=\"stdout\" CommandId=\"").append(id).append("\">")
+                        .append(Base64.encodeBase64String(chunk)).append("</rsp:Stream>");
+            }
+            if (finished) {
+                sb.append("<rsp:Stream Name=\"stdout\" CommandId=\"").append(id).append("\" End=\"true\"/>");
+                sb.append("<rsp:Stream Name=\"stderr\" CommandId=\"").append(id).append("\" End=\"true\"/>");
+                sb.append("<rsp:CommandState CommandId=\"").append(id).append("\" State=\"").append(DONE_STATE)
+                        .append("\"><rsp:ExitCode>").append(exit).append("</rsp:ExitCode></rsp:CommandState>");
+            } else {
+                sb.append("<rsp:CommandState CommandId=\"").append(id).append("\" State=\"").append(RUNNING_STATE)
+                        .append("\"/>");
+            }
+            return sb.append("</rsp:ReceiveResponse>").toString();
+        }
+    }
+
+    private static String envelope(final String body) {
+        return "<s:Envelope xmlns:s=\"http://www.w3.org/2003/05/soap-envelope\""
+                + " xmlns:a=\"http://schemas.xmlsoap.org/ws/2004/08/addressing\""
+                + " xmlns:x=\"http://schemas.xmlsoap.org/ws/2004/09/transfer\""
+                + " xmlns:w=\"http://schemas.dmtf.org/wbem/wsman/1/wsman.xsd\""
+                + " xmlns:rsp=\"" + SHELL_NS + "\">"
+                + "<s:Header><a:MessageID>uuid:" + UUID.randomUUID().toString().toUpperCase() + "</a:MessageID>"
+                + "<a:To>http://schemas.xmlsoap.org/ws/2004/08/addressing/role/anonymous</a:To></s:Header>"
+                + "<s:Body>" + body + "</s:Body></s:Envelope>";
+    }
+
+    private static String find(final Pattern pattern, final String text) {
+        if (null == text) {
+            return null;
+        }
+        final Matcher matcher = pattern.matcher(text);
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    private static String unescape(final String text) {
+        if (null == text) {
+            return "";
+        }
+        return text.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"").replace("&apos;", "'")
+                .replace("&amp;", "&");
+    }
+
+    private static String read(final InputStream input) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toString("UTF-8");
+    }
+
+    /**
+     * Run the server from the command line, for use with a Rundeck instance
+     *
+     * @param args port [latency [outputBytes [exitCode]]]
+     */
+    public static void main(final String[] args) throws Exception {
+        final FakeWinRMServer server = new FakeWinRMServer(args.length > 0 ? Integer.parseInt(args[0]) : 5985);
+        if (args.length > 1) {
+            server.setLatency(Long.parseLong(args[1]));
+        }
+        if (args.length > 2) {
+            server.setOutputBytes(Integer.parseInt(args[2]));
+        }
+        if (args.length > 3) {
+            server.setExitCode(Integer.parseInt(args[3]));
+        }
+        server.start();
+        System.out.println("Fake WinRM endpoint listening on http://127.0.0.1:" + server.getPort() + "/wsman");
+        Thread.currentThread().join();
+    }
+}
@@ -0,0 +1,104 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import org.apache.commons.compress.utils.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local cost of the file copy loops, writing to a sink which discards the data: the SMB stream copy, the base64
+ * chunking of the WinRM copy, and the block matching of the delta copy.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StreamCopyBenchmark {
+    @Param({"1048576", "16777216"})
+    public int size;
+
+    @Param({"65536"})
+    public int chunkSize;
+
+    @Param({"16384"})
+    public int blockSize;
+
+    private byte[] data;
+    private byte[] changed;
+    private DeltaEncoder encoder;
+
+    @Setup
+    public void setup() throws Exception {
+        Random random = new Random(42);
+        data = new byte[size];
+        random.nextBytes(data);
+        //same data with one changed byte in every 16th block
+        changed = data.clone();
+        for (int i = 0; i < size; i += blockSize * 16) {
+            changed[i] ^= 0x55;
+        }
+        encoder = new DeltaEncoder(blockSize, chunkSize);
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        for (int i = 0; i * blockSize < size; i++) {
+            int length = Math.min(blockSize, size - i * blockSize);
+            md5.update(data, i * blockSize, length);
+            encoder.addBlock(i, DeltaEncoder.weak(data, i * blockSize, length), md5.digest(), length);
+        }
+    }
+
+    @Benchmark
+    public long smbStreamCopy() throws IOException {
+        return IOUtils.copy(new ByteArrayInputStream(data), new NullOutputStream());
+    }
+
+    @Benchmark
+    public void winrmChunks(final Blackhole blackhole) throws IOException {
+        ByteArrayInputStream input = new ByteArrayInputStream(data);
+        byte[] buffer = new byte[chunkSize];
+        int read;
+        while ((read = WinRMFileTransfer.readChunk(input, buffer)) > 0) {
+            blackhole.consume(WinRMFileTransfer.encode(buffer, read));
+        }
+    }
+
+    @Benchmark
+    public long deltaEncode(final Blackhole blackhole) throws IOException {
+        return encoder.encode(new ByteArrayInputStream(changed), null, new DeltaEncoder.Recipe() {
+            public void copy(final long index) {
+                blackhole.consume(index);
+            }
+
+            public void data(final byte[] buffer, final int offset, final int length) {
+                blackhole.consume(length);
+            }
+        });
+    }
+
+    private static final class NullOutputStream extends OutputStream {
+        @Override
+        public void write(final int b) {
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import com.dtolabs.rundeck.core.common.NodeEntryImpl;
+import com.dtolabs.rundeck.core.execution.ExecutionContext;
+import com.dtolabs.rundeck.core.execution.ExecutionContextImpl;
+import com.dtolabs.rundeck.core.execution.ExecutionListener;
+import com.dtolabs.rundeck.core.execution.service.NodeExecutorResult;
+import com.xebialabs.overthere.ConnectionOptions;
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.smb.SmbConnectionBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs commands and file copies through the node executor and file copier against a {@link FakeWinRMServer}, and
+ * reports the throughput and latency. The whole plugin is exercised, including connection reuse, output handling and
+ * the WinRM file transfer, but not the network or a Windows host: the results are for comparing changes to the
+ * plugin, not for sizing a Rundeck server. Copies are run once over WinRM and once over SMB to a {@link FakeSmbShare}
+ * with the same latency, to compare the two copy modes.
+ *
+ * Settings are read from system properties, see the "winrmLoadTest" task in build.gradle.
+ */
+public class WinRMLoadTest {
+    private final FakeWinRMServer server;
+    private final FakeSmbShare share;
+    private final Map<String, String> properties;
+    private final ExecutionContext context;
+    private final NodeEntryImpl node;
+    private final AtomicLong logged = new AtomicLong();
+
+    /**
+     * Node executor with the configuration from the load test instead of a Rundeck framework
+     */
+    private static final class Executor extends OTWinRMNodeExecutor {
+        private final ProjectConfig config;
+
+        private Executor(final ProjectConfig config) {
+            super(null);
+            this.config = config;
+        }
+
+        @Override
+        ProjectConfig getProjectConfig(final ExecutionContext context) {
+            return config;
+        }
+    }
+
+    /**
+     * File copier with the configuration from the load test instead of a Rundeck framework, and SMB connections to
+     * the fake share
+     */
+    private static final class Copier extends OTWinRMFileCopier {
+        private final ProjectConfig config;
+        private final FakeSmbShare share;
+
+        private Copier(final ProjectConfig config, final FakeSmbShare share) {
+            super(null);
+            this.config = config;
+            this.share = share;
+        }
+
+        @Override
+        ProjectConfig getProjectConfig(final ExecutionContext context) {
+            return config;
+        }
+
+        @Override
+        protected OverthereConnection connect(final String protocol, final ConnectionOptions options) {
+            if (SmbConnectionBuilder.SMB_PROTOCOL.equals(protocol)) {
+                return share.connect(options);
+            }
+            return super.connect(protocol, options);
+        }
+    }
+
+    /**
+     * @param server     running server
+     * @param share      share for copies over SMB
+     * @param properties project properties, without the "project." prefix
+     */
+    WinRMLoadTest(final FakeWinRMServer server, final FakeSmbShare share, final Map<String, String> properties) {
+        this.server = server;
+        this.share = share;
+        this.properties = properties;
+
+        node = new NodeEntryImpl("127.0.0.1:" + server.getPort(), "loadtest");
+        node.setUsername("rundeck");
+        node.getAttributes().put(OTWinRMPlugin.WINRM_PROTOCOL, OTWinRMPlugin.WINRM_PROTOCOL_HTTP);
+        node.getAttributes().put(OTWinRMPlugin.WINRM_AUTH_TYPE, OTWinRMPlugin.AUTH_TYPE_BASIC);
+
+        final Map<String, Map<String, String>> privateData = new HashMap<String, Map<String, String>>();
+        final Map<String, String> options = new HashMap<String, String>();
+        options.put(OTWinRMPlugin.DEFAULT_WINRM_PASSWORD_OPTION, "secret");
+        privateData.put("option", options);
+        context = ExecutionContextImpl.builder()
+                .frameworkProject("loadtest")
+                .user("rundeck")
+                .privateDataContext(privateData)
+                .dataContext(new HashMap<String, Map<String, String>>())
+                .executionListener(listener())
+                .build();
+    }
+
+    /**
+     * Listener which counts the log messages and prints errors
+     */
+    private ExecutionListener listener() {
+        return (ExecutionListener) Proxy.newProxyInstance(
+                ExecutionListener.class.getClassLoader(),
+                new Class[]{ExecutionListener.class},
+                new InvocationHandler() {
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        if ("log".equals(method.getName()) && null != args && args.length >= 2) {
+                            logged.incrementAndGet();
+                            if (Integer.valueOf(0).equals(args[0])) {
+                                System.err.println(args[1]);
+                            }
+                        }
+                        if (method.getReturnType() == Boolean.TYPE) {
+                            return Boolean.FALSE;
+                        }
+                        return null;
+                    }
+                }
+        );
+    }
+
+    /**
+     * Run the commands with the given number of threads
+     */
+    void runCommands(final int count, final int threads) throws Exception {
+        final Executor executor = new Executor(ProjectConfig.of(properties));
+        final String[] command = new String[]{"hostname"};
+        final long[] latencies = new long[count];
+        final AtomicLong next = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        final long requests = server.getRequestCount();
+
+        final long start = System.nanoTime();
+        runThreads(threads, new Callable<Void>() {
+            public Void call() {
+                long i;
+                while ((i = next.getAndIncrement()) < count) {
+                    final long begin = System.nanoTime();
+                    final NodeExecutorResult result = executor.executeCommand(context, command, node);
+                    latencies[(int) i] = System.nanoTime() - begin;
+                    if (!result.isSuccess()) {
+                        failures.incrementAndGet();
+                    }
+                }
+                return null;
+            }
+        });
+        final long elapsed = System.nanoTime() - start;
+
+        Arrays.sort(latencies);
+        System.out.println(String.format(
+                "commands: %d threads: %d failures: %d  %.1f commands/s  p50 %.2f ms  p99 %.2f ms  %.1f requests/command",
+                count, threads, failures.get(),
+                count * 1e9 / elapsed,
+                percentile(latencies, 50) / 1e6,
+                percentile(latencies, 99) / 1e6,
+                (server.getRequestCount() - requests) / (double) count
+        ));
+    }
+
+    /**
+     * Copy files of the given size with the given number of threads
+     *
+     * @param mode file copy mode, "winrm" or "smb"
+     */
+    void runCopies(final int count, final int threads, final int size, final String mode) throws Exception {
+        final Map<String, String> copyProperties = new HashMap<String, String>(properties);
+        copyProperties.put(OTWinRMPlugin.WINRM_FILE_COPY_MODE, mode);
+        final Copier copier = new Copier(ProjectConfig.of(copyProperties), share);
+        final byte[] content = new byte[size];
+        new java.util.Random(1).nextBytes(content);
+        final AtomicLong next = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        final long received = bytesReceived();
+
+        final long start = System.nanoTime();
+        runThreads(threads, new Callable<Void>() {
+            public Void call() {
+                long i;
+                while ((i = next.getAndIncrement()) < count) {
+                    try {
+                        copier.copyFileStream(context, new ByteArrayInputStream(content), node,
+                                "C:\\Windows\\Temp\\loadtest-" + i + ".bin");
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                        System.err.println(e.getMessage());
+                    }
+                }
+                return null;
+            }
+        });
+        final long elapsed = System.nanoTime() - start;
+
+        System.out.println(String.format(
+                "copies: %d mode: %s threads: %d size: %d failures: %d  %.1f copies/s  %.2f MB/s",
+                count, mode, threads, size, failures.get(),
+                count * 1e9 / elapsed,
+                (bytesReceived() - received) * 1e9 / elapsed / (1024 * 1024)
+        ));
+    }
+
+    private long bytesReceived() {
+        return server.getBytesReceived() + share.getBytesReceived();
+    }
+
+    private static void runThreads(final int threads, final Callable<Void> task) throws Exception {
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<Void>> futures = new ArrayList<Future<Void>>(threads);
+            for (int i = 0; i < threads; i++) {
+                futures.add(pool.submit(task));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static long percentile(final long[] sorted, final int percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        final int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    /**
+     * System properties:
+     * <ul>
+     * <li>loadtest.commands: number of commands, default 1000</li>
+     * <li>loadtest.copies: number of file copies, default 100</li>
+     * <li>loadtest.copySize: size of each copied file in bytes, default 1048576</li>
+     * <li>loadtest.threads: number of concurrent commands or copies, default 8</li>
+     * <li>loadtest.latency: milliseconds added by the server to every request, and taken by every SMB request,
+     * default 0</li>
+     * <li>loadtest.smbWriteSize: maximum bytes of one SMB write, default 65536</li>
+     * <li>loadtest.copyModes: comma separated file copy modes to run the copies with, default winrm,smb</li>
+     * <li>loadtest.outputBytes: bytes printed by every command, default 100</li>
+     * <li>loadtest.property.X: project property X, for example loadtest.property.winrm-connection-pool=true</li>
+     * </ul>
+     */
+    public static void main(final String[] args) throws Exception {
+        final Map<String, String> properties = new HashMap<String, String>();
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("loadtest.property.")) {
+                properties.put(name.substring("loadtest.property.".length()), System.getProperty(name));
+            }
+        }
+        if (!properties.containsKey(OTWinRMPlugin.WINRM_OUTPUT_MODE)) {
+            properties.put(OTWinRMPlugin.WINRM_OUTPUT_MODE, OTWinRMPlugin.OUTPUT_MODE_LISTENER);
+        }
+        final int threads = Integer.getInteger("loadtest.threads", 8);
+
+        final FakeWinRMServer server = new FakeWinRMServer()
+                .setLatency(Long.getLong("loadtest.latency", 0L))
+                .setOutputBytes(Integer.getInteger("loadtest.outputBytes", 100))
+                .start();
+        final FakeSmbShare share = new FakeSmbShare()
+                .setLatency(Long.getLong("loadtest.latency", 0L))
+                .setWriteSize(Integer.getInteger("loadtest.smbWriteSize", 64 * 1024));
+        try {
+            System.out.println("properties: " + new java.util.TreeMap<String, String>(properties));
+            final WinRMLoadTest test = new WinRMLoadTest(server, share, Collections.unmodifiableMap(properties));
+            test.runCommands(Integer.getInteger("loadtest.commands", 1000), threads);
+            for (String mode : System.getProperty("loadtest.copyModes", "winrm,smb").split(",")) {
+                test.runCopies(Integer.getInteger("loadtest.copies", 100), threads,
+                        Integer.getInteger("loadtest.copySize", 1024 * 1024), mode.trim());
+            }
+            System.out.println("requests: " + server.getRequestCount() + " open shells: " + server.getOpenShellCount()
+                    + " SMB requests: " + share.getRequestCount() + " log messages: " + test.logged.get());
+        } finally {
+            server.stop();
+        }
+    }
+}
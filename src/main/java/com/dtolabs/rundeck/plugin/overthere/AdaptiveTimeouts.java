@@ -0,0 +1,189 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import com.xebialabs.overthere.OverthereExecutionOutputHandler;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connection timeouts derived from the response latency observed for each host. The latency of a command is the
+ * time until its first output, or until it finishes if it prints nothing, which covers opening the connection and
+ * the first WS-Management round trips. Only commands which opened a new connection are sampled, as a command on a
+ * pooled connection, a reused shell or a pooled PowerShell host says nothing about the connection timeout. The
+ * timeout is a percentile of the recent latencies plus a margin, clamped between a minimum and the configured
+ * timeout, which is used until enough samples have been seen.
+ *
+ * The histograms are saved to a properties file periodically, and loaded from it when first used, so that they
+ * survive restarts.
+ */
+class AdaptiveTimeouts {
+    static final int MIN_SAMPLES = 20;
+    static final long DECAY_AFTER = 1000;
+    private static final long SAVE_INTERVAL = 60000;
+
+    private final ConcurrentMap<String, LatencyHistogram> histograms =
+            new ConcurrentHashMap<String, LatencyHistogram>();
+    private final AtomicBoolean dirty = new AtomicBoolean();
+    private File file;
+
+    /**
+     * Measures the time until the first output of a command
+     */
+    static final class ResponseTimer {
+        private final long start = System.nanoTime();
+        private final AtomicLong firstResponse = new AtomicLong();
+
+        /**
+         * @return the handler, noting the time of the first output passed to it
+         */
+        OverthereExecutionOutputHandler wrap(final OverthereExecutionOutputHandler handler) {
+            return new OverthereExecutionOutputHandler() {
+                public void handleChar(final char c) {
+                    if (firstResponse.get() == 0) {
+                        firstResponse.compareAndSet(0, System.nanoTime());
+                    }
+                    handler.handleChar(c);
+                }
+
+                public void handleLine(final String line) {
+                    handler.handleLine(line);
+                }
+            };
+        }
+
+        /**
+         * @return milliseconds until the first output, or until now if there was none
+         */
+        long elapsed() {
+            final long end = firstResponse.get();
+            return TimeUnit.NANOSECONDS.toMillis((end != 0 ? end : System.nanoTime()) - start);
+        }
+    }
+
+    /**
+     * Load the histograms saved in the file and save them there from now on, only the first file given is used
+     */
+    synchronized void load(final File file) {
+        if (null != this.file) {
+            return;
+        }
+        this.file = file;
+        if (file.isFile()) {
+            final Properties properties = new Properties();
+            InputStream input = null;
+            try {
+                input = new FileInputStream(file);
+                properties.load(input);
+            } catch (IOException e) {
+                //start with empty histograms
+            } finally {
+                closeQuietly(input);
+            }
+            for (String host : properties.stringPropertyNames()) {
+                final LatencyHistogram histogram = LatencyHistogram.parse(properties.getProperty(host), DECAY_AFTER);
+                if (null != histogram) {
+                    histograms.putIfAbsent(host, histogram);
+                }
+            }
+        }
+        WinRMScheduler.get().scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                save();
+            }
+        }, SAVE_INTERVAL, SAVE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    void record(final String host, final long millis) {
+        LatencyHistogram histogram = histograms.get(host);
+        if (null == histogram) {
+            final LatencyHistogram created = new LatencyHistogram(DECAY_AFTER);
+            histogram = histograms.putIfAbsent(host, created);
+            if (null == histogram) {
+                histogram = created;
+            }
+        }
+        histogram.record(millis);
+        dirty.set(true);
+    }
+
+    /**
+     * @param host       host
+     * @param configured configured timeout, the maximum
+     * @param minimum    minimum timeout
+     * @param percentile percentile of the latencies to use
+     * @param margin     percentage added to the latency
+     *
+     * @return the timeout for the host in milliseconds
+     */
+    long timeout(
+            final String host,
+            final long configured,
+            final long minimum,
+            final int percentile,
+            final int margin
+    ) {
+        final LatencyHistogram histogram = histograms.get(host);
+        if (null == histogram || histogram.getCount() < MIN_SAMPLES) {
+            return configured;
+        }
+        final long latency = histogram.percentile(percentile);
+        final long timeout = latency + latency * margin / 100;
+        return Math.min(configured, Math.max(minimum, timeout));
+    }
+
+    /**
+     * Write the histograms to the file if they changed, the file is replaced atomically where possible
+     */
+    synchronized void save() {
+        if (null == file || !dirty.getAndSet(false)) {
+            return;
+        }
+        final Properties properties = new Properties();
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            properties.setProperty(entry.getKey(), entry.getValue().format());
+        }
+        final File tmp = new File(file.getPath() + ".tmp");
+        OutputStream output = null;
+        try {
+            if (null != file.getParentFile()) {
+                file.getParentFile().mkdirs();
+            }
+            output = new FileOutputStream(tmp);
+            properties.store(output, "WinRM response latency histograms");
+            output.close();
+            output = null;
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                if (!tmp.renameTo(file)) {
+                    dirty.set(true);
+                }
+            }
+        } catch (IOException e) {
+            dirty.set(true);
+        } finally {
+            closeQuietly(output);
+        }
+    }
+
+    private static void closeQuietly(final Closeable closeable) {
+        if (null != closeable) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                //ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the shells and operations open at once per host and user, shared by the node executor and the file copier,
+ * so that parallel executions wait for their turn instead of exceeding the MaxShellsPerUser and
+ * MaxConcurrentOperationsPerUser quotas of the WinRM service and failing with a quota fault. Callers wait in a fair
+ * queue, up to a timeout. The limits of a host are taken from the settings of the latest caller. A change resizes the
+ * limits of the host in place: permits which are held stay counted, and when a limit is lowered new callers wait until
+ * enough of them are released.
+ *
+ * The limits are kept in a fixed number of stripes, each with its own lock, so that callers for different hosts
+ * seldom contend.
+ */
+class AdmissionControl {
+    private static final int STRIPES = 32;
+
+    static class Settings {
+        static final Settings DISABLED = new Settings(false, 0, 0, 0);
+
+        private final boolean enabled;
+        private final int maxShells;
+        private final int maxOperations;
+        private final long timeout;
+
+        /**
+         * @param enabled       true to limit shells and operations
+         * @param maxShells     maximum number of shells open at once per host and user
+         * @param maxOperations maximum number of operations running at once per host and user
+         * @param timeout       maximum milliseconds to wait for admission
+         */
+        Settings(final boolean enabled, final int maxShells, final int maxOperations, final long timeout) {
+            this.enabled = enabled && maxShells > 0 && maxOperations > 0;
+            this.maxShells = maxShells;
+            this.maxOperations = maxOperations;
+            this.timeout = timeout;
+        }
+
+        boolean isEnabled() {
+            return enabled;
+        }
+    }
+
+    /**
+     * Thrown when the timeout passed before the caller was admitted
+     */
+    static class TimeoutException extends Exception {
+        TimeoutException(final String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Fair semaphore which can be resized
+     */
+    private static final class ResizableSemaphore extends Semaphore {
+        private ResizableSemaphore(final int permits) {
+            super(permits, true);
+        }
+
+        private void resize(final int from, final int to) {
+            if (to > from) {
+                release(to - from);
+            } else if (to < from) {
+                reducePermits(from - to);
+            }
+        }
+    }
+
+    private static final class Limits {
+        private volatile int maxShells;
+        private volatile int maxOperations;
+        private final ResizableSemaphore shells;
+        private final ResizableSemaphore operations;
+
+        private Limits(final Settings settings) {
+            this.maxShells = settings.maxShells;
+            this.maxOperations = settings.maxOperations;
+            this.shells = new ResizableSemaphore(maxShells);
+            this.operations = new ResizableSemaphore(maxOperations);
+        }
+
+        /**
+         * Resize to the limits of the settings, called with the lock of the stripe held
+         */
+        private void resize(final Settings settings) {
+            shells.resize(maxShells, settings.maxShells);
+            maxShells = settings.maxShells;
+            operations.resize(maxOperations, settings.maxOperations);
+            maxOperations = settings.maxOperations;
+        }
+    }
+
+    /**
+     * Shells and operations held by an admitted caller, which must be released once
+     */
+    static final class Permit {
+        static final Permit NONE = new Permit(null, 0, 0, 0);
+
+        private final Limits limits;
+        private final int shells;
+        private final int operations;
+        private final long waited;
+
+        private Permit(final Limits limits, final int shells, final int operations, final long waited) {
+            this.limits = limits;
+            this.shells = shells;
+            this.operations = operations;
+            this.waited = waited;
+        }
+
+        /**
+         * @return milliseconds the caller waited for admission
+         */
+        long getWaited() {
+            return waited;
+        }
+
+        void release() {
+            if (null == limits) {
+                return;
+            }
+            limits.operations.release(operations);
+            limits.shells.release(shells);
+        }
+    }
+
+    private final Object[] locks = new Object[STRIPES];
+    private final List<Map<String, Limits>> stripes = new ArrayList<Map<String, Limits>>(STRIPES);
+    private final AtomicLong timeouts = new AtomicLong();
+
+    AdmissionControl() {
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+            stripes.add(new HashMap<String, Limits>());
+        }
+    }
+
+    /**
+     * @return the key of the host and user
+     */
+    static String key(final String host, final String username) {
+        return (host + ":" + username).toLowerCase();
+    }
+
+    private Limits limits(final String key, final Settings settings) {
+        final int stripe = (key.hashCode() & 0x7fffffff) % STRIPES;
+        synchronized (locks[stripe]) {
+            final Map<String, Limits> limits = stripes.get(stripe);
+            Limits current = limits.get(key);
+            if (null == current) {
+                current = new Limits(settings);
+                limits.put(key, current);
+            } else {
+                current.resize(settings);
+            }
+            return current;
+        }
+    }
+
+    /**
+     * Wait for admission to open shells and run operations on the host. Each count is capped at its limit.
+     *
+     * @param key        key of the host and user
+     * @param settings   limits and timeout
+     * @param shells     number of new shells
+     * @param operations number of operations
+     *
+     * @return the permit, to release when the shells are closed and the operations finished
+     *
+     * @throws TimeoutException     if the timeout passed first
+     * @throws InterruptedException if interrupted while waiting
+     */
+    Permit acquire(final String key, final Settings settings, final int shells, final int operations)
+            throws TimeoutException, InterruptedException {
+        if (!settings.isEnabled()) {
+            return Permit.NONE;
+        }
+        final Limits limits = limits(key, settings);
+        final int shellCount = Math.min(shells, limits.maxShells);
+        final int operationCount = Math.min(operations, limits.maxOperations);
+        final long start = System.nanoTime();
+        final long deadline = start + TimeUnit.MILLISECONDS.toNanos(settings.timeout);
+        if (!limits.shells.tryAcquire(shellCount, settings.timeout, TimeUnit.MILLISECONDS)) {
+            timeouts.incrementAndGet();
+            throw new TimeoutException("No shell available for " + key + " within " + settings.timeout
+                    + "ms, the limit is " + limits.maxShells + " shells");
+        }
+        boolean admitted = false;
+        try {
+            if (!limits.operations.tryAcquire(operationCount, Math.max(0, deadline - System.nanoTime()),
+                    TimeUnit.NANOSECONDS)) {
+                timeouts.incrementAndGet();
+                throw new TimeoutException("No operation available for " + key + " within " + settings.timeout
+                        + "ms, the limit is " + limits.maxOperations + " operations");
+            }
+            admitted = true;
+        } finally {
+            if (!admitted) {
+                limits.shells.release(shellCount);
+            }
+        }
+        return new Permit(limits, shellCount, operationCount,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * @return number of callers waiting for admission
+     */
+    int getWaitingCount() {
+        int count = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            synchronized (locks[i]) {
+                for (Limits limits : stripes.get(i).values()) {
+                    count += limits.shells.getQueueLength() + limits.operations.getQueueLength();
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return number of callers which were not admitted within the timeout
+     */
+    long getTimeoutCount() {
+        return timeouts.get();
+    }
+}
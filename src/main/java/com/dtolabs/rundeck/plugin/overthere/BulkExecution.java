@@ -0,0 +1,222 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import com.dtolabs.rundeck.core.common.INodeEntry;
+import com.dtolabs.rundeck.core.execution.service.NodeExecutorResult;
+import com.dtolabs.rundeck.core.execution.service.NodeExecutorResultImpl;
+import com.dtolabs.rundeck.core.execution.workflow.steps.StepFailureReason;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a task on many nodes at once, limited by a global number of concurrent nodes and by a number of concurrent
+ * nodes per host. A node takes its host permit before a global permit, so that nodes waiting for a busy host do not
+ * hold global permits. On a JVM with virtual threads every node gets a virtual thread, and waiting for a permit or for
+ * the node does not hold a platform thread; on older JVMs a pool of at most the global limit of threads is used, and
+ * the nodes are queued taking the hosts in turn.
+ */
+public final class BulkExecution {
+    private static final Method NEW_VIRTUAL_EXECUTOR = findVirtualExecutorFactory();
+
+    /**
+     * Receives the result of each node as soon as it is finished
+     */
+    public static interface Listener {
+        void nodeFinished(INodeEntry node, NodeExecutorResult result);
+    }
+
+    /**
+     * Work to run for a node
+     */
+    static interface NodeTask {
+        NodeExecutorResult execute(INodeEntry node);
+    }
+
+    private final int concurrency;
+    private final int hostConcurrency;
+    private final ConcurrentMap<String, Semaphore> hostPermits = new ConcurrentHashMap<String, Semaphore>();
+
+    /**
+     * @param concurrency     maximum number of nodes run at once
+     * @param hostConcurrency maximum number of nodes with the same host run at once
+     */
+    BulkExecution(final int concurrency, final int hostConcurrency) {
+        this.concurrency = Math.max(1, concurrency);
+        this.hostConcurrency = Math.max(1, hostConcurrency);
+    }
+
+    /**
+     * @return true if the JVM supports virtual threads
+     */
+    static boolean isVirtualThreadsAvailable() {
+        return null != NEW_VIRTUAL_EXECUTOR;
+    }
+
+    private static Method findVirtualExecutorFactory() {
+        try {
+            return java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private ExecutorService newExecutor(final int nodes) {
+        if (null != NEW_VIRTUAL_EXECUTOR) {
+            try {
+                return (ExecutorService) NEW_VIRTUAL_EXECUTOR.invoke(null);
+            } catch (Exception e) {
+                //fall back to platform threads
+            }
+        }
+        final int threads = Math.min(concurrency, Math.max(1, nodes));
+        return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                WinRMScheduler.daemonThreadFactory("winrm-bulk"));
+    }
+
+    /**
+     * Run the task on all of the nodes and wait for all of them to finish. A task which throws an exception results
+     * in a failure result for its node.
+     *
+     * @param nodes    nodes
+     * @param task     task to run for each node
+     * @param listener receives each result as it is finished, may be null
+     *
+     * @return results by node name, in the order of the nodes
+     *
+     * @throws InterruptedException if interrupted while waiting, all running nodes are interrupted as well
+     */
+    Map<String, NodeExecutorResult> run(
+            final Collection<INodeEntry> nodes,
+            final NodeTask task,
+            final Listener listener
+    ) throws InterruptedException {
+        final Semaphore permits = new Semaphore(concurrency, true);
+        final ExecutorService executor = newExecutor(nodes.size());
+        final List<INodeEntry> submitted = new ArrayList<INodeEntry>(nodes);
+        final List<Future<NodeExecutorResult>> futures = new ArrayList<Future<NodeExecutorResult>>(
+                Collections.<Future<NodeExecutorResult>>nCopies(submitted.size(), null));
+        try {
+            for (final int index : interleaveHosts(submitted)) {
+                final INodeEntry node = submitted.get(index);
+                futures.set(index, executor.submit(new Callable<NodeExecutorResult>() {
+                    public NodeExecutorResult call() throws InterruptedException {
+                        final Semaphore host = hostPermits(node);
+                        host.acquire();
+                        try {
+                            permits.acquire();
+                            try {
+                                return finished(node, runTask(task, node), listener);
+                            } finally {
+                                permits.release();
+                            }
+                        } finally {
+                            host.release();
+                        }
+                    }
+                }));
+            }
+            final Map<String, NodeExecutorResult> results = new LinkedHashMap<String, NodeExecutorResult>();
+            for (int i = 0; i < submitted.size(); i++) {
+                results.put(submitted.get(i).getNodename(), await(submitted.get(i), futures.get(i)));
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Order the nodes taking one node of each host in turn, so that the threads of a pool are not all taken by nodes
+     * of one host waiting for their host permit while nodes of other hosts wait in the queue
+     *
+     * @return indexes of the nodes in the order to submit them
+     */
+    static List<Integer> interleaveHosts(final List<INodeEntry> nodes) {
+        final Map<String, LinkedList<Integer>> hosts = new LinkedHashMap<String, LinkedList<Integer>>();
+        for (int i = 0; i < nodes.size(); i++) {
+            final String host = hostKey(nodes.get(i));
+            LinkedList<Integer> list = hosts.get(host);
+            if (null == list) {
+                list = new LinkedList<Integer>();
+                hosts.put(host, list);
+            }
+            list.add(i);
+        }
+        final List<Integer> ordered = new ArrayList<Integer>(nodes.size());
+        while (ordered.size() < nodes.size()) {
+            for (LinkedList<Integer> list : hosts.values()) {
+                if (!list.isEmpty()) {
+                    ordered.add(list.removeFirst());
+                }
+            }
+        }
+        return ordered;
+    }
+
+    private static String hostKey(final INodeEntry node) {
+        return null != node.getHostname() ? node.extractHostname() : node.getNodename();
+    }
+
+    private Semaphore hostPermits(final INodeEntry node) {
+        final String host = hostKey(node);
+        Semaphore semaphore = hostPermits.get(host);
+        if (null == semaphore) {
+            Semaphore created = new Semaphore(hostConcurrency, true);
+            semaphore = hostPermits.putIfAbsent(host, created);
+            if (null == semaphore) {
+                semaphore = created;
+            }
+        }
+        return semaphore;
+    }
+
+    private static NodeExecutorResult runTask(final NodeTask task, final INodeEntry node) {
+        try {
+            return task.execute(node);
+        } catch (RuntimeException e) {
+            return NodeExecutorResultImpl.createFailure(StepFailureReason.Unknown, e.getMessage(), e, node, -1);
+        }
+    }
+
+    private static NodeExecutorResult finished(
+            final INodeEntry node,
+            final NodeExecutorResult result,
+            final Listener listener
+    ) {
+        if (null != listener) {
+            listener.nodeFinished(node, result);
+        }
+        return result;
+    }
+
+    private static NodeExecutorResult await(final INodeEntry node, final Future<NodeExecutorResult> future)
+            throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof InterruptedException) {
+                return NodeExecutorResultImpl.createFailure(StepFailureReason.Interrupted, cause.getMessage(),
+                        node, -1);
+            }
+            return NodeExecutorResultImpl.createFailure(StepFailureReason.Unknown,
+                    String.valueOf(cause.getMessage()), node, -1);
+        }
+    }
+}
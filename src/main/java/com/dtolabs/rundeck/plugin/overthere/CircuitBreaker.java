@@ -0,0 +1,176 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Tracks connection failures per host, shared by the node executor and the file copier. After a number of
+ * consecutive failures the circuit of the host opens and commands and copies fail immediately, instead of waiting for
+ * the connection timeout again. When the backoff time has passed a single probe is allowed (half open): if it reaches
+ * the host the circuit closes, otherwise it opens again with twice the backoff, up to a maximum.
+ *
+ * Every call to {@link #check(String, Settings)} which does not throw must be followed by a call to
+ * {@link #record(String, Settings, boolean)}, or to {@link #release(String, Settings)} if the host was not tried.
+ */
+class CircuitBreaker {
+    static class Settings {
+        static final Settings DISABLED = new Settings(false, 0, 0, 0);
+
+        private final boolean enabled;
+        private final int threshold;
+        private final long backoff;
+        private final long maxBackoff;
+
+        /**
+         * @param enabled    true to use the circuit breaker
+         * @param threshold  number of consecutive connection failures which open the circuit
+         * @param backoff    milliseconds the circuit stays open after it first opens
+         * @param maxBackoff maximum milliseconds the circuit stays open
+         */
+        Settings(final boolean enabled, final int threshold, final long backoff, final long maxBackoff) {
+            this.enabled = enabled && threshold > 0;
+            this.threshold = threshold;
+            this.backoff = backoff;
+            this.maxBackoff = Math.max(backoff, maxBackoff);
+        }
+
+        boolean isEnabled() {
+            return enabled;
+        }
+    }
+
+    /**
+     * Thrown instead of connecting while the circuit of the host is open
+     */
+    static class OpenException extends Exception {
+        OpenException(final String message) {
+            super(message);
+        }
+    }
+
+    private static final class Circuit {
+        private int failures;
+        private long backoff;
+        private long retryAt;
+        private boolean open;
+        private boolean probing;
+    }
+
+    private final ConcurrentMap<String, Circuit> circuits = new ConcurrentHashMap<String, Circuit>();
+
+    /**
+     * Check the circuit before connecting to the host
+     *
+     * @throws OpenException if the circuit is open, or another caller is probing the host
+     */
+    void check(final String host, final Settings settings) throws OpenException {
+        if (!settings.isEnabled()) {
+            return;
+        }
+        final Circuit circuit = circuits.get(host);
+        if (null == circuit) {
+            return;
+        }
+        synchronized (circuit) {
+            if (!circuit.open) {
+                return;
+            }
+            final long now = System.currentTimeMillis();
+            if (now >= circuit.retryAt && !circuit.probing) {
+                circuit.probing = true;
+                return;
+            }
+            throw new OpenException("Not connecting to " + host + " after " + circuit.failures
+                    + " connection failures, retrying in " + Math.max(0, (circuit.retryAt - now) / 1000) + "s");
+        }
+    }
+
+    /**
+     * Record the outcome of a command or copy
+     *
+     * @param reachable false if it failed to connect to the host, true if the host was reached, whether or not the
+     *                  command or copy succeeded
+     */
+    void record(final String host, final Settings settings, final boolean reachable) {
+        if (!settings.isEnabled()) {
+            return;
+        }
+        if (reachable) {
+            circuits.remove(host);
+            return;
+        }
+        Circuit circuit = circuits.get(host);
+        if (null == circuit) {
+            final Circuit created = new Circuit();
+            circuit = circuits.putIfAbsent(host, created);
+            if (null == circuit) {
+                circuit = created;
+            }
+        }
+        synchronized (circuit) {
+            circuit.failures++;
+            if (circuit.probing) {
+                circuit.probing = false;
+                circuit.backoff = Math.min(settings.maxBackoff, circuit.backoff * 2);
+            } else if (!circuit.open && circuit.failures >= settings.threshold) {
+                circuit.open = true;
+                circuit.backoff = settings.backoff;
+            } else {
+                return;
+            }
+            circuit.retryAt = System.currentTimeMillis() + circuit.backoff;
+        }
+    }
+
+    /**
+     * Give up a check which was not followed by an attempt to reach the host, such as a command which was not
+     * admitted. The failures are kept, and a probe which was allowed may be made by the next caller.
+     */
+    void release(final String host, final Settings settings) {
+        if (!settings.isEnabled()) {
+            return;
+        }
+        final Circuit circuit = circuits.get(host);
+        if (null == circuit) {
+            return;
+        }
+        synchronized (circuit) {
+            circuit.probing = false;
+        }
+    }
+
+    /**
+     * @return true if the exception, or one of its causes, is a failure to connect to the host
+     */
+    static boolean isConnectionFailure(final Throwable exception) {
+        for (Throwable t = exception; null != t; t = t.getCause() != t ? t.getCause() : null) {
+            if (t instanceof ConnectException
+                    || t instanceof NoRouteToHostException
+                    || t instanceof UnknownHostException
+                    || t instanceof SocketTimeoutException
+                    || "ConnectTimeoutException".equals(t.getClass().getSimpleName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return number of hosts with an open circuit
+     */
+    int getOpenCount() {
+        int count = 0;
+        for (Circuit circuit : circuits.values()) {
+            synchronized (circuit) {
+                if (circuit.open) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+}
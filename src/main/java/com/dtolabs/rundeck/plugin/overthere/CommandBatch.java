@@ -0,0 +1,202 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import com.dtolabs.rundeck.core.common.INodeEntry;
+import com.dtolabs.rundeck.core.execution.service.NodeExecutorResult;
+import com.dtolabs.rundeck.core.execution.service.NodeExecutorResultImpl;
+import com.dtolabs.rundeck.core.execution.workflow.steps.node.NodeStepFailureReason;
+import com.xebialabs.overthere.OverthereExecutionOutputHandler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Several commands run as one PowerShell script in a single shell. After each command the script prints a marker line
+ * with the index and exit code of the command, which is removed from the output and gives the result of each command.
+ * Unless the batch keeps going, the script stops after the first command which fails. Commands for cmd are each run by
+ * cmd.exe in a process of its own with stdin closed, see {@link PowerShellUtil#CMD_FUNCTION}, so that they do not read
+ * the commands after them, as they would if the batch was typed into one cmd process.
+ */
+class CommandBatch {
+    private static final String MARKER_PREFIX = "__RD_WINRM_STEP_";
+
+    private final List<String> commands = new ArrayList<String>();
+    private final boolean keepgoing;
+    private final String marker;
+    private final List<Integer> exitCodes = Collections.synchronizedList(new ArrayList<Integer>());
+    private volatile int shellExitCode;
+
+    /**
+     * @param commands  commands, the arguments of each are separated by a space and used as they are
+     * @param keepgoing true to run the remaining commands after a command fails
+     */
+    CommandBatch(final List<String[]> commands, final boolean keepgoing) {
+        for (String[] command : commands) {
+            final StringBuilder sb = new StringBuilder();
+            for (String s : command) {
+                if (sb.length() > 0) {
+                    sb.append(' ');
+                }
+                sb.append(s);
+            }
+            this.commands.add(sb.toString());
+        }
+        this.keepgoing = keepgoing;
+        this.marker = MARKER_PREFIX + UUID.randomUUID().toString().replace("-", "") + "__";
+    }
+
+    int size() {
+        return commands.size();
+    }
+
+    /**
+     * @param powershell true if the commands are PowerShell, false to run them with cmd.exe
+     *
+     * @return the PowerShell script running all commands
+     */
+    String getScript(final boolean powershell) {
+        final StringBuilder sb = new StringBuilder();
+        if (!powershell) {
+            sb.append(PowerShellUtil.CMD_FUNCTION);
+        }
+        sb.append("$m = ").append(PowerShellUtil.quote(marker)).append("\n");
+        sb.append("$i = 0\n");
+        sb.append("foreach ($s in @(");
+        for (int i = 0; i < commands.size(); i++) {
+            if (i > 0) {
+                sb.append(",\n");
+            }
+            sb.append(PowerShellUtil.quote(commands.get(i)));
+        }
+        sb.append(")) {\n")
+                .append("  $c = 0\n")
+                .append("  $global:LASTEXITCODE = $null\n")
+                .append("  try {\n");
+        if (powershell) {
+            sb.append("    & ([ScriptBlock]::Create($s)) | Out-Default\n");
+        } else {
+            sb.append("    Invoke-Cmd $s | Out-Default\n");
+        }
+        sb.append("    if (-not $?) { $c = 1 }\n")
+                .append("  } catch {\n")
+                .append("    [Console]::Error.WriteLine($_.ToString())\n")
+                .append("    $c = 1\n")
+                .append("  }\n")
+                .append("  if ($LASTEXITCODE) { $c = $LASTEXITCODE }\n")
+                .append("  [Console]::Out.WriteLine($m + ' ' + $i + ' ' + $c)\n")
+                .append("  [Console]::Out.Flush()\n")
+                .append("  $i++\n");
+        if (!keepgoing) {
+            sb.append("  if ($c -ne 0) { break }\n");
+        }
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    /**
+     * @return handler passing output on to the given handler, without the marker lines, which are recorded
+     */
+    OverthereExecutionOutputHandler split(final OverthereExecutionOutputHandler handler) {
+        return new OverthereExecutionOutputHandler() {
+            private final StringBuilder pending = new StringBuilder();
+
+            public void handleChar(final char c) {
+                pending.append(c);
+            }
+
+            public void handleLine(final String line) {
+                final int index = line.indexOf(marker);
+                if (index < 0) {
+                    for (int i = 0; i < pending.length(); i++) {
+                        handler.handleChar(pending.charAt(i));
+                    }
+                    pending.setLength(0);
+                    handler.handleLine(line);
+                    return;
+                }
+                pending.setLength(0);
+                if (index > 0) {
+                    RemoteShell.emitLine(handler, line.substring(0, index));
+                }
+                record(line.substring(index + marker.length()).trim());
+            }
+        };
+    }
+
+    private void record(final String value) {
+        final String[] parts = value.split("\\s+");
+        if (parts.length != 2) {
+            return;
+        }
+        try {
+            if (Integer.parseInt(parts[0]) == exitCodes.size()) {
+                exitCodes.add(Integer.parseInt(parts[1]));
+            }
+        } catch (NumberFormatException e) {
+            exitCodes.add(-1);
+        }
+    }
+
+    /**
+     * @return true if any command of the batch has finished
+     */
+    boolean hasResults() {
+        return !exitCodes.isEmpty();
+    }
+
+    /**
+     * @param exitCode exit code of the script, from the shell
+     *
+     * @return exit code of the batch: that of the first failed command, or -1 if not all commands ran
+     */
+    int getResult(final int exitCode) {
+        shellExitCode = exitCode;
+        synchronized (exitCodes) {
+            for (Integer code : exitCodes) {
+                if (code != 0) {
+                    return code;
+                }
+            }
+            return exitCodes.size() == commands.size() ? 0 : -1;
+        }
+    }
+
+    /**
+     * Split the result of the batch into the results of the commands which ran. A command which ended the shell gets
+     * the exit code of the shell, and a command which was interrupted by a failure of the connection gets that
+     * failure.
+     *
+     * @param result result of the batch
+     *
+     * @return results of the commands which ran, in order
+     */
+    List<NodeExecutorResult> getResults(final NodeExecutorResult result, final INodeEntry node) {
+        final List<NodeExecutorResult> results = new ArrayList<NodeExecutorResult>();
+        final List<Integer> codes;
+        synchronized (exitCodes) {
+            codes = new ArrayList<Integer>(exitCodes);
+        }
+        boolean stopped = false;
+        for (Integer code : codes) {
+            results.add(commandResult(code, node));
+            stopped = !keepgoing && code != 0;
+        }
+        if (codes.size() < commands.size() && !stopped) {
+            if (!result.isSuccess() && result.getFailureReason() != NodeStepFailureReason.NonZeroResultCode) {
+                results.add(result);
+            } else {
+                results.add(commandResult(shellExitCode != 0 ? shellExitCode : -1, node));
+            }
+        }
+        return results;
+    }
+
+    static NodeExecutorResult commandResult(final int code, final INodeEntry node) {
+        if (code == 0) {
+            return NodeExecutorResultImpl.createSuccess(node);
+        }
+        return NodeExecutorResultImpl.createFailure(NodeStepFailureReason.NonZeroResultCode,
+                "[" + OTWinRMPlugin.SERVICE_PROVIDER_TYPE + "] result code: " + code, node, code);
+    }
+}
@@ -0,0 +1,237 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import com.dtolabs.rundeck.core.common.INodeEntry;
+import com.dtolabs.rundeck.core.execution.service.NodeExecutorResult;
+import com.dtolabs.rundeck.core.execution.workflow.steps.node.NodeStepFailureReason;
+import com.xebialabs.overthere.OverthereExecutionOutputHandler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Several commands run at the same time by one PowerShell process, in a runspace pool, so that they share a single
+ * WinRM shell and connection. The process polls the output of all commands and writes it to stdout in lines tagged
+ * with a marker, the index of the command and the kind of line: "o" for output, "e" for errors, and "x" with the
+ * exit code when the command is finished. The tagged lines are split back into the output of each command, prefixed
+ * with its position in the list, starting at 1. Commands for cmd are each run by cmd.exe in a process of its own, see
+ * {@link PowerShellUtil#CMD_FUNCTION}, with the command line passed as it is and error output kept apart.
+ */
+class ConcurrentCommands {
+    private static final String MARKER_PREFIX = "__RD_WINRM_CONCURRENT_";
+    private static final long POLL_INTERVAL = 50;
+
+    private final List<String> commands = new ArrayList<String>();
+    private final int concurrency;
+    private final String marker;
+    private final Pattern tagged;
+    private final Integer[] exitCodes;
+    private volatile int finished;
+
+    /**
+     * @param commands    commands, the arguments of each are separated by a space and used as they are
+     * @param concurrency maximum number of commands running at once
+     */
+    ConcurrentCommands(final List<String[]> commands, final int concurrency) {
+        for (String[] command : commands) {
+            this.commands.add(EncodedPowerShellCommand.of(command).getScript());
+        }
+        this.concurrency = Math.max(1, Math.min(concurrency, commands.size()));
+        this.marker = MARKER_PREFIX + UUID.randomUUID().toString().replace("-", "") + "__";
+        this.tagged = Pattern.compile(Pattern.quote(marker) + " (\\d+) ([oex]) ?(.*)$");
+        this.exitCodes = new Integer[commands.size()];
+    }
+
+    int size() {
+        return commands.size();
+    }
+
+    /**
+     * @param powershell true if the commands are PowerShell, false to run them with cmd.exe
+     *
+     * @return the PowerShell script running all commands
+     */
+    String getScript(final boolean powershell) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("$m = ").append(PowerShellUtil.quote(marker)).append("\n");
+        sb.append("$t = ").append(PowerShellUtil.quote(powershell ? "ps" : "cmd")).append("\n");
+        sb.append("$cmds = @(");
+        for (int i = 0; i < commands.size(); i++) {
+            if (i > 0) {
+                sb.append(",\n");
+            }
+            sb.append(PowerShellUtil.quote(commands.get(i)));
+        }
+        sb.append(")\n");
+        sb.append("$runner = {\n"
+                + "  param($c, $t, $i, $codes)\n");
+        sb.append(PowerShellUtil.CMD_FUNCTION);
+        sb.append("  $r = 0\n"
+                + "  $global:LASTEXITCODE = $null\n"
+                + "  try {\n"
+                + "    if ($t -eq 'cmd') { Invoke-Cmd $c -Records | Out-String -Stream }\n"
+                + "    else { & ([ScriptBlock]::Create($c)) | Out-String -Stream }\n"
+                + "  } catch {\n"
+                + "    Write-Error -ErrorRecord $_\n"
+                + "    $r = 1\n"
+                + "  }\n"
+                + "  if ($LASTEXITCODE) { $r = $LASTEXITCODE }\n"
+                + "  $codes[$i] = $r\n"
+                + "}\n"
+                + "function Write-Tagged($i, $k, $text) {\n"
+                + "  foreach ($l in (\"$text\" -split \"`r?`n\")) { [Console]::Out.WriteLine($m + ' ' + $i + ' ' + $k"
+                + " + ' ' + $l) }\n"
+                + "}\n"
+                + "function Read-Job($j) {\n"
+                + "  foreach ($o in $j.o.ReadAll()) { Write-Tagged $j.i 'o' $o }\n"
+                + "  foreach ($e in $j.p.Streams.Error.ReadAll()) { Write-Tagged $j.i 'e' $e }\n"
+                + "}\n"
+                + "$codes = [hashtable]::Synchronized(@{})\n");
+        sb.append("$pool = [RunspaceFactory]::CreateRunspacePool(1, ").append(concurrency).append(")\n");
+        sb.append("$pool.Open()\n"
+                + "$in = New-Object 'System.Management.Automation.PSDataCollection[psobject]'\n"
+                + "$in.Complete()\n"
+                + "$jobs = New-Object System.Collections.ArrayList\n"
+                + "for ($i = 0; $i -lt $cmds.Count; $i++) {\n"
+                + "  $p = [PowerShell]::Create()\n"
+                + "  $p.RunspacePool = $pool\n"
+                + "  [void]$p.AddScript($runner).AddArgument($cmds[$i]).AddArgument($t).AddArgument($i)"
+                + ".AddArgument($codes)\n"
+                + "  $o = New-Object 'System.Management.Automation.PSDataCollection[psobject]'\n"
+                + "  [void]$jobs.Add(@{ i = $i; p = $p; o = $o; h = $p.BeginInvoke($in, $o); done = $false })\n"
+                + "}\n"
+                + "$left = $jobs.Count\n"
+                + "while ($left -gt 0) {\n"
+                + "  foreach ($j in $jobs) {\n"
+                + "    if ($j.done) { continue }\n"
+                + "    $fin = $j.h.IsCompleted\n"
+                + "    Read-Job $j\n"
+                + "    if ($fin) {\n"
+                + "      try { [void]$j.p.EndInvoke($j.h) } catch { Write-Tagged $j.i 'e' $_; $codes[$j.i] = 1 }\n"
+                + "      Read-Job $j\n"
+                + "      $c = 1\n"
+                + "      if ($codes.ContainsKey($j.i)) { $c = $codes[$j.i] }\n"
+                + "      [Console]::Out.WriteLine($m + ' ' + $j.i + ' x ' + $c)\n"
+                + "      $j.p.Dispose()\n"
+                + "      $j.done = $true\n"
+                + "      $left--\n"
+                + "    }\n"
+                + "  }\n"
+                + "  [Console]::Out.Flush()\n");
+        sb.append("  if ($left -gt 0) { Start-Sleep -Milliseconds ").append(POLL_INTERVAL).append(" }\n");
+        sb.append("}\n"
+                + "$pool.Close()\n");
+        return sb.toString();
+    }
+
+    /**
+     * @return handler for the stdout of the script, passing the output of each command to the given handlers, with
+     * the position of the command as prefix
+     */
+    OverthereExecutionOutputHandler split(
+            final OverthereExecutionOutputHandler stdout,
+            final OverthereExecutionOutputHandler stderr
+    ) {
+        return new OverthereExecutionOutputHandler() {
+            private final StringBuilder pending = new StringBuilder();
+
+            public void handleChar(final char c) {
+                pending.append(c);
+            }
+
+            public void handleLine(final String line) {
+                final Matcher matcher = tagged.matcher(line);
+                if (!matcher.find()) {
+                    for (int i = 0; i < pending.length(); i++) {
+                        stdout.handleChar(pending.charAt(i));
+                    }
+                    pending.setLength(0);
+                    stdout.handleLine(line);
+                    return;
+                }
+                pending.setLength(0);
+                if (matcher.start() > 0) {
+                    RemoteShell.emitLine(stdout, line.substring(0, matcher.start()));
+                }
+                final int index;
+                try {
+                    index = Integer.parseInt(matcher.group(1));
+                } catch (NumberFormatException e) {
+                    return;
+                }
+                if (index >= exitCodes.length) {
+                    return;
+                }
+                final String text = matcher.group(3);
+                switch (matcher.group(2).charAt(0)) {
+                    case 'o':
+                        RemoteShell.emitLine(stdout, "[" + (index + 1) + "] " + text);
+                        break;
+                    case 'e':
+                        RemoteShell.emitLine(stderr, "[" + (index + 1) + "] " + text);
+                        break;
+                    default:
+                        record(index, text);
+                }
+            }
+        };
+    }
+
+    private synchronized void record(final int index, final String value) {
+        if (null != exitCodes[index]) {
+            return;
+        }
+        try {
+            exitCodes[index] = Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            exitCodes[index] = -1;
+        }
+        finished++;
+    }
+
+    /**
+     * @return true if any command has finished
+     */
+    boolean hasResults() {
+        return finished > 0;
+    }
+
+    /**
+     * @return exit code of all commands: that of the first failed command, or -1 if not all commands finished
+     */
+    synchronized int getResult() {
+        for (Integer code : exitCodes) {
+            if (null == code) {
+                return -1;
+            }
+            if (code != 0) {
+                return code;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Split the result of the script into the results of the commands. A command which did not finish gets the
+     * failure of the script, or a failure with exit code -1.
+     *
+     * @param result result of the script
+     *
+     * @return results of all commands, in order
+     */
+    synchronized List<NodeExecutorResult> getResults(final NodeExecutorResult result, final INodeEntry node) {
+        final List<NodeExecutorResult> results = new ArrayList<NodeExecutorResult>();
+        for (Integer code : exitCodes) {
+            if (null != code) {
+                results.add(CommandBatch.commandResult(code, node));
+            } else if (!result.isSuccess() && result.getFailureReason() != NodeStepFailureReason.NonZeroResultCode) {
+                results.add(result);
+            } else {
+                results.add(CommandBatch.commandResult(-1, node));
+            }
+        }
+        return results;
+    }
+}
@@ -0,0 +1,158 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import javax.security.auth.login.LoginException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Bounded cache of secrets read from Key Storage, entries expire after a time to live. Values are held as char
+ * arrays which are cleared when an entry is evicted. Concurrent lookups of the same missing key share a single
+ * load. An entry is invalidated when a node rejects the secret, so that a rotated password is read again.
+ */
+class CredentialCache {
+    /**
+     * HTTP 401 from the WinRM listener
+     */
+    private static final Pattern UNAUTHORIZED = Pattern.compile("HTTP response.*\\b401\\b",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private final int maxEntries;
+    private final Map<String, Entry> entries;
+    private final ConcurrentMap<String, FutureTask<String>> loading =
+            new ConcurrentHashMap<String, FutureTask<String>>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private static final class Entry {
+        private final char[] secret;
+        private final long expires;
+
+        private Entry(final char[] secret, final long expires) {
+            this.secret = secret;
+            this.expires = expires;
+        }
+    }
+
+    CredentialCache(final int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    }
+
+    /**
+     * Return the cached secret for the key, or load it and keep it for the given time.
+     *
+     * @param key    cache key
+     * @param ttl    time to live in milliseconds
+     * @param loader loads the secret when it is not cached
+     *
+     * @return the secret
+     *
+     * @throws Exception exception thrown by the loader
+     */
+    String get(final String key, final long ttl, final Callable<String> loader) throws Exception {
+        String cached = lookup(key);
+        if (null != cached) {
+            hits.incrementAndGet();
+            return cached;
+        }
+        FutureTask<String> task = new FutureTask<String>(loader);
+        FutureTask<String> existing = loading.putIfAbsent(key, task);
+        if (null != existing) {
+            hits.incrementAndGet();
+            return await(existing);
+        }
+        misses.incrementAndGet();
+        try {
+            task.run();
+            String value = await(task);
+            if (null != value) {
+                store(key, value, ttl);
+            }
+            return value;
+        } finally {
+            loading.remove(key, task);
+        }
+    }
+
+    private static String await(final FutureTask<String> task) throws Exception {
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private synchronized String lookup(final String key) {
+        Entry entry = entries.get(key);
+        if (null == entry) {
+            return null;
+        }
+        if (System.currentTimeMillis() > entry.expires) {
+            entries.remove(key);
+            Arrays.fill(entry.secret, '\0');
+            return null;
+        }
+        return new String(entry.secret);
+    }
+
+    private synchronized void store(final String key, final String value, final long ttl) {
+        Entry previous = entries.put(key, new Entry(value.toCharArray(), System.currentTimeMillis() + ttl));
+        if (null != previous) {
+            Arrays.fill(previous.secret, '\0');
+        }
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (entries.size() > maxEntries && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            iterator.remove();
+            Arrays.fill(eldest.secret, '\0');
+        }
+    }
+
+    /**
+     * @return true if the exception, or one of its causes, shows that the node or the KDC rejected the credentials
+     */
+    static boolean isAuthenticationFailure(final Throwable exception) {
+        for (Throwable t = exception; null != t; t = t.getCause() != t ? t.getCause() : null) {
+            if (t instanceof LoginException
+                    || t instanceof KerberosCredentialCheck.KerberosException
+                    || UNAUTHORIZED.matcher(String.valueOf(t.getMessage())).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remove the entry of the key, if any
+     */
+    synchronized void invalidate(final String key) {
+        Entry entry = entries.remove(key);
+        if (null != entry) {
+            Arrays.fill(entry.secret, '\0');
+        }
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    long getHitCount() {
+        return hits.get();
+    }
+
+    long getMissCount() {
+        return misses.get();
+    }
+}
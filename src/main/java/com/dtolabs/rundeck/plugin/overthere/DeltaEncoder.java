@@ -0,0 +1,195 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes the difference between new content and the existing remote file, in the manner of rsync. The remote file
+ * is described by the weak (rolling) and strong (MD5) checksums of its fixed size blocks. The new content is scanned
+ * with a rolling checksum, and every block of it which is found in the remote file is replaced by a reference to the
+ * remote block, everything else is sent as literal data.
+ */
+class DeltaEncoder {
+    private final int blockSize;
+    private final int maxLiteral;
+    private final Map<Integer, List<Block>> blocks = new HashMap<Integer, List<Block>>();
+    private final MessageDigest strong;
+
+    /**
+     * Receives the instructions to rebuild the new content
+     */
+    static interface Recipe {
+        /**
+         * Copy a block of the existing remote file
+         *
+         * @param index block index
+         */
+        void copy(long index) throws IOException;
+
+        /**
+         * Write literal data
+         */
+        void data(byte[] buffer, int offset, int length) throws IOException;
+    }
+
+    private static final class Block {
+        private final long index;
+        private final byte[] strong;
+
+        private Block(final long index, final byte[] strong) {
+            this.index = index;
+            this.strong = strong;
+        }
+    }
+
+    /**
+     * @param blockSize  size of the remote blocks
+     * @param maxLiteral maximum length of a single literal data instruction
+     */
+    DeltaEncoder(final int blockSize, final int maxLiteral) {
+        this.blockSize = blockSize;
+        this.maxLiteral = maxLiteral;
+        try {
+            this.strong = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Add the checksums of a block of the remote file, blocks shorter than the block size are ignored
+     */
+    void addBlock(final long index, final int weak, final byte[] strongSum, final int length) {
+        if (length != blockSize) {
+            return;
+        }
+        List<Block> list = blocks.get(weak);
+        if (null == list) {
+            list = new ArrayList<Block>(1);
+            blocks.put(weak, list);
+        }
+        list.add(new Block(index, strongSum));
+    }
+
+    /**
+     * @return weak checksum of the data, as used by rsync: the low 16 bits are the sum of the bytes, the high 16
+     * bits the sum of the bytes weighted by their distance to the end of the data
+     */
+    static int weak(final byte[] buffer, final int offset, final int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int x = buffer[offset + i] & 0xff;
+            a += x;
+            b += (length - i) * x;
+        }
+        return (a & 0xffff) | ((b & 0xffff) << 16);
+    }
+
+    /**
+     * Read the new content and write the recipe to rebuild it
+     *
+     * @param input   new content
+     * @param digest  updated with all of the content, may be null
+     * @param recipe  recipe receiver
+     *
+     * @return number of literal bytes written to the recipe
+     */
+    long encode(final InputStream input, final MessageDigest digest, final Recipe recipe) throws IOException {
+        final int bs = blockSize;
+        final byte[] buf = new byte[maxLiteral + 2 * bs];
+        int literalStart = 0;
+        int pos = 0;
+        int end = 0;
+        boolean eof = false;
+        boolean rolling = false;
+        int a = 0;
+        int b = 0;
+        long literal = 0;
+
+        while (true) {
+            if (pos + bs >= end && !eof) {
+                //move the pending data to the front and read more
+                if (literalStart > 0) {
+                    System.arraycopy(buf, literalStart, buf, 0, end - literalStart);
+                    pos -= literalStart;
+                    end -= literalStart;
+                    literalStart = 0;
+                }
+                int read = input.read(buf, end, buf.length - end);
+                if (read < 0) {
+                    eof = true;
+                } else if (read > 0) {
+                    if (null != digest) {
+                        digest.update(buf, end, read);
+                    }
+                    end += read;
+                }
+                continue;
+            }
+            if (pos + bs > end) {
+                break;
+            }
+            if (!rolling) {
+                int weak = weak(buf, pos, bs);
+                a = weak & 0xffff;
+                b = weak >>> 16;
+                rolling = true;
+            }
+            long match = find((a & 0xffff) | ((b & 0xffff) << 16), buf, pos);
+            if (match >= 0) {
+                if (pos > literalStart) {
+                    recipe.data(buf, literalStart, pos - literalStart);
+                    literal += pos - literalStart;
+                }
+                recipe.copy(match);
+                pos += bs;
+                literalStart = pos;
+                rolling = false;
+                continue;
+            }
+            if (pos + bs == end) {
+                //at the end of the input, the rest is sent as data
+                break;
+            }
+            int out = buf[pos] & 0xff;
+            int in = buf[pos + bs] & 0xff;
+            a = (a - out + in) & 0xffff;
+            b = (b - bs * out + a) & 0xffff;
+            pos++;
+            if (pos - literalStart >= maxLiteral) {
+                recipe.data(buf, literalStart, pos - literalStart);
+                literal += pos - literalStart;
+                literalStart = pos;
+            }
+        }
+        if (end > literalStart) {
+            recipe.data(buf, literalStart, end - literalStart);
+            literal += end - literalStart;
+        }
+        return literal;
+    }
+
+    private long find(final int weak, final byte[] buffer, final int offset) {
+        List<Block> candidates = blocks.get(weak);
+        if (null == candidates) {
+            return -1;
+        }
+        strong.reset();
+        strong.update(buffer, offset, blockSize);
+        byte[] sum = strong.digest();
+        for (Block block : candidates) {
+            if (Arrays.equals(sum, block.strong)) {
+                return block.index;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,300 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import com.xebialabs.overthere.OverthereExecutionOutputHandler;
+import org.apache.commons.codec.binary.Base64;
+
+import java.io.UnsupportedEncodingException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Handle of a command running detached on a node. The command is started through WMI Win32_Process.Create, outside
+ * of the WinRM shell, by a cmd wrapper which spools its output to a file in a directory of the user's temp directory,
+ * and writes its exit code to another file when it finishes. The job is polled with short commands which read the
+ * output written since the last poll and the state of the job.
+ */
+public final class DetachedJob {
+    private static final String MARKER = "__RD_WINRM_DETACHED__";
+    private static final String NEWLINE = "\r\n";
+    /**
+     * Written before the command line in its file, so that for /f does not skip a line starting with its end of line
+     * character, and removed again when the command is run
+     */
+    private static final String COMMAND_PREFIX = "-";
+    /**
+     * Maximum bytes of output read by one poll
+     */
+    static final int MAX_CHUNK = 262144;
+    private static final Pattern STARTED = Pattern.compile(MARKER + " (\\d+) (.+)$");
+    private static final Pattern STATUS = Pattern.compile(MARKER + " (\\d+) (running|lost|exit:(-?\\d+)) ?(\\S*)$");
+
+    private final String id;
+    private final String hostname;
+    private final int processId;
+    private final String directory;
+    private final long started;
+    private volatile long offset;
+
+    DetachedJob(
+            final String id,
+            final String hostname,
+            final int processId,
+            final String directory,
+            final long started,
+            final long offset
+    ) {
+        this.id = id;
+        this.hostname = hostname;
+        this.processId = processId;
+        this.directory = directory;
+        this.started = started;
+        this.offset = offset;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getHostname() {
+        return hostname;
+    }
+
+    public int getProcessId() {
+        return processId;
+    }
+
+    /**
+     * @return time the job was started, in milliseconds since the epoch, or 0 if the job was loaded after a restart
+     */
+    public long getStarted() {
+        return started;
+    }
+
+    String getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return bytes of output passed on so far
+     */
+    long getOffset() {
+        return offset;
+    }
+
+    void setOffset(final long offset) {
+        this.offset = offset;
+    }
+
+    /**
+     * Script which writes the wrapper of the command and starts it, and prints the process id and spool directory.
+     * The command line is not part of the wrapper: it is written to a file of its own, which the wrapper reads into a
+     * variable and removes before it runs the command, so the command does not stay on the node while the job runs.
+     * The command is run by a cmd /c of its own from that variable, so it is parsed as a command line and not as a
+     * line of a batch file, and an exit without /b ends only that cmd.
+     *
+     * @param id          job id
+     * @param commandLine command line to run
+     */
+    static String startScript(final String id, final String commandLine) {
+        final String wrapper = "@echo off" + NEWLINE
+                + "chcp 65001 >nul" + NEWLINE
+                + "set RD_WINRM_COMMAND=" + NEWLINE
+                + "for /f \"usebackq delims=\" %%a in (\"%~dp0" + id + ".line\") do set \"RD_WINRM_COMMAND=%%a\""
+                + NEWLINE
+                + "del /q \"%~dp0" + id + ".line\"" + NEWLINE
+                + "cmd /c %%RD_WINRM_COMMAND:~1%% > \"%~dp0" + id + ".out\" 2>&1" + NEWLINE
+                + ">\"%~dp0" + id + ".exit.tmp\" echo %ERRORLEVEL%" + NEWLINE
+                + "move /y \"%~dp0" + id + ".exit.tmp\" \"%~dp0" + id + ".exit\" >nul" + NEWLINE;
+        return "$d = Join-Path $env:TEMP 'rundeck-winrm'\n"
+                + "[void](New-Item -ItemType Directory -Force -Path $d)\n"
+                + "$f = Join-Path $d " + PowerShellUtil.quote(id + ".cmd") + "\n"
+                + "[IO.File]::WriteAllText((Join-Path $d " + PowerShellUtil.quote(id + ".line") + "), "
+                + PowerShellUtil.quote(COMMAND_PREFIX + commandLine) + ")\n"
+                + "[IO.File]::WriteAllText($f, " + PowerShellUtil.quote(wrapper) + ")\n"
+                + "$r = ([wmiclass]'Win32_Process').Create('cmd.exe /c \"' + $f + '\"', (Get-Location).Path)\n"
+                + "if ($r.ReturnValue -ne 0) {\n"
+                + "  Remove-Item -Path (Join-Path $d " + PowerShellUtil.quote(id + ".*") + ") -Force\n"
+                + "  [Console]::Error.WriteLine('Win32_Process.Create failed: ' + $r.ReturnValue)\n"
+                + "  exit 1\n"
+                + "}\n"
+                + "[Console]::Out.WriteLine('" + MARKER + " ' + $r.ProcessId + ' ' + $d)\n";
+    }
+
+    /**
+     * @return the job described by the output line of the start script, or null if it is not that line
+     */
+    static DetachedJob parseStarted(final String id, final String hostname, final String line) {
+        final Matcher matcher = STARTED.matcher(line);
+        if (!matcher.find()) {
+            return null;
+        }
+        try {
+            return new DetachedJob(id, hostname, Integer.parseInt(matcher.group(1)), matcher.group(2).trim(),
+                    System.currentTimeMillis(), 0);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Script which prints the output written since the offset, in base64, and the state of the job. Unless the job
+     * has finished and all output has been read, the output ends at the last complete line.
+     */
+    String pollScript() {
+        return "$d = " + PowerShellUtil.quote(directory) + "\n"
+                + "$o = Join-Path $d " + PowerShellUtil.quote(id + ".out") + "\n"
+                + "$x = Join-Path $d " + PowerShellUtil.quote(id + ".exit") + "\n"
+                + "$n = " + offset + "\n"
+                + "$alive = $null -ne (Get-Process -Id " + processId + " -ErrorAction SilentlyContinue)\n"
+                + "$st = 'running'\n"
+                + "if (Test-Path -LiteralPath $x) { $st = 'exit:' + [IO.File]::ReadAllText($x).Trim() }\n"
+                + "elseif (-not $alive) { $st = 'lost' }\n"
+                + "$b = New-Object byte[] " + MAX_CHUNK + "\n"
+                + "$k = 0\n"
+                + "$more = $false\n"
+                + "if (Test-Path -LiteralPath $o) {\n"
+                + "  $s = New-Object IO.FileStream($o, [IO.FileMode]::Open, [IO.FileAccess]::Read,"
+                + " [IO.FileShare]'ReadWrite, Delete')\n"
+                + "  try {\n"
+                + "    if ($s.Length -gt $n) {\n"
+                + "      [void]$s.Seek($n, [IO.SeekOrigin]::Begin)\n"
+                + "      $k = $s.Read($b, 0, $b.Length)\n"
+                + "      $more = $n + $k -lt $s.Length\n"
+                + "    }\n"
+                + "  } finally {\n"
+                + "    $s.Close()\n"
+                + "  }\n"
+                + "}\n"
+                + "if ($more -or $st -eq 'running') {\n"
+                + "  $st = 'running'\n"
+                + "  if ($k -gt 0) {\n"
+                + "    $e = [Array]::LastIndexOf($b, [byte]10, $k - 1)\n"
+                + "    if ($e -ge 0) { $k = $e + 1 } elseif ($k -lt $b.Length) { $k = 0 }\n"
+                + "  }\n"
+                + "}\n"
+                + "[Console]::Out.WriteLine('" + MARKER + " ' + ($n + $k) + ' ' + $st + ' '"
+                + " + [Convert]::ToBase64String($b, 0, $k))\n";
+    }
+
+    /**
+     * Script which removes the files of the job
+     *
+     * @param kill true to end the process of the job and its children first
+     */
+    String cleanupScript(final boolean kill) {
+        final StringBuilder sb = new StringBuilder();
+        if (kill) {
+            sb.append("& taskkill.exe /T /F /PID ").append(processId).append(" 2>&1 | Out-Null\n");
+            sb.append("Start-Sleep -Seconds 1\n");
+        }
+        sb.append("Remove-Item -Path (Join-Path ").append(PowerShellUtil.quote(directory)).append(' ')
+                .append(PowerShellUtil.quote(id + ".*")).append(") -Force -ErrorAction SilentlyContinue\n");
+        return sb.toString();
+    }
+
+    /**
+     * State of the job from a poll
+     */
+    static final class Status {
+        private final long offset;
+        private final boolean finished;
+        private final int exitCode;
+        private final String output;
+
+        private Status(final long offset, final boolean finished, final int exitCode, final String output) {
+            this.offset = offset;
+            this.finished = finished;
+            this.exitCode = exitCode;
+            this.output = output;
+        }
+
+        /**
+         * @return offset of the output after this poll
+         */
+        long getOffset() {
+            return offset;
+        }
+
+        boolean isFinished() {
+            return finished;
+        }
+
+        /**
+         * @return exit code of the job, or -1 if its process ended without one
+         */
+        int getExitCode() {
+            return exitCode;
+        }
+
+        /**
+         * @return output since the previous poll
+         */
+        String getOutput() {
+            return output;
+        }
+    }
+
+    /**
+     * @return the status in the output line of the poll script, or null if it is not that line
+     */
+    static Status parseStatus(final String line) {
+        final Matcher matcher = STATUS.matcher(line);
+        if (!matcher.find()) {
+            return null;
+        }
+        final String output;
+        try {
+            output = new String(Base64.decodeBase64(matcher.group(4)), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        final String state = matcher.group(2);
+        try {
+            final long offset = Long.parseLong(matcher.group(1));
+            if ("running".equals(state)) {
+                return new Status(offset, false, 0, output);
+            } else if ("lost".equals(state)) {
+                return new Status(offset, true, -1, output);
+            }
+            return new Status(offset, true, Integer.parseInt(matcher.group(3)), output);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Handler keeping the line of a detached job script with the marker, other output is passed on
+     */
+    static final class Reply implements OverthereExecutionOutputHandler {
+        private final OverthereExecutionOutputHandler handler;
+        private final StringBuilder pending = new StringBuilder();
+        private volatile String line;
+
+        Reply(final OverthereExecutionOutputHandler handler) {
+            this.handler = handler;
+        }
+
+        public void handleChar(final char c) {
+            pending.append(c);
+        }
+
+        public void handleLine(final String line) {
+            if (line.contains(MARKER)) {
+                this.line = line;
+            } else {
+                for (int i = 0; i < pending.length(); i++) {
+                    handler.handleChar(pending.charAt(i));
+                }
+                handler.handleLine(line);
+            }
+            pending.setLength(0);
+        }
+
+        /**
+         * @return the line with the marker, or null
+         */
+        String getLine() {
+            return line;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Detached jobs which are running, and the scheduler polling them. Jobs are saved to a properties file when they are
+ * started or finished, and their output offsets periodically, so that the jobs can be attached to again after a
+ * restart. Only what is needed to poll a job is saved: its host, process id, spool directory and output offset. The
+ * command is not saved, as it may contain secure option values. The polls run on a few shared daemon threads, apart
+ * from the housekeeping scheduler, as each poll is a WinRM round trip.
+ */
+class DetachedJobs {
+    private static final int POLL_THREADS = 4;
+    private static final long SAVE_INTERVAL = 60000;
+
+    private final ConcurrentMap<String, DetachedJob> jobs = new ConcurrentHashMap<String, DetachedJob>();
+    private final AtomicBoolean dirty = new AtomicBoolean();
+    private File file;
+    private ScheduledExecutorService poller;
+
+    /**
+     * Load the jobs saved in the file and save them there from now on, only the first file given is used
+     */
+    synchronized void load(final File file) {
+        if (null != this.file) {
+            return;
+        }
+        this.file = file;
+        if (file.isFile()) {
+            final Properties properties = new Properties();
+            InputStream input = null;
+            try {
+                input = new FileInputStream(file);
+                properties.load(input);
+            } catch (IOException e) {
+                //start without saved jobs
+            } finally {
+                closeQuietly(input);
+            }
+            for (String name : properties.stringPropertyNames()) {
+                if (name.endsWith(".host")) {
+                    final DetachedJob job = parse(name.substring(0, name.length() - ".host".length()), properties);
+                    if (null != job) {
+                        jobs.putIfAbsent(job.getId(), job);
+                    }
+                }
+            }
+        }
+        WinRMScheduler.get().scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                save();
+            }
+        }, SAVE_INTERVAL, SAVE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    private static DetachedJob parse(final String id, final Properties properties) {
+        try {
+            return new DetachedJob(id,
+                    properties.getProperty(id + ".host"),
+                    Integer.parseInt(properties.getProperty(id + ".pid")),
+                    properties.getProperty(id + ".dir"),
+                    0,
+                    Long.parseLong(properties.getProperty(id + ".offset", "0")));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Track a job which was started, it is saved at once
+     */
+    void add(final DetachedJob job) {
+        jobs.put(job.getId(), job);
+        dirty.set(true);
+        save();
+    }
+
+    /**
+     * Stop tracking a job which finished, it is removed from the file at once
+     */
+    void remove(final DetachedJob job) {
+        if (null != jobs.remove(job.getId())) {
+            dirty.set(true);
+            save();
+        }
+    }
+
+    /**
+     * Note that the output offset of a job changed, it is saved with the next periodic save
+     */
+    void updated() {
+        dirty.set(true);
+    }
+
+    DetachedJob get(final String id) {
+        return jobs.get(id);
+    }
+
+    /**
+     * @return the jobs tracked for the host
+     */
+    List<DetachedJob> forHost(final String hostname) {
+        final List<DetachedJob> found = new ArrayList<DetachedJob>();
+        for (DetachedJob job : jobs.values()) {
+            if (job.getHostname().equals(hostname)) {
+                found.add(job);
+            }
+        }
+        return found;
+    }
+
+    int size() {
+        return jobs.size();
+    }
+
+    /**
+     * @return the scheduler for polls of the jobs
+     */
+    synchronized ScheduledExecutorService getPoller() {
+        if (null == poller) {
+            poller = Executors.newScheduledThreadPool(POLL_THREADS,
+                    WinRMScheduler.daemonThreadFactory("winrm-detached"));
+        }
+        return poller;
+    }
+
+    /**
+     * Write the jobs to the file if they changed, the file is replaced atomically where possible
+     */
+    synchronized void save() {
+        if (null == file || !dirty.getAndSet(false)) {
+            return;
+        }
+        final Properties properties = new Properties();
+        for (DetachedJob job : jobs.values()) {
+            final String id = job.getId();
+            properties.setProperty(id + ".host", job.getHostname());
+            properties.setProperty(id + ".pid", Integer.toString(job.getProcessId()));
+            properties.setProperty(id + ".dir", job.getDirectory());
+            properties.setProperty(id + ".offset", Long.toString(job.getOffset()));
+        }
+        final File tmp = new File(file.getPath() + ".tmp");
+        OutputStream output = null;
+        try {
+            if (null != file.getParentFile()) {
+                file.getParentFile().mkdirs();
+            }
+            output = new FileOutputStream(tmp);
+            properties.store(output, "WinRM detached jobs");
+            output.close();
+            output = null;
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                if (!tmp.renameTo(file)) {
+                    dirty.set(true);
+                }
+            }
+        } catch (IOException e) {
+            dirty.set(true);
+        } finally {
+            closeQuietly(output);
+        }
+    }
+
+    private static void closeQuietly(final Closeable closeable) {
+        if (null != closeable) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                //ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import com.xebialabs.overthere.CmdLine;
+import com.xebialabs.overthere.OperatingSystemFamily;
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.OverthereExecutionOutputHandler;
+import org.apache.commons.codec.binary.Base64;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Runs a PowerShell command passed with -EncodedCommand, so that it is not escaped or interpreted by cmd.exe. A
+ * command which would make the command line longer than cmd.exe allows is sent through stdin instead, in base64
+ * lines read by a small loader script, so that long inline scripts still run with a single process.
+ */
+class EncodedPowerShellCommand {
+    /**
+     * Maximum length of a command line for cmd.exe
+     */
+    static final int MAX_COMMAND_LINE = 8191;
+    private static final int LINE_LENGTH = 65536;
+    private static final String NEWLINE = "\r\n";
+
+    private final String script;
+
+    EncodedPowerShellCommand(final String script) {
+        this.script = script;
+    }
+
+    /**
+     * @return the command joined into a script, arguments are separated by a space and used as they are
+     */
+    static EncodedPowerShellCommand of(final String[] command) {
+        final StringBuilder sb = new StringBuilder();
+        for (String s : command) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(s);
+        }
+        return new EncodedPowerShellCommand(sb.toString());
+    }
+
+    String getScript() {
+        return script;
+    }
+
+    /**
+     * @return the command line which runs the script directly, or null if it is too long for cmd.exe
+     */
+    CmdLine getCommandLine() {
+        final CmdLine cmdLine = PowerShellUtil.encodedCommandLine(script);
+        if (cmdLine.toCommandLine(OperatingSystemFamily.WINDOWS, false).length() > MAX_COMMAND_LINE) {
+            return null;
+        }
+        return cmdLine;
+    }
+
+    /**
+     * PowerShell script which reads the base64 of the UTF-8 script from stdin until a "." line, and runs it. The exit
+     * code is that of the last native command, or 1 if the script failed.
+     */
+    static String loaderScript() {
+        return "$sb = New-Object Text.StringBuilder\n"
+                + "while ($true) {\n"
+                + "  $l = [Console]::In.ReadLine()\n"
+                + "  if ($l -eq $null -or $l -eq '.') { break }\n"
+                + "  [void]$sb.Append($l)\n"
+                + "}\n"
+                + "$c = 0\n"
+                + "$global:LASTEXITCODE = $null\n"
+                + "try {\n"
+                + "  $s = [ScriptBlock]::Create([Text.Encoding]::UTF8.GetString("
+                + "[Convert]::FromBase64String($sb.ToString())))\n"
+                + "  & $s | Out-Default\n"
+                + "  if (-not $?) { $c = 1 }\n"
+                + "} catch {\n"
+                + "  [Console]::Error.WriteLine($_.ToString())\n"
+                + "  $c = 1\n"
+                + "}\n"
+                + "if ($LASTEXITCODE) { $c = $LASTEXITCODE }\n"
+                + "exit $c\n";
+    }
+
+    /**
+     * Run the command on the connection
+     *
+     * @param started run once the command was sent
+     *
+     * @return exit code
+     */
+    int execute(
+            final OverthereConnection connection,
+            final OverthereExecutionOutputHandler stdoutHandler,
+            final OverthereExecutionOutputHandler stderrHandler,
+            final Runnable started
+    ) {
+        final CmdLine cmdLine = getCommandLine();
+        if (null != cmdLine) {
+            return RemoteProcess.run(connection, cmdLine, null, stdoutHandler, stderrHandler, started);
+        }
+        return RemoteProcess.run(connection, PowerShellUtil.encodedCommandLine(loaderScript()), stdinText(),
+                stdoutHandler, stderrHandler, started);
+    }
+
+    /**
+     * Run the command on the connection
+     *
+     * @return exit code
+     */
+    int execute(
+            final OverthereConnection connection,
+            final OverthereExecutionOutputHandler stdoutHandler,
+            final OverthereExecutionOutputHandler stderrHandler
+    ) {
+        return execute(connection, stdoutHandler, stderrHandler, new Runnable() {
+            public void run() {
+            }
+        });
+    }
+
+    /**
+     * @return base64 of the UTF-8 script in lines, followed by the "." line read by the loader script
+     */
+    private String stdinText() {
+        final String encoded;
+        try {
+            encoded = Base64.encodeBase64String(script.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < encoded.length(); i += LINE_LENGTH) {
+            sb.append(encoded, i, Math.min(i + LINE_LENGTH, encoded.length()));
+            sb.append(NEWLINE);
+        }
+        return sb.append('.').append(NEWLINE).toString();
+    }
+}
@@ -0,0 +1,137 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import com.dtolabs.rundeck.core.execution.ExecutionListener;
+import com.xebialabs.overthere.OverthereExecutionOutputHandler;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sends remote output to the {@link ExecutionListener} of the node, instead of writing it to System.out/System.err.
+ * Characters are collected into lines in a reused buffer, and complete lines are passed to the listener in batches:
+ * when the pending output exceeds the batch size, when the flush interval has passed since the last flush, or when
+ * the handler is closed. The interval is kept by a timer thread of the handler, which {@link #start()} must be called
+ * from the step thread to create: the timer thread inherits the context of the execution bound to the step thread,
+ * so output it passes on is logged to the same execution.
+ */
+class ExecutionListenerOutputHandler implements OverthereExecutionOutputHandler, Closeable {
+    private final ExecutionListener listener;
+    private final int level;
+    private final int batchSize;
+    private final long flushInterval;
+    private final StringBuilder line = new StringBuilder(256);
+    private final List<String> pending = new ArrayList<String>();
+    private int pendingSize;
+    private long lastFlush;
+    private boolean closed;
+
+    /**
+     * @param listener      listener to log to
+     * @param level         log level of the output
+     * @param batchSize     number of characters to collect before passing them to the listener
+     * @param flushInterval time in milliseconds after which a new line flushes the batch, 0 to only flush by size
+     */
+    ExecutionListenerOutputHandler(
+            final ExecutionListener listener,
+            final int level,
+            final int batchSize,
+            final long flushInterval
+    ) {
+        this.listener = listener;
+        this.level = level;
+        this.batchSize = batchSize;
+        this.flushInterval = flushInterval;
+        this.lastFlush = System.currentTimeMillis();
+    }
+
+    /**
+     * Start the timer thread flushing pending lines after the flush interval, if there is one. Must be called from
+     * the thread the execution context is bound to.
+     */
+    void start() {
+        if (flushInterval <= 0) {
+            return;
+        }
+        final Thread timer = new Thread(new Runnable() {
+            public void run() {
+                flushOnInterval();
+            }
+        }, "winrm-output-flush");
+        timer.setDaemon(true);
+        timer.start();
+    }
+
+    private synchronized void flushOnInterval() {
+        try {
+            while (!closed) {
+                if (pending.isEmpty()) {
+                    wait();
+                    continue;
+                }
+                final long remaining = lastFlush + flushInterval - System.currentTimeMillis();
+                if (remaining > 0) {
+                    wait(remaining);
+                } else {
+                    flush();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public synchronized void handleChar(final char c) {
+        if (c == '\n') {
+            int length = line.length();
+            if (length > 0 && line.charAt(length - 1) == '\r') {
+                line.setLength(length - 1);
+            }
+            addLine(line.toString());
+            line.setLength(0);
+        } else {
+            line.append(c);
+        }
+    }
+
+    public void handleLine(final String line) {
+        //lines are assembled from the characters passed to handleChar
+    }
+
+    private void addLine(final String text) {
+        if (pending.isEmpty()) {
+            notifyAll();
+        }
+        pending.add(text);
+        pendingSize += text.length() + 1;
+        if (pendingSize >= batchSize
+                || flushInterval > 0 && System.currentTimeMillis() - lastFlush >= flushInterval) {
+            flush();
+        }
+    }
+
+    /**
+     * Pass all pending lines to the listener
+     */
+    synchronized void flush() {
+        for (String text : pending) {
+            listener.log(level, text);
+        }
+        pending.clear();
+        pendingSize = 0;
+        lastFlush = System.currentTimeMillis();
+    }
+
+    /**
+     * Flush all output including an incomplete last line, and stop the timer thread
+     */
+    public synchronized void close() {
+        if (line.length() > 0) {
+            addLine(line.toString());
+            line.setLength(0);
+        }
+        flush();
+        closed = true;
+        notifyAll();
+    }
+}
@@ -0,0 +1,238 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import org.apache.commons.codec.binary.Hex;
+
+import javax.security.auth.Subject;
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.callback.PasswordCallback;
+import javax.security.auth.callback.UnsupportedCallbackException;
+import javax.security.auth.kerberos.KerberosTicket;
+import javax.security.auth.login.AppConfigurationEntry;
+import javax.security.auth.login.Configuration;
+import javax.security.auth.login.LoginContext;
+import javax.security.auth.login.LoginException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Opt-in fail-fast check of Kerberos credentials before connecting, shared by all node threads. A principal and
+ * password are checked with a login to the KDC once per ticket lifetime, and a failed check is remembered for a short
+ * time, so that a wrong password fails every node at once without each node trying it against the KDC (and locking
+ * the account).
+ *
+ * This is not a ticket cache: the login is discarded once checked. Overthere 5.0.2 runs its own JAAS login and
+ * security context for each WS-Man request and cannot be given a Subject or ticket from outside, so the check costs
+ * one extra KDC login per principal and ticket lifetime. Only the outcome of at most a fixed number of checks is kept,
+ * the least recently used is dropped first, and the logins of one principal are serialized by a fixed set of lock
+ * stripes.
+ */
+class KerberosCredentialCheck {
+    static final long RENEW_MARGIN = 5 * 60 * 1000L;
+    static final long FAILURE_TTL = 30 * 1000L;
+    static final long DEFAULT_LIFETIME = 60 * 60 * 1000L;
+    private static final int STRIPES = 32;
+    private static final String KRB5_LOGIN_MODULE = "com.sun.security.auth.module.Krb5LoginModule";
+
+    /**
+     * Kerberos authentication failed
+     */
+    static class KerberosException extends Exception {
+        KerberosException(final String message, final Throwable cause) {
+            super(message, cause);
+        }
+
+        KerberosException(final String message) {
+            super(message);
+        }
+    }
+
+    private static final class Login {
+        private final long expires;
+        private final String failure;
+
+        private Login(final long expires, final String failure) {
+            this.expires = expires;
+            this.failure = failure;
+        }
+    }
+
+    private final Map<String, Login> logins;
+    private final Object[] locks = new Object[STRIPES];
+    private final AtomicLong kdcLogins = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * @param maxEntries number of checked principal and password pairs to remember
+     */
+    KerberosCredentialCheck(final int maxEntries) {
+        this.logins = new LinkedHashMap<String, Login>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(final Map.Entry<String, Login> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Check the password of the principal with a login to the KDC, unless the same pair was checked within the
+     * ticket lifetime, or failed within the last {@link #FAILURE_TTL}
+     *
+     * @param principal user@REALM
+     * @param password  password
+     * @param debug     enable Krb5LoginModule debug output
+     *
+     * @throws KerberosException if the KDC rejects the credentials
+     */
+    void check(final String principal, final String password, final boolean debug) throws KerberosException {
+        login(principal + "#" + digest(password), principal, password, debug);
+    }
+
+    private static String digest(final String password) {
+        try {
+            return Hex.encodeHexString(MessageDigest.getInstance("SHA-256").digest(password.getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Login login(final String key, final String principal, final String password, final boolean debug)
+            throws KerberosException {
+        Login login = lookup(key);
+        if (null != login) {
+            hits.incrementAndGet();
+            return result(login);
+        }
+        synchronized (locks[(key.hashCode() & 0x7fffffff) % STRIPES]) {
+            login = lookup(key);
+            if (null != login) {
+                hits.incrementAndGet();
+                return result(login);
+            }
+            final long now = System.currentTimeMillis();
+            kdcLogins.incrementAndGet();
+            try {
+                LoginContext context = new LoginContext("", null, new PasswordHandler(principal, password),
+                        new Krb5Configuration(debug));
+                context.login();
+                login = new Login(renewAt(context.getSubject(), now), null);
+            } catch (LoginException e) {
+                login = new Login(now + FAILURE_TTL,
+                        "Kerberos login failed for " + principal + ": " + e.getMessage());
+            }
+            store(key, login);
+            return result(login);
+        }
+    }
+
+    /**
+     * @return the unexpired outcome of the check of the key, or null
+     */
+    private Login lookup(final String key) {
+        synchronized (logins) {
+            final Login login = logins.get(key);
+            if (null != login && System.currentTimeMillis() >= login.expires) {
+                logins.remove(key);
+                return null;
+            }
+            return login;
+        }
+    }
+
+    private void store(final String key, final Login login) {
+        synchronized (logins) {
+            logins.put(key, login);
+        }
+    }
+
+    private static Login result(final Login login) throws KerberosException {
+        if (null != login.failure) {
+            throw new KerberosException(login.failure);
+        }
+        return login;
+    }
+
+    /**
+     * @return time at which a login should be renewed, a little before its TGT expires
+     */
+    private static long renewAt(final Subject subject, final long now) {
+        long end = now + DEFAULT_LIFETIME;
+        for (KerberosTicket ticket : subject.getPrivateCredentials(KerberosTicket.class)) {
+            if (ticket.getServer().getName().startsWith("krbtgt/")) {
+                Date endTime = ticket.getEndTime();
+                if (null != endTime) {
+                    end = endTime.getTime();
+                }
+            }
+        }
+        return Math.max(now, end - RENEW_MARGIN);
+    }
+
+    int size() {
+        synchronized (logins) {
+            return logins.size();
+        }
+    }
+
+    long getLoginCount() {
+        return kdcLogins.get();
+    }
+
+    long getHitCount() {
+        return hits.get();
+    }
+
+    private static final class PasswordHandler implements CallbackHandler {
+        private final String principal;
+        private final String password;
+
+        private PasswordHandler(final String principal, final String password) {
+            this.principal = principal;
+            this.password = password;
+        }
+
+        public void handle(final Callback[] callbacks) throws UnsupportedCallbackException {
+            for (Callback callback : callbacks) {
+                if (callback instanceof NameCallback) {
+                    ((NameCallback) callback).setName(principal);
+                } else if (callback instanceof PasswordCallback) {
+                    ((PasswordCallback) callback).setPassword(password.toCharArray());
+                } else {
+                    throw new UnsupportedCallbackException(callback);
+                }
+            }
+        }
+    }
+
+    private static final class Krb5Configuration extends Configuration {
+        private final boolean debug;
+
+        private Krb5Configuration(final boolean debug) {
+            this.debug = debug;
+        }
+
+        @Override
+        public AppConfigurationEntry[] getAppConfigurationEntry(final String name) {
+            Map<String, String> options = new HashMap<String, String>();
+            options.put("client", "true");
+            options.put("useTicketCache", "false");
+            options.put("doNotPrompt", "false");
+            options.put("debug", Boolean.toString(debug));
+            return new AppConfigurationEntry[]{
+                    new AppConfigurationEntry(KRB5_LOGIN_MODULE,
+                            AppConfigurationEntry.LoginModuleControlFlag.REQUIRED, options)
+            };
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+/**
+ * Histogram of latencies in milliseconds with logarithmic buckets, each bucket is 25% wider than the previous one.
+ * It is rolling: once a number of samples has been recorded all counts are halved, so that old samples fade out.
+ */
+class LatencyHistogram {
+    private static final double GROWTH = 1.25;
+    private static final int BUCKETS = 64;
+    private static final long[] BOUNDS = new long[BUCKETS];
+
+    static {
+        double bound = 1;
+        for (int i = 0; i < BUCKETS; i++) {
+            BOUNDS[i] = (long) Math.ceil(bound);
+            bound *= GROWTH;
+        }
+    }
+
+    private final long[] counts = new long[BUCKETS];
+    private final long decayAfter;
+    private long total;
+
+    /**
+     * @param decayAfter number of samples after which the counts are halved
+     */
+    LatencyHistogram(final long decayAfter) {
+        this.decayAfter = decayAfter;
+    }
+
+    private static int bucket(final long millis) {
+        for (int i = 0; i < BUCKETS; i++) {
+            if (millis <= BOUNDS[i]) {
+                return i;
+            }
+        }
+        return BUCKETS - 1;
+    }
+
+    synchronized void record(final long millis) {
+        counts[bucket(Math.max(0, millis))]++;
+        total++;
+        if (total >= decayAfter) {
+            total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] /= 2;
+                total += counts[i];
+            }
+        }
+    }
+
+    synchronized long getCount() {
+        return total;
+    }
+
+    /**
+     * @param percentile percentile between 0 and 100
+     *
+     * @return upper bound in milliseconds of the bucket holding the percentile, or -1 if there are no samples
+     */
+    synchronized long percentile(final double percentile) {
+        if (total == 0) {
+            return -1;
+        }
+        final long rank = (long) Math.ceil(percentile / 100.0 * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return BOUNDS[i];
+            }
+        }
+        return BOUNDS[BUCKETS - 1];
+    }
+
+    /**
+     * @return the counts as comma separated values, for {@link #parse(String, long)}
+     */
+    synchronized String format() {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < BUCKETS; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(counts[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return histogram with the counts of {@link #format()}, or null if the value is not valid
+     */
+    static LatencyHistogram parse(final String value, final long decayAfter) {
+        final String[] values = value.split(",");
+        if (values.length != BUCKETS) {
+            return null;
+        }
+        final LatencyHistogram histogram = new LatencyHistogram(decayAfter);
+        try {
+            for (int i = 0; i < BUCKETS; i++) {
+                histogram.counts[i] = Math.max(0, Long.parseLong(values[i].trim()));
+                histogram.total += histogram.counts[i];
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return histogram;
+    }
+}
@@ -16,13 +16,15 @@ import com.xebialabs.overthere.ConnectionOptions;
 import com.xebialabs.overthere.OverthereConnection;
 import com.xebialabs.overthere.OverthereFile;
 import com.xebialabs.overthere.RuntimeIOException;
+import com.xebialabs.overthere.cifs.CifsConnectionBuilder;
 import com.xebialabs.overthere.smb.SmbConnectionBuilder;
 import com.xebialabs.overthere.winrm.WinRmRuntimeIOException;
-import com.xebialabs.overthere.util.DefaultAddressPortMapper;
 import org.apache.commons.compress.utils.IOUtils;
 
 import java.io.*;
 
+import static com.xebialabs.overthere.ConnectionOptions.TEMPORARY_DIRECTORY_PATH;
+
 /**
  * Executes a command via WinRM. Subclass to extend, there are places to alter the generation of user@realm, and to
  * alter the password resolution mechanism.
@@ -48,6 +50,15 @@ public class OTWinRMFileCopier extends OTWinRMPlugin implements DestinationFileC
     }
 
 
+    /**
+     * Pooled SMB connections hold an authenticated session, check that it still works before reusing it
+     */
+    static final WinRMConnectionPool.HealthCheck SMB_HEALTH_CHECK = new WinRMConnectionPool.HealthCheck() {
+        public boolean isHealthy(final OverthereConnection connection) {
+            return connection.getFile(DEFAULT_TEMP_DIRECTORY).exists();
+        }
+    };
+
     public String buildErrorMessage(ExecutionContext context, Exception ex, String logprompt) {
         String message = null;
         if (context.getLoglevel() > 2) {
@@ -60,6 +71,48 @@ public class OTWinRMFileCopier extends OTWinRMPlugin implements DestinationFileC
         return message;
     }
 
+    /**
+     * Convert a failure of the connection, and note whether the node could be reached for the circuit breaker
+     */
+    private FileCopierException copyFailure(
+            final ExecutionContext context,
+            final RuntimeIOException re,
+            final CopySettings settings
+    ) {
+        settings.reachable = !CircuitBreaker.isConnectionFailure(re);
+        passwordFailed(settings.passwordCacheKey, re);
+        final FailureReason reason;
+        if (re instanceof WinRmRuntimeIOException) {
+            reason = Reason.WinRMProtocolError;
+        } else {
+            reason = StepFailureReason.IOFailure;
+        }
+        return new FileCopierException(buildErrorMessage(context, re, settings.logprompt), reason, re);
+    }
+
+    /**
+     * Fail immediately if the circuit breaker of the node is open, the failure is counted by the caller
+     */
+    private void checkCircuit(final ExecutionContext context, final CopySettings settings)
+            throws FileCopierException {
+        try {
+            CIRCUIT_BREAKER.check(settings.host, settings.circuitBreaker);
+        } catch (CircuitBreaker.OpenException e) {
+            context.getExecutionListener().log(Constants.ERR_LEVEL, settings.logprompt + "failed: " + e.getMessage());
+            throw new FileCopierException(e.getMessage(), Reason.CircuitOpen);
+        }
+    }
+
+    /**
+     * Record the outcome of the copy with the circuit breaker, if the copy was admitted and passed the circuit check.
+     * A copy which timed out waiting for admission never tried to reach the node.
+     */
+    private static void recordCircuit(final CopySettings settings) {
+        if (settings.circuitChecked) {
+            CIRCUIT_BREAKER.record(settings.host, settings.circuitBreaker, settings.reachable);
+        }
+    }
+
     private static void close(Closeable c) throws FileCopierException {
         try {
             c.close();
@@ -68,10 +121,91 @@ public class OTWinRMFileCopier extends OTWinRMPlugin implements DestinationFileC
         }
     }
 
-    @Override
-    public String copyFileStream(ExecutionContext context, InputStream inputStream, INodeEntry node, String destination) throws FileCopierException {
-        ConnectionOptions options = null;
-        String logprompt = "[" + SERVICE_PROVIDER_TYPE + ":" + node.extractHostname() + "] ";
+    /**
+     * Stream of a local file passed by {@link #copyFile(ExecutionContext, File, INodeEntry, String)}, which keeps the
+     * file so that it can be uploaded in ranges, and can be rewound by its file position for a retry
+     */
+    private static final class LocalFileStream extends FileInputStream {
+        private final File file;
+        private long mark = -1;
+
+        private LocalFileStream(final File file) throws FileNotFoundException {
+            super(file);
+            this.file = file;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(final int readlimit) {
+            try {
+                mark = getChannel().position();
+            } catch (IOException e) {
+                mark = -1;
+            }
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            if (mark < 0) {
+                throw new IOException("mark not set");
+            }
+            getChannel().position(mark);
+        }
+    }
+
+    /**
+     * Stream of a script passed by {@link #copyScriptContent(ExecutionContext, String, INodeEntry, String)}, which
+     * keeps the content so that the script can be looked up in the script cache on the node
+     */
+    private static final class ScriptStream extends ByteArrayInputStream {
+        private final byte[] content;
+
+        private ScriptStream(final byte[] content) {
+            super(content);
+            this.content = content;
+        }
+    }
+
+    /**
+     * Resolved settings for one copy to a node
+     */
+    private static final class CopySettings {
+        private final String logprompt;
+        private final String host;
+        private boolean reachable = true;
+        private boolean circuitChecked;
+        private CircuitBreaker.Settings circuitBreaker = CircuitBreaker.Settings.DISABLED;
+        private RetryPolicy.Settings retry = RetryPolicy.Settings.DISABLED;
+        private AdmissionControl.Settings admission = AdmissionControl.Settings.DISABLED;
+        private ConnectionOptions options;
+        private String passwordCacheKey;
+        private WinRMConnectionPool.Settings poolSettings;
+        private boolean winrmTransfer;
+        private int chunkSize;
+        private int parallelism;
+        private long parallelThreshold;
+        private boolean delta;
+        private int blockSize;
+        private boolean scriptCache;
+        private String scriptCacheDir;
+        private long scriptCacheMaxSize;
+        private WinRMMetrics.NodeMetrics metrics;
+
+        private CopySettings(final String logprompt, final String host) {
+            this.logprompt = logprompt;
+            this.host = host;
+        }
+    }
+
+    private CopySettings configure(final ExecutionContext context, final INodeEntry node) throws FileCopierException {
+        final CopySettings settings = new CopySettings(
+                "[" + SERVICE_PROVIDER_TYPE + ":" + node.extractHostname() + "] ", node.extractHostname());
+        final String logprompt = settings.logprompt;
+        boolean credentialCheck;
 
         if (null == context.getExecutionListener()) {
             System.out.println(logprompt + " Bad plugin context!  NULL ExecutionListener");
@@ -79,63 +213,346 @@ public class OTWinRMFileCopier extends OTWinRMPlugin implements DestinationFileC
 
         context.getExecutionListener().log(Constants.VERBOSE_LEVEL, logprompt);
 
+        final WinRMMetrics.NodeMetrics metrics = getMetrics(context, node);
+        settings.metrics = metrics;
+        final long start = metrics.start();
         try {
-            ConnectionOptionsBuilder builder = new ConnectionOptionsBuilder(context, node, framework);
+            ConnectionOptionsBuilder builder = new ConnectionOptionsBuilder(context, node, framework,
+                    getProjectConfig(context));
+            builder.setMetrics(metrics);
             ConnectionOptions protoOptions = builder.build();
-            protoOptions.set(FILE_COPY_DESTINATION_DIR, resolveProperty(FILE_COPY_DESTINATION_DIR, null, builder.getNode(), builder.getFrameworkProject(), builder.getFramework()));
-            options = willUseConnectionOptions(protoOptions);
+            protoOptions.set(FILE_COPY_DESTINATION_DIR, builder.resolve(FILE_COPY_DESTINATION_DIR, null));
+            settings.poolSettings = builder.getPoolSettings();
+            settings.circuitBreaker = builder.getCircuitBreakerSettings();
+            settings.retry = builder.getRetrySettings();
+            settings.admission = builder.getAdmissionSettings();
+            credentialCheck = builder.isKerberosCredentialCheck();
+            settings.winrmTransfer = builder.isWinRMFileCopy();
+            settings.chunkSize = builder.getFileCopyChunkSize();
+            settings.parallelism = builder.getFileCopyParallelism();
+            settings.parallelThreshold = builder.getFileCopyParallelThreshold();
+            settings.delta = builder.isFileCopyDelta();
+            settings.blockSize = builder.getFileCopyBlockSize();
+            settings.scriptCache = builder.isScriptCache();
+            settings.scriptCacheDir = builder.getScriptCacheDir();
+            settings.scriptCacheMaxSize = builder.getScriptCacheMaxSize();
+            settings.options = willUseConnectionOptions(protoOptions);
+            settings.passwordCacheKey = builder.getPasswordCacheKey();
         } catch (ConfigurationException e) {
             context.getExecutionListener().log(Constants.ERR_LEVEL, logprompt + e.getMessage());
+            metrics.error(StepFailureReason.ConfigurationFailure);
             throw new FileCopierException(e.getMessage(), StepFailureReason.ConfigurationFailure);
         }
+        metrics.record(WinRMMetrics.Phase.Options, start);
 
-        context.getExecutionListener().log(Constants.VERBOSE_LEVEL, logprompt + options);
+        context.getExecutionListener().log(Constants.VERBOSE_LEVEL, logprompt + settings.options);
 
-        try {
-            final OverthereConnection connection = new SmbConnectionBuilder(SmbConnectionBuilder.SMB_PROTOCOL, options,
-                    new DefaultAddressPortMapper()).connect();
+        if (credentialCheck) {
+            final long authStart = metrics.start();
+            try {
+                checkKerberosCredentials(settings.options);
+            } catch (KerberosCredentialCheck.KerberosException e) {
+                passwordFailed(settings.passwordCacheKey, e);
+                context.getExecutionListener().log(Constants.ERR_LEVEL, logprompt + "failed: " + e.getMessage());
+                metrics.error(Reason.AuthenticationFailure);
+                throw new FileCopierException(e.getMessage(), Reason.AuthenticationFailure, e);
+            } finally {
+                metrics.record(WinRMMetrics.Phase.Auth, authStart);
+            }
+        }
+        return settings;
+    }
 
+    /**
+     * One attempt of a copy
+     */
+    private static interface CopyAttempt {
+        /**
+         * @param attempt number of the attempt, starting at 1
+         *
+         * @return the remote path
+         */
+        String copy(int attempt) throws FileCopierException;
+    }
+
+    /**
+     * Run the copy, and retry it after a transient fault. A copy only writes its destination file, so it can be
+     * repeated whether or not the failed attempt reached the node. The circuit breaker is checked once the first
+     * attempt is admitted.
+     *
+     * @param retryable false if the content cannot be read again
+     * @param parallel  true if the copy uploads ranges of the file over several shells
+     */
+    private String copyWithRetries(
+            final ExecutionContext context,
+            final CopySettings settings,
+            final boolean retryable,
+            final boolean parallel,
+            final CopyAttempt copy
+    ) throws FileCopierException {
+        for (int attempt = 1; ; attempt++) {
+            final FileCopierException failure;
+            final long delay;
+            //the admission is given up while waiting to retry
+            final AdmissionControl.Permit permit = admit(context, settings, parallel);
+            settings.reachable = true;
             try {
-                OverthereFile dst;
-                if (destination != null && !destination.isEmpty()) {
-                    dst = connection.getFile(destination);
-                    context.getExecutionListener().log(Constants.VERBOSE_LEVEL, logprompt + "Destination file acquired " + dst.getPath());
-                } else {
-                    dst = connection.getTempFile("RD_WINRM_TMP");
-                    context.getExecutionListener().log(Constants.VERBOSE_LEVEL, logprompt + "Temporary file acquired " + dst.getPath());
+                if (!settings.circuitChecked) {
+                    checkCircuit(context, settings);
+                    settings.circuitChecked = true;
+                }
+                return copy.copy(attempt);
+            } catch (FileCopierException e) {
+                delay = retryable && RetryPolicy.classify(e.getCause()) != RetryPolicy.Fault.Permanent
+                        ? RETRIES.nextDelay(getExecutionId(context), settings.retry, attempt)
+                        : -1;
+                if (delay < 0) {
+                    throw e;
                 }
+                failure = e;
+            } finally {
+                permit.release();
+            }
+            settings.metrics.retry();
+            context.getExecutionListener().log(Constants.WARN_LEVEL, settings.logprompt
+                    + "Transient WinRM fault, retrying in " + delay + "ms (attempt " + (attempt + 1) + " of "
+                    + settings.retry.getMaxAttempts() + "): " + failure.getMessage());
+            if (!RetryPolicy.pause(delay)) {
+                throw failure;
+            }
+        }
+    }
 
-                context.getExecutionListener().log(Constants.VERBOSE_LEVEL, logprompt + "Copying file to " + dst.getPath());
-                OutputStream destStream = dst.getOutputStream();
-                try {
-                    IOUtils.copy(inputStream, destStream);
-                } catch (IOException ioe) {
-                    context.getExecutionListener().log(Constants.ERR_LEVEL, logprompt + "Error while copying the file");
-                    throw new FileCopierException(buildErrorMessage(context, ioe, logprompt), Reason.IOWriteError);
-                } finally {
-                    if (destStream != null)
-                        close(destStream);
+    /**
+     * Wait for admission by the limits of the host, for the shells of a copy through WinRM
+     *
+     * @param parallel true if the copy uploads ranges of the file over several shells, otherwise it uses one
+     */
+    private AdmissionControl.Permit admit(
+            final ExecutionContext context,
+            final CopySettings settings,
+            final boolean parallel
+    ) throws FileCopierException {
+        if (!settings.winrmTransfer) {
+            return AdmissionControl.Permit.NONE;
+        }
+        final int shells = parallel ? Math.max(1, settings.parallelism) : 1;
+        final AdmissionControl.Permit permit;
+        try {
+            permit = admit(settings.options, settings.admission, shells, shells, settings.metrics);
+        } catch (AdmissionControl.TimeoutException e) {
+            context.getExecutionListener().log(Constants.ERR_LEVEL, settings.logprompt + "failed: " + e.getMessage());
+            settings.metrics.error(Reason.AdmissionTimeout);
+            throw new FileCopierException(e.getMessage(), Reason.AdmissionTimeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            settings.metrics.error(StepFailureReason.Interrupted);
+            throw new FileCopierException("interrupted waiting for admission", StepFailureReason.Interrupted, e);
+        }
+        if (permit.getWaited() > 0) {
+            context.getExecutionListener().log(Constants.VERBOSE_LEVEL,
+                    settings.logprompt + "Waited " + permit.getWaited() + "ms for admission");
+        }
+        return permit;
+    }
+
+    @Override
+    public String copyFileStream(
+            final ExecutionContext context,
+            final InputStream inputStream,
+            final INodeEntry node,
+            final String destination
+    ) throws FileCopierException {
+        final CopySettings settings = configure(context, node);
+        final File file = inputStream instanceof LocalFileStream ? ((LocalFileStream) inputStream).file : null;
+        final boolean parallel = null != file && uploadsRanges(settings, file, destination);
+        final long start = settings.metrics.start();
+        try {
+            //only a stream which can be rewound is copied again, ranges are read from the file again
+            final boolean rewindable = settings.retry.isEnabled() && inputStream.markSupported();
+            if (rewindable) {
+                inputStream.mark(Integer.MAX_VALUE);
+            }
+            return copyWithRetries(context, settings, rewindable || parallel, parallel, new CopyAttempt() {
+                public String copy(final int attempt) throws FileCopierException {
+                    if (parallel) {
+                        return copyRanges(context, settings, file, destination);
+                    }
+                    if (attempt > 1) {
+                        try {
+                            inputStream.reset();
+                        } catch (IOException e) {
+                            throw new FileCopierException(e.getMessage(), Reason.FileNotStreamableError, e);
+                        }
+                    }
+                    return copyStream(context, settings, inputStream, destination);
                 }
-                context.getExecutionListener().log(Constants.VERBOSE_LEVEL, logprompt + "File copied at: " + dst.getPath());
-                return dst.getPath();
+            });
+        } catch (FileCopierException e) {
+            settings.metrics.error(e.getFailureReason());
+            throw e;
+        } finally {
+            settings.metrics.record(WinRMMetrics.Phase.Copy, start);
+            recordCircuit(settings);
+        }
+    }
 
-            } finally {
-                context.getExecutionListener().log(Constants.VERBOSE_LEVEL, logprompt + "Closing connection");
-                connection.close();
+    private String copyStream(
+            final ExecutionContext context,
+            final CopySettings settings,
+            final InputStream inputStream,
+            final String destination
+    ) throws FileCopierException {
+        try {
+            if (settings.scriptCache && inputStream instanceof ScriptStream) {
+                return copyScriptCached(context, ((ScriptStream) inputStream).content, destination, settings);
+            }
+            if (settings.winrmTransfer) {
+                return copyOverWinRM(context, inputStream, null, destination, settings);
             }
-        } catch (WinRmRuntimeIOException re) {
-            throw new FileCopierException(buildErrorMessage(context, re, logprompt), Reason.WinRMProtocolError);
+            return copyOverSmb(context, inputStream, destination, settings);
         } catch (RuntimeIOException re) {
-            throw new FileCopierException(buildErrorMessage(context, re, logprompt), StepFailureReason.IOFailure);
+            throw copyFailure(context, re, settings);
+        }
+
+    }
+
+    private String copyOverSmb(
+            final ExecutionContext context,
+            final InputStream inputStream,
+            final String destination,
+            final CopySettings settings
+    ) throws FileCopierException {
+        final String logprompt = settings.logprompt;
+        final WinRMConnectionPool.Lease lease = borrowConnection(SmbConnectionBuilder.SMB_PROTOCOL, settings.options,
+                settings.poolSettings, SMB_HEALTH_CHECK, settings.metrics);
+        final OverthereConnection connection = lease.getConnection();
+        if (lease.isReused()) {
+            context.getExecutionListener().log(Constants.VERBOSE_LEVEL, logprompt + "Reusing pooled connection");
+        }
+
+        boolean reusable = false;
+        try {
+            OverthereFile dst;
+            if (destination != null && !destination.isEmpty()) {
+                dst = connection.getFile(destination);
+                context.getExecutionListener().log(Constants.VERBOSE_LEVEL, logprompt + "Destination file acquired " + dst.getPath());
+            } else {
+                dst = connection.getTempFile("RD_WINRM_TMP");
+                context.getExecutionListener().log(Constants.VERBOSE_LEVEL, logprompt + "Temporary file acquired " + dst.getPath());
+            }
+
+            context.getExecutionListener().log(Constants.VERBOSE_LEVEL, logprompt + "Copying file to " + dst.getPath());
+            OutputStream destStream = dst.getOutputStream();
+            try {
+                settings.metrics.bytesCopied(IOUtils.copy(inputStream, destStream));
+            } catch (IOException ioe) {
+                context.getExecutionListener().log(Constants.ERR_LEVEL, logprompt + "Error while copying the file");
+                settings.reachable = !CircuitBreaker.isConnectionFailure(ioe);
+                throw new FileCopierException(buildErrorMessage(context, ioe, logprompt), Reason.IOWriteError,
+                        ioe);
+            } finally {
+                if (destStream != null)
+                    close(destStream);
+            }
+            context.getExecutionListener().log(Constants.VERBOSE_LEVEL, logprompt + "File copied at: " + dst.getPath());
+            reusable = true;
+            return dst.getPath();
+
+        } finally {
+            context.getExecutionListener().log(Constants.VERBOSE_LEVEL, logprompt + "Releasing connection");
+            releaseConnection(lease, reusable);
         }
+    }
 
+    /**
+     * Copy the file content over the WinRM connection used by the node executor, so that SMB is not needed
+     *
+     * @param inputStream content to copy, or null to copy the file
+     * @param file        local file to copy in parallel ranges, used when inputStream is null
+     */
+    private String copyOverWinRM(
+            final ExecutionContext context,
+            final InputStream inputStream,
+            final File file,
+            final String destination,
+            final CopySettings settings
+    ) throws FileCopierException {
+        final String logprompt = settings.logprompt;
+        final String path;
+        if (destination != null && !destination.isEmpty()) {
+            path = destination;
+        } else {
+            path = WinRMFileTransfer.tempFilePath(settings.options.get(TEMPORARY_DIRECTORY_PATH,
+                    DEFAULT_TEMP_DIRECTORY));
+        }
+        final WinRMConnectionPool.Lease lease = borrowConnection(CifsConnectionBuilder.CIFS_PROTOCOL,
+                settings.options, settings.poolSettings, null, settings.metrics);
+        if (lease.isReused()) {
+            context.getExecutionListener().log(Constants.VERBOSE_LEVEL, logprompt + "Reusing pooled connection");
+        }
+
+        boolean reusable = false;
+        try {
+            final WinRMFileTransfer transfer = new WinRMFileTransfer(lease.getConnection(), settings.chunkSize);
+            final long start = System.currentTimeMillis();
+            final long length;
+            try {
+                if (null != inputStream && settings.delta && path.equals(destination)) {
+                    context.getExecutionListener().log(Constants.VERBOSE_LEVEL, logprompt + "Copying changes to "
+                            + path + " over WinRM");
+                    final WinRMFileTransfer.DeltaResult delta = transfer.uploadDelta(inputStream, path,
+                            settings.blockSize);
+                    length = delta.getLength();
+                    settings.metrics.bytesCopied(delta.getSent());
+                    if (delta.isFull()) {
+                        context.getExecutionListener().log(Constants.VERBOSE_LEVEL, logprompt + path
+                                + " did not exist, copied the whole file");
+                    } else {
+                        context.getExecutionListener().log(Constants.VERBOSE_LEVEL, logprompt + "Sent "
+                                + delta.getSent() + " of " + length + " bytes, saved " + delta.getSaved() + " bytes");
+                    }
+                } else if (null != inputStream) {
+                    context.getExecutionListener().log(Constants.VERBOSE_LEVEL, logprompt + "Copying file to "
+                            + path + " over WinRM");
+                    length = transfer.upload(inputStream, path);
+                    settings.metrics.bytesCopied(length);
+                } else {
+                    context.getExecutionListener().log(Constants.VERBOSE_LEVEL, logprompt + "Copying file to "
+                            + path + " over WinRM with " + settings.parallelism + " streams");
+                    length = transfer.uploadRanges(file, path, settings.parallelism);
+                    settings.metrics.bytesCopied(length);
+                }
+            } catch (IOException ioe) {
+                context.getExecutionListener().log(Constants.ERR_LEVEL, logprompt + "Error while copying the file");
+                throw new FileCopierException(buildErrorMessage(context, ioe, logprompt), Reason.IOWriteError,
+                        ioe);
+            }
+            reusable = true;
+            context.getExecutionListener().log(Constants.VERBOSE_LEVEL, logprompt + "File copied at: " + path + " ("
+                    + length + " bytes in " + (System.currentTimeMillis() - start) + "ms)");
+            return path;
+        } finally {
+            context.getExecutionListener().log(Constants.VERBOSE_LEVEL, logprompt + "Releasing connection");
+            releaseConnection(lease, reusable);
+        }
     }
 
+    /**
+     * Copy the file through {@link #copyFileStream(ExecutionContext, InputStream, INodeEntry, String)}, so that a
+     * subclass overriding it sees file copies as well. A file large enough is uploaded in ranges instead of from the
+     * stream, if the stream reaches this class.
+     */
     @Override
-    public String copyFile(ExecutionContext context, File file, INodeEntry node, String destination) throws FileCopierException {
-        FileInputStream fileStream = null;
+    public String copyFile(
+            final ExecutionContext context,
+            final File file,
+            final INodeEntry node,
+            final String destination
+    ) throws FileCopierException {
+        LocalFileStream fileStream = null;
         try {
-            fileStream = new FileInputStream(file);
+            fileStream = new LocalFileStream(file);
             return copyFileStream(context, fileStream, node, destination);
         } catch (FileNotFoundException fnf) {
             throw new FileCopierException(fnf.getMessage(), Reason.FileNotStreamableError);
@@ -145,9 +562,41 @@ public class OTWinRMFileCopier extends OTWinRMPlugin implements DestinationFileC
         }
     }
 
+    /**
+     * @return true if the file is copied in ranges over several shells at once
+     */
+    private static boolean uploadsRanges(final CopySettings settings, final File file, final String destination) {
+        final boolean delta = settings.delta && destination != null && !destination.isEmpty();
+        return settings.winrmTransfer && !delta && settings.parallelism > 1
+                && file.length() >= settings.parallelThreshold;
+    }
+
+    private String copyRanges(
+            final ExecutionContext context,
+            final CopySettings settings,
+            final File file,
+            final String destination
+    ) throws FileCopierException {
+        try {
+            return copyOverWinRM(context, null, file, destination, settings);
+        } catch (RuntimeIOException re) {
+            throw copyFailure(context, re, settings);
+        }
+    }
+
+    /**
+     * Copy the script through {@link #copyFileStream(ExecutionContext, InputStream, INodeEntry, String)}, so that a
+     * subclass overriding it sees script copies as well. The script cache on the node is used if the stream reaches
+     * this class.
+     */
     @Override
-    public String copyScriptContent(ExecutionContext context, String script, INodeEntry node, String destination) throws FileCopierException {
-        ByteArrayInputStream scriptStream = new ByteArrayInputStream(script.getBytes());
+    public String copyScriptContent(
+            final ExecutionContext context,
+            final String script,
+            final INodeEntry node,
+            final String destination
+    ) throws FileCopierException {
+        ScriptStream scriptStream = new ScriptStream(script.getBytes());
         try {
             return copyFileStream(context, scriptStream, node, destination);
         } finally {
@@ -155,6 +604,78 @@ public class OTWinRMFileCopier extends OTWinRMPlugin implements DestinationFileC
         }
     }
 
+    /**
+     * Copy the script from the script cache on the node, and upload it only if it is not cached yet. The cache is
+     * managed over the WinRM connection, whichever copy mode is used for the upload.
+     */
+    private String copyScriptCached(
+            final ExecutionContext context,
+            final byte[] content,
+            final String destination,
+            final CopySettings settings
+    ) throws FileCopierException {
+        final String logprompt = settings.logprompt;
+        final String key = RemoteScriptCache.key(content, RemoteScriptCache.extension(destination));
+        final String path;
+        if (destination != null && !destination.isEmpty()) {
+            path = destination;
+        } else {
+            path = WinRMFileTransfer.tempFilePath(settings.options.get(TEMPORARY_DIRECTORY_PATH,
+                    DEFAULT_TEMP_DIRECTORY));
+        }
+        final WinRMConnectionPool.Lease lease = borrowConnection(CifsConnectionBuilder.CIFS_PROTOCOL,
+                settings.options, settings.poolSettings, null, settings.metrics);
+        boolean reusable = false;
+        try {
+            final WinRMFileTransfer transfer = new WinRMFileTransfer(lease.getConnection(), settings.chunkSize);
+            final RemoteScriptCache cache = new RemoteScriptCache(transfer, settings.scriptCacheDir,
+                    settings.scriptCacheMaxSize);
+            try {
+                final boolean hit = cache.fetch(key, path);
+                settings.metrics.scriptCache(hit);
+                if (hit) {
+                    context.getExecutionListener().log(Constants.VERBOSE_LEVEL, logprompt + "Script " + key
+                            + " found in remote cache, copied to " + path);
+                    reusable = true;
+                    return path;
+                }
+            } catch (IOException ioe) {
+                throw new FileCopierException(buildErrorMessage(context, ioe, logprompt), Reason.IOWriteError,
+                        ioe);
+            }
+
+            final String copied;
+            if (settings.winrmTransfer) {
+                context.getExecutionListener().log(Constants.VERBOSE_LEVEL, logprompt + "Copying file to " + path
+                        + " over WinRM");
+                try {
+                    settings.metrics.bytesCopied(transfer.upload(new ByteArrayInputStream(content), path));
+                } catch (IOException ioe) {
+                    context.getExecutionListener().log(Constants.ERR_LEVEL, logprompt + "Error while copying the file");
+                    throw new FileCopierException(buildErrorMessage(context, ioe, logprompt), Reason.IOWriteError,
+                            ioe);
+                }
+                copied = path;
+            } else {
+                copied = copyOverSmb(context, new ByteArrayInputStream(content), destination, settings);
+            }
+            reusable = true;
+
+            try {
+                final int removed = cache.store(key, copied);
+                context.getExecutionListener().log(Constants.VERBOSE_LEVEL, logprompt + "Script " + key
+                        + " added to remote cache" + (removed > 0 ? ", removed " + removed + " old scripts" : ""));
+            } catch (IOException ioe) {
+                //the script has been copied, a cache failure only means it is uploaded again next time
+                context.getExecutionListener().log(Constants.WARN_LEVEL, logprompt
+                        + "Could not add script to remote cache: " + ioe.getMessage());
+            }
+            return copied;
+        } finally {
+            releaseConnection(lease, reusable);
+        }
+    }
+
     @Override
     public String copyFileStream(ExecutionContext context, InputStream inputStream, INodeEntry node) throws FileCopierException {
         return copyFileStream(context, inputStream, node, null);
@@ -174,6 +695,15 @@ public class OTWinRMFileCopier extends OTWinRMPlugin implements DestinationFileC
         WinRMProtocolError,
         FileNotStreamableError,
         IOWriteError,
+        AuthenticationFailure,
+        /**
+         * The node failed to connect too often, and is not tried again until the circuit breaker backoff has passed
+         */
+        CircuitOpen,
+        /**
+         * The shell or operation limit of the host was not available within the admission timeout
+         */
+        AdmissionTimeout,
     }
 
 }
\ No newline at end of file
@@ -16,14 +16,27 @@ import com.dtolabs.rundeck.core.plugins.configuration.Description;
 import com.dtolabs.rundeck.core.plugins.configuration.PropertyUtil;
 import com.xebialabs.overthere.CmdLine;
 import com.xebialabs.overthere.ConnectionOptions;
-import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.OperatingSystemFamily;
+import com.xebialabs.overthere.OverthereExecutionOutputHandler;
 import com.xebialabs.overthere.RuntimeIOException;
 import com.xebialabs.overthere.cifs.CifsConnectionBuilder;
 import com.xebialabs.overthere.winrm.WinRmRuntimeIOException;
 import com.xebialabs.overthere.util.ConsoleOverthereExecutionOutputHandler;
-import com.xebialabs.overthere.util.DefaultAddressPortMapper;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Executes a command via WinRM. Subclass to extend, there are places to alter the generation of user@realm, and to
@@ -53,47 +66,256 @@ public class OTWinRMNodeExecutor extends OTWinRMPlugin implements NodeExecutor,
         return DESC;
     }
 
+    private static final int WARM_UP_HISTORY = 1000;
+    /**
+     * Consecutive failed polls of a detached job after which it is given up, it can still be attached to later
+     */
+    private static final int MAX_DETACHED_POLL_FAILURES = 20;
+
+    /**
+     * Executions which have been warmed up already, the oldest are forgotten
+     */
+    private static final Map<String, Boolean> WARMED_UP = Collections.synchronizedMap(
+            new LinkedHashMap<String, Boolean>() {
+                protected boolean removeEldestEntry(final Map.Entry<String, Boolean> eldest) {
+                    return size() > WARM_UP_HISTORY;
+                }
+            }
+    );
+
     public static enum Reason implements FailureReason {
         WinRMProtocolError,
+        AuthenticationFailure,
+        /**
+         * The node failed to connect too often, and is not tried again until the circuit breaker backoff has passed
+         */
+        CircuitOpen,
+        /**
+         * The shell or operation limit of the host was not available within the admission timeout
+         */
+        AdmissionTimeout,
     }
 
     public NodeExecutorResult executeCommand(final ExecutionContext context, final String[] command,
             final INodeEntry node) {
 
-        ConnectionOptions options = null;
         String logprompt = "[" + SERVICE_PROVIDER_TYPE + ":" + node.extractHostname() + "] ";
 
         if (null == context.getExecutionListener()) {
             System.out.println(logprompt + " Bad plugin context!  NULL ExecutionListener");
         }
+        startWarmUp(context, node);
+
+        return invoke(new Invocation(context, node, command, logprompt));
+    }
+
+    /**
+     * Execute several commands on the node as one script, in a single shell, instead of one shell per command. After
+     * each command the script prints its exit code, so each command still gets its own result. The commands run in
+     * the remote shell of the execution if "winrm-shell-reuse" is enabled, in a pooled PowerShell process if
+     * "winrm-powershell-pool" is enabled, otherwise in a new shell.
+     *
+     * @param context   execution context
+     * @param commands  commands to run in order
+     * @param node      node
+     * @param keepgoing true to run the remaining commands after a command fails, false to stop at the first failure
+     *
+     * @return results of the commands which ran, in order, fewer than the commands if the batch stopped
+     */
+    public List<NodeExecutorResult> executeCommands(
+            final ExecutionContext context,
+            final List<String[]> commands,
+            final INodeEntry node,
+            final boolean keepgoing
+    ) {
+        String logprompt = "[" + SERVICE_PROVIDER_TYPE + ":" + node.extractHostname() + "] ";
+
+        if (null == context.getExecutionListener()) {
+            System.out.println(logprompt + " Bad plugin context!  NULL ExecutionListener");
+        }
+        if (commands.isEmpty()) {
+            return new ArrayList<NodeExecutorResult>();
+        }
+        startWarmUp(context, node);
+
+        final Invocation invocation = new Invocation(context, node, new String[0], logprompt);
+        invocation.batch = new CommandBatch(commands, keepgoing);
+        return invocation.batch.getResults(invoke(invocation), node);
+    }
+
+    /**
+     * Execute several commands on the node at the same time, in one shell. The commands run in a runspace pool of a
+     * single PowerShell process, which passes on their output as it comes, each line prefixed with the position of
+     * its command in the list, starting at 1. Output of cmd commands, including their stderr, is passed on as
+     * output, errors of PowerShell commands as error output. Each command gets its own result.
+     *
+     * @param context     execution context
+     * @param commands    commands to run
+     * @param node        node
+     * @param concurrency maximum number of commands running at once
+     *
+     * @return results of the commands, in order
+     */
+    public List<NodeExecutorResult> executeConcurrently(
+            final ExecutionContext context,
+            final List<String[]> commands,
+            final INodeEntry node,
+            final int concurrency
+    ) {
+        String logprompt = "[" + SERVICE_PROVIDER_TYPE + ":" + node.extractHostname() + "] ";
+
+        if (null == context.getExecutionListener()) {
+            System.out.println(logprompt + " Bad plugin context!  NULL ExecutionListener");
+        }
+        if (commands.isEmpty()) {
+            return new ArrayList<NodeExecutorResult>();
+        }
+        startWarmUp(context, node);
+
+        final Invocation invocation = new Invocation(context, node, new String[0], logprompt);
+        invocation.concurrent = new ConcurrentCommands(commands, concurrency);
+        return invocation.concurrent.getResults(invoke(invocation), node);
+    }
+
+    /**
+     * Start a command on the node as a detached job, and return without waiting for it. The job keeps running if the
+     * connection to the node is lost, and can be attached to with {@link #attachDetached}, also after a restart.
+     *
+     * @param context execution context
+     * @param command command
+     * @param node    node
+     *
+     * @return the job, or null if it could not be started, the reason is logged
+     */
+    public DetachedJob startDetached(final ExecutionContext context, final String[] command, final INodeEntry node) {
+        String logprompt = "[" + SERVICE_PROVIDER_TYPE + ":" + node.extractHostname() + "] ";
+
+        if (null == context.getExecutionListener()) {
+            System.out.println(logprompt + " Bad plugin context!  NULL ExecutionListener");
+        }
+        final Invocation invocation = new Invocation(context, node, command, logprompt);
+        invocation.detachOnly = true;
+        return invoke(invocation).isSuccess() ? invocation.detachedJob : null;
+    }
+
+    /**
+     * Attach to a detached job of the node, pass on its output from where it was left, and wait for it to finish.
+     * The job is polled every "winrm-detached-poll-interval" milliseconds.
+     *
+     * @param context execution context
+     * @param node    node
+     * @param id      id of the job
+     *
+     * @return result of the job
+     */
+    public NodeExecutorResult attachDetached(final ExecutionContext context, final INodeEntry node, final String id) {
+        String logprompt = "[" + SERVICE_PROVIDER_TYPE + ":" + node.extractHostname() + "] ";
+
+        if (null == context.getExecutionListener()) {
+            System.out.println(logprompt + " Bad plugin context!  NULL ExecutionListener");
+        }
+        loadDetachedJobs();
+        final DetachedJob job = DETACHED_JOBS.get(id);
+        if (null == job || !job.getHostname().equals(node.extractHostname())) {
+            final String message = "No detached job " + id + " for the node";
+            context.getExecutionListener().log(Constants.ERR_LEVEL, logprompt + message);
+            return NodeExecutorResultImpl.createFailure(StepFailureReason.ConfigurationFailure, message, node);
+        }
+        final Invocation invocation = new Invocation(context, node, new String[0], logprompt);
+        invocation.detachedJob = job;
+        return invoke(invocation);
+    }
+
+    /**
+     * @return the detached jobs of the node which have not finished, or not been seen to finish
+     */
+    public List<DetachedJob> getDetachedJobs(final INodeEntry node) {
+        loadDetachedJobs();
+        return DETACHED_JOBS.forHost(node.extractHostname());
+    }
+
+    private void loadDetachedJobs() {
+        if (null != framework && null != framework.getBaseDir()) {
+            DETACHED_JOBS.load(new File(framework.getBaseDir(), DETACHED_JOBS_FILE));
+        }
+    }
 
-        String cmdType;
+    private NodeExecutorResult invoke(final Invocation invocation) {
+        final ExecutionContext context = invocation.context;
+        final INodeEntry node = invocation.node;
+        final String[] command = invocation.command;
+        final String logprompt = invocation.logprompt;
+        ConnectionOptions options = null;
+        final WinRMMetrics.NodeMetrics metrics = getMetrics(context, node);
+        invocation.metrics = metrics;
+        final long start = metrics.start();
+        boolean credentialCheck;
         try {
-            ConnectionOptionsBuilder builder = new ConnectionOptionsBuilder(context, node, framework);
-            ConnectionOptions protoOptions = builder.build();
-            protoOptions.set(WINRM_CMD_TYPE, resolveProperty(WINRM_CMD_TYPE, null, builder.getNode(), builder.getFrameworkProject(), builder.getFramework()));
-            options = willUseConnectionOptions(protoOptions);
-            cmdType = options.get(WINRM_CMD_TYPE);
-            context.getExecutionListener().log(Constants.VERBOSE_LEVEL, logprompt + buildCommandLine(command, cmdType));
+            credentialCheck = configure(invocation);
+            options = invocation.options;
+            if (null != invocation.detachedJob) {
+                context.getExecutionListener().log(Constants.VERBOSE_LEVEL,
+                        logprompt + "detached job " + invocation.detachedJob.getId() + ", process "
+                                + invocation.detachedJob.getProcessId());
+            } else if (null != invocation.batch) {
+                context.getExecutionListener().log(Constants.VERBOSE_LEVEL,
+                        logprompt + "batch of " + invocation.batch.size() + " commands: "
+                                + invocation.batch.getScript(CMD_TYPE_POWERSHELL.equals(invocation.cmdType)));
+            } else if (null != invocation.concurrent) {
+                context.getExecutionListener().log(Constants.VERBOSE_LEVEL,
+                        logprompt + invocation.concurrent.size() + " concurrent commands: "
+                                + invocation.concurrent.getScript(CMD_TYPE_POWERSHELL.equals(invocation.cmdType)));
+            } else if (invocation.encoded) {
+                context.getExecutionListener().log(Constants.VERBOSE_LEVEL,
+                        logprompt + "powershell -EncodedCommand: " + joinCommand(command));
+            } else {
+                context.getExecutionListener().log(Constants.VERBOSE_LEVEL,
+                        logprompt + buildCommandLine(command, invocation.cmdType));
+            }
         } catch (ConfigurationException e) {
             context.getExecutionListener().log(Constants.ERR_LEVEL, logprompt + e.getMessage());
+            metrics.error(StepFailureReason.ConfigurationFailure);
             return NodeExecutorResultImpl.createFailure(StepFailureReason.ConfigurationFailure, e.getMessage(), node);
         }
+        metrics.record(WinRMMetrics.Phase.Options, start);
 
         context.getExecutionListener().log(Constants.VERBOSE_LEVEL, logprompt + options);
 
-        int result = -1;
+        if (credentialCheck) {
+            final NodeExecutorResult failure = checkCredentials(invocation, Constants.ERR_LEVEL);
+            if (null != failure) {
+                return failure;
+            }
+        }
+
+        final String host = node.extractHostname();
         try {
-            final OverthereConnection connection = new CifsConnectionBuilder(CifsConnectionBuilder.CIFS_PROTOCOL, options,
-                    new DefaultAddressPortMapper()).connect();
+            CIRCUIT_BREAKER.check(host, invocation.circuitBreaker);
+        } catch (CircuitBreaker.OpenException e) {
+            context.getExecutionListener().log(Constants.ERR_LEVEL, logprompt + "failed: " + e.getMessage());
+            metrics.error(Reason.CircuitOpen);
+            return NodeExecutorResultImpl.createFailure(Reason.CircuitOpen, e.getMessage(), node);
+        }
 
-            try {
-                result = connection.execute(ConsoleOverthereExecutionOutputHandler.sysoutHandler(),
-                        ConsoleOverthereExecutionOutputHandler.syserrHandler(),
-                        buildCommandLine(command, cmdType));
-            } finally {
-                connection.close();
-            }
+        int result = -1;
+        try {
+            result = runWithRetries(invocation);
+        } catch (AdmissionControl.TimeoutException e) {
+            context.getExecutionListener().log(Constants.ERR_LEVEL, logprompt + "failed: " + e.getMessage());
+            metrics.error(Reason.AdmissionTimeout);
+            return NodeExecutorResultImpl.createFailure(Reason.AdmissionTimeout, e.getMessage(), node);
+        } catch (AdmissionTimeoutException e) {
+            //the host was not tried by the attempt which was not admitted
+            invocation.admitted = false;
+            context.getExecutionListener().log(Constants.ERR_LEVEL, logprompt + "failed: " + e.getMessage());
+            metrics.error(Reason.AdmissionTimeout);
+            return NodeExecutorResultImpl.createFailure(Reason.AdmissionTimeout, e.getMessage(), node);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            context.getExecutionListener().log(Constants.ERR_LEVEL, logprompt + "interrupted waiting for admission");
+            metrics.error(StepFailureReason.Interrupted);
+            return NodeExecutorResultImpl.createFailure(StepFailureReason.Interrupted,
+                    "interrupted waiting for admission", node);
         } catch (WinRmRuntimeIOException re) {
             String message = null;
             if (context.getLoglevel() > 2) {
@@ -103,6 +325,7 @@ public class OTWinRMNodeExecutor extends OTWinRMPlugin implements NodeExecutor,
                 message = "WinRM Error: " + re.getMessage();
             }
             context.getExecutionListener().log(Constants.ERR_LEVEL, logprompt + "failed: " + message);
+            metrics.error(Reason.WinRMProtocolError);
             return NodeExecutorResultImpl.createFailure(Reason.WinRMProtocolError, message, re, node, -1);
         } catch (RuntimeIOException re) {
             String message = null;
@@ -113,7 +336,14 @@ public class OTWinRMNodeExecutor extends OTWinRMPlugin implements NodeExecutor,
                 message = "runtime exception: " + re;
             }
             context.getExecutionListener().log(Constants.ERR_LEVEL, logprompt + "failed: " + message);
+            metrics.error(StepFailureReason.IOFailure);
             return NodeExecutorResultImpl.createFailure(StepFailureReason.IOFailure, message, re, node, -1);
+        } finally {
+            if (invocation.admitted) {
+                CIRCUIT_BREAKER.record(host, invocation.circuitBreaker, invocation.reachable);
+            } else {
+                CIRCUIT_BREAKER.release(host, invocation.circuitBreaker);
+            }
         }
 
 
@@ -124,11 +354,1009 @@ public class OTWinRMNodeExecutor extends OTWinRMPlugin implements NodeExecutor,
             return NodeExecutorResultImpl.createSuccess(node);
         } else {
             context.getExecutionListener().log(Constants.ERR_LEVEL, logprompt + "failed: exit code: " + resultCode);
+            metrics.error(NodeStepFailureReason.NonZeroResultCode);
             return NodeExecutorResultImpl.createFailure(NodeStepFailureReason.NonZeroResultCode,
                     "[" + SERVICE_PROVIDER_TYPE + "] result code: " + resultCode, node, resultCode);
         }
     }
 
+    /**
+     * Execute the command on many nodes at once, each node is executed as by {@link #executeCommand(ExecutionContext,
+     * String[], INodeEntry)}. The number of nodes run at once is limited by the project or framework property
+     * "winrm-bulk-concurrency", and per host by "winrm-bulk-host-concurrency".
+     *
+     * @param context  execution context
+     * @param command  command
+     * @param nodes    nodes to execute on
+     * @param listener receives the result of each node as soon as it is finished, may be null
+     *
+     * @return results by node name
+     *
+     * @throws InterruptedException if interrupted while waiting for the nodes
+     */
+    public Map<String, NodeExecutorResult> executeCommand(
+            final ExecutionContext context,
+            final String[] command,
+            final Collection<INodeEntry> nodes,
+            final BulkExecution.Listener listener
+    ) throws InterruptedException {
+        return newBulkExecution(context).run(nodes, new BulkExecution.NodeTask() {
+            public NodeExecutorResult execute(final INodeEntry node) {
+                return executeCommand(context, command, node);
+            }
+        }, listener);
+    }
+
+    private BulkExecution newBulkExecution(final ExecutionContext context) {
+        final ProjectConfig config = getProjectConfig(context);
+        int concurrency;
+        int hostConcurrency;
+        try {
+            concurrency = toInt(WINRM_BULK_CONCURRENCY, config.get(WINRM_BULK_CONCURRENCY),
+                    DEFAULT_BULK_CONCURRENCY);
+            hostConcurrency = toInt(WINRM_BULK_HOST_CONCURRENCY, config.get(WINRM_BULK_HOST_CONCURRENCY),
+                    DEFAULT_BULK_HOST_CONCURRENCY);
+        } catch (ConfigurationException e) {
+            context.getExecutionListener().log(Constants.WARN_LEVEL, "[" + SERVICE_PROVIDER_TYPE + "] "
+                    + e.getMessage());
+            concurrency = DEFAULT_BULK_CONCURRENCY;
+            hostConcurrency = DEFAULT_BULK_HOST_CONCURRENCY;
+        }
+        return new BulkExecution(concurrency, hostConcurrency);
+    }
+
+    /**
+     * Connect and authenticate to the nodes ahead of their first command, in parallel as limited by
+     * "winrm-bulk-concurrency" and "winrm-bulk-host-concurrency". For each node the Kerberos credentials are checked
+     * if "winrm-kerberos-credential-check" is enabled, and a shell is opened and kept: as a remote shell for the
+     * execution if "winrm-shell-reuse" is enabled, otherwise as PowerShell processes if "winrm-powershell-pool" is
+     * enabled. Nothing else is kept between WinRM requests, so without either of them no connection is made. Failures
+     * are only logged at verbose level, the nodes are connected to again by their commands.
+     *
+     * @param context  execution context
+     * @param nodes    nodes to connect to
+     * @param listener receives the result of each node as soon as it is finished, may be null
+     *
+     * @return results by node name
+     *
+     * @throws InterruptedException if interrupted while waiting for the nodes
+     */
+    public Map<String, NodeExecutorResult> warmUp(
+            final ExecutionContext context,
+            final Collection<INodeEntry> nodes,
+            final BulkExecution.Listener listener
+    ) throws InterruptedException {
+        return newBulkExecution(context).run(nodes, new BulkExecution.NodeTask() {
+            public NodeExecutorResult execute(final INodeEntry node) {
+                return warmUp(context, node);
+            }
+        }, listener);
+    }
+
+    /**
+     * Warm up the other nodes of the execution in the background when its first command starts, if "winrm-warmup"
+     * is enabled
+     */
+    private void startWarmUp(final ExecutionContext context, final INodeEntry node) {
+        final String execid = getExecutionId(context);
+        if (null == execid || null == context.getNodes()) {
+            return;
+        }
+        final ProjectConfig config = getProjectConfig(context);
+        if (!toBoolean(config.get(WINRM_WARMUP), DEFAULT_WARMUP) || null != WARMED_UP.put(execid, Boolean.TRUE)) {
+            return;
+        }
+        final Collection<INodeEntry> nodes = warmUpNodes(context.getNodes().getNodes(), node,
+                config.get(WINRM_WARMUP_TAGS));
+        if (nodes.isEmpty()) {
+            return;
+        }
+        final Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    warmUp(context, nodes, null);
+                } catch (InterruptedException e) {
+                    //stop warming up
+                }
+            }
+        }, "winrm-warmup");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @param nodes   nodes of the execution
+     * @param current node running the first command, it is not warmed up
+     * @param tags    comma separated tags, a node is warmed up if it has one of them, or all nodes if blank
+     *
+     * @return the nodes to warm up
+     */
+    static Collection<INodeEntry> warmUpNodes(
+            final Collection<INodeEntry> nodes,
+            final INodeEntry current,
+            final String tags
+    ) {
+        final List<String> wanted = new ArrayList<String>();
+        if (null != tags) {
+            for (String tag : tags.split(",")) {
+                if (!"".equals(tag.trim())) {
+                    wanted.add(tag.trim());
+                }
+            }
+        }
+        final List<INodeEntry> selected = new ArrayList<INodeEntry>();
+        for (INodeEntry node : nodes) {
+            if (node.getNodename().equals(current.getNodename())) {
+                continue;
+            }
+            if (wanted.isEmpty() || (null != node.getTags() && !Collections.disjoint(node.getTags(), wanted))) {
+                selected.add(node);
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Check the credentials for one node, and open the shells kept for its commands, if any
+     *
+     * @return success if the node is ready for its first command
+     */
+    NodeExecutorResult warmUp(final ExecutionContext context, final INodeEntry node) {
+        final String logprompt = "[" + SERVICE_PROVIDER_TYPE + ":" + node.extractHostname() + "] ";
+        final Invocation invocation = new Invocation(context, node, new String[0], logprompt);
+        final WinRMMetrics.NodeMetrics metrics = getMetrics(context, node);
+        invocation.metrics = metrics;
+        final long start = metrics.start();
+        final boolean credentialCheck;
+        try {
+            credentialCheck = configure(invocation);
+        } catch (ConfigurationException e) {
+            invocation.log(Constants.VERBOSE_LEVEL, "Warm-up failed: " + e.getMessage());
+            return NodeExecutorResultImpl.createFailure(StepFailureReason.ConfigurationFailure, e.getMessage(), node);
+        }
+        metrics.record(WinRMMetrics.Phase.Options, start);
+
+        if (credentialCheck) {
+            final NodeExecutorResult failure = checkCredentials(invocation, Constants.VERBOSE_LEVEL);
+            if (null != failure) {
+                return failure;
+            }
+        }
+        if (null == invocation.shellScope && !invocation.powershellPool.isEnabled()) {
+            invocation.log(Constants.VERBOSE_LEVEL, "Warm-up: no remote shell or PowerShell process to keep");
+            return NodeExecutorResultImpl.createSuccess(node);
+        }
+
+        final String host = node.extractHostname();
+        try {
+            CIRCUIT_BREAKER.check(host, invocation.circuitBreaker);
+        } catch (CircuitBreaker.OpenException e) {
+            invocation.log(Constants.VERBOSE_LEVEL, "Warm-up failed: " + e.getMessage());
+            return NodeExecutorResultImpl.createFailure(Reason.CircuitOpen, e.getMessage(), node);
+        }
+        //kept shells are admitted as shells when they are started
+        final AdmissionControl.Permit permit;
+        try {
+            permit = admit(invocation.options, invocation.admission, 0, 1, metrics);
+        } catch (AdmissionControl.TimeoutException e) {
+            CIRCUIT_BREAKER.release(host, invocation.circuitBreaker);
+            invocation.log(Constants.VERBOSE_LEVEL, "Warm-up failed: " + e.getMessage());
+            metrics.error(Reason.AdmissionTimeout);
+            return NodeExecutorResultImpl.createFailure(Reason.AdmissionTimeout, e.getMessage(), node);
+        } catch (InterruptedException e) {
+            CIRCUIT_BREAKER.release(host, invocation.circuitBreaker);
+            Thread.currentThread().interrupt();
+            invocation.log(Constants.VERBOSE_LEVEL, "Warm-up interrupted waiting for admission");
+            return NodeExecutorResultImpl.createFailure(StepFailureReason.Interrupted,
+                    "interrupted waiting for admission", node);
+        }
+        boolean tried = true;
+        boolean reachable = true;
+        try {
+            if (null != invocation.shellScope) {
+                warmUpRemoteShell(invocation);
+            } else {
+                warmUpPowerShellHosts(invocation);
+            }
+        } catch (AdmissionTimeoutException e) {
+            tried = false;
+            invocation.log(Constants.VERBOSE_LEVEL, "Warm-up failed: " + e.getMessage());
+            metrics.error(Reason.AdmissionTimeout);
+            return NodeExecutorResultImpl.createFailure(Reason.AdmissionTimeout, e.getMessage(), node);
+        } catch (RuntimeIOException re) {
+            reachable = !CircuitBreaker.isConnectionFailure(re);
+            passwordFailed(invocation.passwordCacheKey, re);
+            invocation.log(Constants.VERBOSE_LEVEL, "Warm-up failed: " + re.getMessage());
+            final FailureReason reason = re instanceof WinRmRuntimeIOException
+                    ? Reason.WinRMProtocolError
+                    : StepFailureReason.IOFailure;
+            metrics.error(reason);
+            return NodeExecutorResultImpl.createFailure(reason, re.getMessage(), re, node, -1);
+        } finally {
+            permit.release();
+            if (tried) {
+                CIRCUIT_BREAKER.record(host, invocation.circuitBreaker, reachable);
+            } else {
+                CIRCUIT_BREAKER.release(host, invocation.circuitBreaker);
+            }
+        }
+        invocation.log(Constants.VERBOSE_LEVEL, "Warmed up");
+        return NodeExecutorResultImpl.createSuccess(node);
+    }
+
+    /**
+     * Open the remote shell of the execution on the node, unless it is open already
+     */
+    private void warmUpRemoteShell(final Invocation invocation) {
+        final RemoteShellRegistry.Key key = remoteShellKey(invocation);
+        RemoteShell shell = REMOTE_SHELLS.take(key);
+        if (null == shell) {
+            final WinRMConnectionPool.Lease lease = borrowConnection(invocation);
+            if (!lease.getConnection().canStartProcess()) {
+                releaseConnection(lease, true);
+                return;
+            }
+            shell = startRemoteShell(lease, invocation, true);
+        }
+        REMOTE_SHELLS.offer(key, shell, invocation.shellIdleTimeout);
+    }
+
+    /**
+     * Start PowerShell hosts on the node until the minimum number of hosts, or at least one, is open
+     */
+    private void warmUpPowerShellHosts(final Invocation invocation) {
+        final WinRMConnectionPool.Key key = WinRMConnectionPool.Key.of(CifsConnectionBuilder.CIFS_PROTOCOL,
+                invocation.options);
+        final int count = Math.max(1, invocation.powershellPool.getMinSize());
+        while (POWERSHELL_HOSTS.reserve(key, count)) {
+            final RemoteShell host = startPowerShellHost(key, invocation);
+            if (null == host) {
+                return;
+            }
+            POWERSHELL_HOSTS.offer(key, host, invocation.powershellPool);
+        }
+    }
+
+    /**
+     * Resolve the connection options and settings of the invocation
+     *
+     * @return true if the Kerberos credentials are to be checked before connecting to the node
+     */
+    private boolean configure(final Invocation invocation) throws ConfigurationException {
+        ConnectionOptionsBuilder builder = new ConnectionOptionsBuilder(invocation.context, invocation.node,
+                framework, getProjectConfig(invocation.context));
+        builder.setMetrics(invocation.metrics);
+        ConnectionOptions protoOptions = builder.build();
+        protoOptions.set(WINRM_CMD_TYPE, builder.resolve(WINRM_CMD_TYPE, null));
+        invocation.poolSettings = builder.getPoolSettings();
+        invocation.circuitBreaker = builder.getCircuitBreakerSettings();
+        invocation.retry = builder.getRetrySettings();
+        invocation.admission = builder.getAdmissionSettings();
+        if (builder.isShellReuse()) {
+            invocation.shellScope = getExecutionId(invocation.context);
+            invocation.shellIdleTimeout = builder.getShellIdleTimeout();
+        }
+        invocation.encoded = builder.isPowershellEncoded();
+        invocation.adaptiveTimeout = builder.isAdaptiveTimeout();
+        invocation.listenerOutput = builder.isListenerOutput();
+        invocation.outputBatchSize = builder.getOutputBatchSize();
+        invocation.outputFlushInterval = builder.getOutputFlushInterval();
+        invocation.options = willUseConnectionOptions(protoOptions);
+        invocation.passwordCacheKey = builder.getPasswordCacheKey();
+        invocation.cmdType = invocation.options.get(WINRM_CMD_TYPE);
+        invocation.encoded &= CMD_TYPE_POWERSHELL.equals(invocation.cmdType);
+        if (CMD_TYPE_POWERSHELL.equals(invocation.cmdType)) {
+            invocation.powershellPool = builder.getPowerShellPoolSettings();
+        }
+        invocation.detached = null != invocation.detachedJob || invocation.detachOnly || builder.isDetached();
+        if (invocation.detached) {
+            invocation.detachedPollInterval = builder.getDetachedPollInterval();
+            loadDetachedJobs();
+        }
+        return builder.isKerberosCredentialCheck();
+    }
+
+    /**
+     * Check the Kerberos credentials of the node with the KDC
+     *
+     * @param level log level of a failure
+     *
+     * @return null if the credentials were accepted, or the failure result
+     */
+    private NodeExecutorResult checkCredentials(final Invocation invocation, final int level) {
+        final long start = invocation.metrics.start();
+        try {
+            checkKerberosCredentials(invocation.options);
+            return null;
+        } catch (KerberosCredentialCheck.KerberosException e) {
+            passwordFailed(invocation.passwordCacheKey, e);
+            invocation.log(level, "failed: " + e.getMessage());
+            invocation.metrics.error(Reason.AuthenticationFailure);
+            return NodeExecutorResultImpl.createFailure(Reason.AuthenticationFailure, e.getMessage(), e,
+                    invocation.node, -1);
+        } finally {
+            invocation.metrics.record(WinRMMetrics.Phase.Auth, start);
+        }
+    }
+
+    /**
+     * Resolved settings for running one command on a node
+     */
+    private static final class Invocation {
+        private final ExecutionContext context;
+        private final INodeEntry node;
+        private final String[] command;
+        private final String logprompt;
+        private CommandBatch batch;
+        private ConcurrentCommands concurrent;
+        private boolean detached;
+        private boolean detachOnly;
+        private long detachedPollInterval;
+        private DetachedJob detachedJob;
+        private ConnectionOptions options;
+        private String passwordCacheKey;
+        private String cmdType;
+        private WinRMConnectionPool.Settings poolSettings;
+        private CircuitBreaker.Settings circuitBreaker = CircuitBreaker.Settings.DISABLED;
+        private RetryPolicy.Settings retry = RetryPolicy.Settings.DISABLED;
+        private AdmissionControl.Settings admission = AdmissionControl.Settings.DISABLED;
+        private boolean admitted;
+        private boolean reachable = true;
+        private boolean commandStarted;
+        private boolean connected;
+        private String shellScope;
+        private long shellIdleTimeout;
+        private PowerShellHostPool.Settings powershellPool = PowerShellHostPool.Settings.DISABLED;
+        private boolean encoded;
+        private boolean adaptiveTimeout;
+        private boolean listenerOutput;
+        private int outputBatchSize;
+        private long outputFlushInterval;
+        private OverthereExecutionOutputHandler stdout;
+        private OverthereExecutionOutputHandler stderr;
+        private WinRMMetrics.NodeMetrics metrics = WinRMMetrics.DISABLED;
+
+        private Invocation(
+                final ExecutionContext context,
+                final INodeEntry node,
+                final String[] command,
+                final String logprompt
+        ) {
+            this.context = context;
+            this.node = node;
+            this.command = command;
+            this.logprompt = logprompt;
+        }
+
+        private void log(final int level, final String message) {
+            context.getExecutionListener().log(level, logprompt + message);
+        }
+    }
+
+    /**
+     * Run the command, and retry it after a transient fault if it cannot have run yet, when the fault happened
+     * before the command was sent. A rejected request is not retried once the command was sent, as the node may have
+     * accepted the command before rejecting a later request for its output. Each attempt is admitted on its own, and
+     * the admission is given up while waiting to retry.
+     */
+    private int runWithRetries(final Invocation invocation)
+            throws AdmissionControl.TimeoutException, InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            final RuntimeIOException failure;
+            final long delay;
+            invocation.commandStarted = false;
+            final AdmissionControl.Permit permit = admit(invocation);
+            try {
+                final int result = runCommand(invocation);
+                invocation.reachable = true;
+                return result;
+            } catch (RuntimeIOException e) {
+                invocation.reachable = !CircuitBreaker.isConnectionFailure(e);
+                passwordFailed(invocation.passwordCacheKey, e);
+                delay = RetryPolicy.isRetryable(e, invocation.commandStarted)
+                        ? RETRIES.nextDelay(getExecutionId(invocation.context), invocation.retry, attempt)
+                        : -1;
+                if (delay < 0) {
+                    throw e;
+                }
+                failure = e;
+            } finally {
+                permit.release();
+            }
+            invocation.metrics.retry();
+            invocation.log(Constants.WARN_LEVEL, "Transient WinRM fault, retrying in " + delay + "ms (attempt "
+                    + (attempt + 1) + " of " + invocation.retry.getMaxAttempts() + "): " + failure.getMessage());
+            if (!RetryPolicy.pause(delay)) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Wait for admission of an attempt of the command. A command run in a remote shell or a PowerShell host is
+     * admitted without a shell, as such shells hold their own admission while they are open. A detached job is
+     * admitted for each of its scripts instead.
+     */
+    private AdmissionControl.Permit admit(final Invocation invocation)
+            throws AdmissionControl.TimeoutException, InterruptedException {
+        if (invocation.detached) {
+            invocation.admitted = true;
+            return AdmissionControl.Permit.NONE;
+        }
+        final boolean newShell = null != invocation.concurrent
+                || null == invocation.shellScope && !invocation.powershellPool.isEnabled();
+        final AdmissionControl.Permit permit = admit(invocation.options, invocation.admission, newShell ? 1 : 0, 1,
+                invocation.metrics);
+        invocation.admitted = true;
+        if (permit.getWaited() > 0) {
+            invocation.log(Constants.VERBOSE_LEVEL, "Waited " + permit.getWaited() + "ms for admission");
+        }
+        return permit;
+    }
+
+    /**
+     * Run the command and return its exit code, all output has been passed on when this returns.
+     */
+    private int runCommand(final Invocation invocation) {
+        final OverthereExecutionOutputHandler stdout;
+        final OverthereExecutionOutputHandler stderr;
+        if (invocation.listenerOutput) {
+            final ExecutionListenerOutputHandler out = new ExecutionListenerOutputHandler(
+                    invocation.context.getExecutionListener(), Constants.INFO_LEVEL, invocation.outputBatchSize,
+                    invocation.outputFlushInterval);
+            final ExecutionListenerOutputHandler err = new ExecutionListenerOutputHandler(
+                    invocation.context.getExecutionListener(), Constants.ERR_LEVEL, invocation.outputBatchSize,
+                    invocation.outputFlushInterval);
+            out.start();
+            err.start();
+            stdout = out;
+            stderr = err;
+        } else {
+            stdout = ConsoleOverthereExecutionOutputHandler.sysoutHandler();
+            stderr = ConsoleOverthereExecutionOutputHandler.syserrHandler();
+        }
+        invocation.stdout = invocation.metrics.countOutput(stdout);
+        invocation.stderr = invocation.metrics.countOutput(stderr);
+        if (null != invocation.batch) {
+            invocation.stdout = invocation.batch.split(invocation.stdout);
+        } else if (null != invocation.concurrent) {
+            invocation.stdout = invocation.concurrent.split(invocation.stdout, invocation.stderr);
+        }
+        AdaptiveTimeouts.ResponseTimer timer = null;
+        invocation.connected = false;
+        if (invocation.adaptiveTimeout) {
+            timer = new AdaptiveTimeouts.ResponseTimer();
+            invocation.stdout = timer.wrap(invocation.stdout);
+            invocation.stderr = timer.wrap(invocation.stderr);
+        }
+        try {
+            final int result;
+            if (null != invocation.concurrent) {
+                result = executeStandalone(invocation);
+            } else if (invocation.detached && null == invocation.batch) {
+                result = executeDetached(invocation);
+            } else if (null != invocation.shellScope) {
+                result = executeInRemoteShell(invocation);
+            } else if (invocation.powershellPool.isEnabled()) {
+                result = executeInPowerShellHost(invocation);
+            } else {
+                result = executeStandalone(invocation);
+            }
+            if (null != timer && invocation.connected) {
+                ADAPTIVE_TIMEOUTS.record(invocation.node.extractHostname(), timer.elapsed());
+            }
+            if (null != invocation.batch) {
+                return invocation.batch.getResult(result);
+            }
+            return null != invocation.concurrent ? invocation.concurrent.getResult() : result;
+        } finally {
+            closeOutput(stdout);
+            closeOutput(stderr);
+        }
+    }
+
+    private static void closeOutput(final OverthereExecutionOutputHandler handler) {
+        if (handler instanceof ExecutionListenerOutputHandler) {
+            ((ExecutionListenerOutputHandler) handler).close();
+        }
+    }
+
+    /**
+     * Borrow a connection for the invocation, and note whether a new connection was opened for it
+     */
+    private WinRMConnectionPool.Lease borrowConnection(final Invocation invocation) {
+        final WinRMConnectionPool.Lease lease = borrowConnection(CifsConnectionBuilder.CIFS_PROTOCOL,
+                invocation.options, invocation.poolSettings, null, invocation.metrics);
+        if (!lease.isReused()) {
+            invocation.connected = true;
+        }
+        return lease;
+    }
+
+    /**
+     * Run the command on a pooled or new connection, without a shell kept for later commands
+     */
+    private int executeStandalone(final Invocation invocation) {
+        if (null != invocation.batch) {
+            return executeInNewShell(invocation);
+        }
+        final WinRMConnectionPool.Lease lease = borrowConnection(invocation);
+        if (lease.isReused()) {
+            invocation.log(Constants.VERBOSE_LEVEL, "Reusing pooled connection");
+        }
+        return execute(lease, invocation);
+    }
+
+    /**
+     * Run the command without a shell kept for later commands, when no kept shell can be used for it. The command
+     * was admitted without a shell, so it is admitted as a new shell for as long as it runs.
+     */
+    private int executeInOwnShell(final Invocation invocation) {
+        final AdmissionControl.Permit permit = admitNow(invocation, 1, 0);
+        try {
+            return executeStandalone(invocation);
+        } finally {
+            permit.release();
+        }
+    }
+
+    /**
+     * Run a command batch in a shell of its own, which is closed afterwards
+     */
+    private int executeInNewShell(final Invocation invocation) {
+        final WinRMConnectionPool.Lease lease = borrowConnection(invocation);
+        if (!lease.getConnection().canStartProcess()) {
+            releaseConnection(lease, true);
+            throw new RuntimeIOException("Cannot start a shell for the command batch");
+        }
+        final RemoteShell shell = startRemoteShell(lease, invocation, false);
+        final long start = invocation.metrics.start();
+        invocation.commandStarted = true;
+        try {
+            return shell.execute(commandText(invocation), invocation.stdout, invocation.stderr);
+        } finally {
+            invocation.metrics.record(WinRMMetrics.Phase.Command, start);
+            REMOTE_SHELLS.discard(shell);
+        }
+    }
+
+    /**
+     * @return the text of the command, or the script of the batch, for a shell
+     */
+    private static String commandText(final Invocation invocation) {
+        if (null != invocation.batch) {
+            return invocation.batch.getScript(CMD_TYPE_POWERSHELL.equals(invocation.cmdType));
+        }
+        return joinCommand(invocation.command);
+    }
+
+    /**
+     * Run the command in a new shell on the leased connection, and give back the lease. The command counts as started
+     * once the shell was created and the command sent.
+     */
+    private int execute(final WinRMConnectionPool.Lease lease, final Invocation invocation) {
+        boolean reusable = false;
+        final long start = invocation.metrics.start();
+        final Runnable started = new Runnable() {
+            public void run() {
+                invocation.commandStarted = true;
+            }
+        };
+        try {
+            final int result;
+            if (null != invocation.concurrent) {
+                result = new EncodedPowerShellCommand(invocation.concurrent.getScript(
+                        CMD_TYPE_POWERSHELL.equals(invocation.cmdType))).execute(lease.getConnection(),
+                        invocation.stdout, invocation.stderr, started);
+            } else if (invocation.encoded) {
+                result = EncodedPowerShellCommand.of(invocation.command).execute(lease.getConnection(),
+                        invocation.stdout, invocation.stderr, started);
+            } else {
+                result = RemoteProcess.run(lease.getConnection(),
+                        buildCommandLine(invocation.command, invocation.cmdType), null, invocation.stdout,
+                        invocation.stderr, started);
+            }
+            reusable = true;
+            return result;
+        } finally {
+            invocation.metrics.record(WinRMMetrics.Phase.Command, start);
+            releaseConnection(lease, reusable);
+        }
+    }
+
+    /**
+     * Start the command as a detached job, or take the job to attach to, and wait until polls of the job see it
+     * finish. The job is given up after too many failed polls, and killed if the waiting thread is interrupted.
+     */
+    private int executeDetached(final Invocation invocation) {
+        DetachedJob job = invocation.detachedJob;
+        if (null == job) {
+            job = startDetachedJob(invocation);
+            invocation.detachedJob = job;
+            if (invocation.detachOnly) {
+                return 0;
+            }
+        } else {
+            invocation.commandStarted = true;
+        }
+        final DetachedPoll poll = new DetachedPoll(invocation, job);
+        final long start = invocation.metrics.start();
+        final ScheduledFuture<?> future = DETACHED_JOBS.getPoller().scheduleWithFixedDelay(poll,
+                invocation.detachedPollInterval, invocation.detachedPollInterval, TimeUnit.MILLISECONDS);
+        try {
+            while (!poll.finished.await(invocation.detachedPollInterval, TimeUnit.MILLISECONDS)) {
+                poll.drain();
+            }
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            poll.drain();
+            invocation.log(Constants.WARN_LEVEL, "Interrupted, killing detached job " + job.getId());
+            cleanupDetachedJob(invocation, job, true);
+            Thread.currentThread().interrupt();
+            throw new RuntimeIOException("Interrupted while waiting for detached job " + job.getId());
+        } finally {
+            future.cancel(false);
+            poll.drain();
+            invocation.metrics.record(WinRMMetrics.Phase.Command, start);
+        }
+        if (poll.failures >= MAX_DETACHED_POLL_FAILURES) {
+            throw new RuntimeIOException("Lost contact with detached job " + job.getId() + " after "
+                    + poll.failures + " failed polls, it can be attached to again");
+        }
+        if (poll.exitCode < 0) {
+            invocation.log(Constants.ERR_LEVEL, "Detached job " + job.getId() + " ended without an exit code");
+        }
+        cleanupDetachedJob(invocation, job, false);
+        return poll.exitCode;
+    }
+
+    /**
+     * Start the command through WMI, so that it does not end with the shell, and track it
+     */
+    private DetachedJob startDetachedJob(final Invocation invocation) {
+        final String id = UUID.randomUUID().toString().replace("-", "");
+        final String commandLine;
+        if (invocation.encoded) {
+            commandLine = PowerShellUtil.encodedCommandLine(joinCommand(invocation.command))
+                    .toCommandLine(OperatingSystemFamily.WINDOWS, false);
+        } else {
+            commandLine = buildCommandLine(invocation.command, invocation.cmdType)
+                    .toCommandLine(OperatingSystemFamily.WINDOWS, false);
+        }
+        invocation.commandStarted = true;
+        final String line = runDetachedScript(invocation, DetachedJob.startScript(id, commandLine));
+        final DetachedJob job = null != line
+                ? DetachedJob.parseStarted(id, invocation.node.extractHostname(), line)
+                : null;
+        if (null == job) {
+            throw new RuntimeIOException("Cannot start detached job " + id);
+        }
+        DETACHED_JOBS.add(job);
+        invocation.log(Constants.VERBOSE_LEVEL, "Started detached job " + id + ", process " + job.getProcessId());
+        return job;
+    }
+
+    /**
+     * Remove the files of the job on the node, and stop tracking it. A failure is logged, the files are left.
+     *
+     * @param kill true to end the job first
+     */
+    private void cleanupDetachedJob(final Invocation invocation, final DetachedJob job, final boolean kill) {
+        DETACHED_JOBS.remove(job);
+        try {
+            runDetachedScript(invocation, job.cleanupScript(kill));
+        } catch (RuntimeException e) {
+            invocation.log(Constants.WARN_LEVEL, "Cannot remove files of detached job " + job.getId() + ": "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Thrown when shells or operations needed while the command runs are not admitted within the timeout
+     */
+    private static final class AdmissionTimeoutException extends RuntimeIOException {
+        private AdmissionTimeoutException(final AdmissionControl.TimeoutException cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Wait for admission of shells or operations while the command runs
+     *
+     * @throws AdmissionTimeoutException if the timeout passed first
+     * @throws RuntimeIOException        if interrupted
+     */
+    private AdmissionControl.Permit admitNow(final Invocation invocation, final int shells, final int operations) {
+        try {
+            return admit(invocation.options, invocation.admission, shells, operations, invocation.metrics);
+        } catch (AdmissionControl.TimeoutException e) {
+            throw new AdmissionTimeoutException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeIOException("Interrupted waiting for admission");
+        }
+    }
+
+    /**
+     * Run a script for a detached job on a pooled connection, once admitted by the limits of the host
+     *
+     * @return the output line of the script with the detached job marker, or null
+     */
+    private String runDetachedScript(final Invocation invocation, final String script) {
+        return runDetachedScript(invocation, script, invocation.stdout, invocation.stderr);
+    }
+
+    /**
+     * Run a script for a detached job, passing its other output to the given handlers
+     *
+     * @return the output line of the script with the detached job marker, or null
+     */
+    private String runDetachedScript(
+            final Invocation invocation,
+            final String script,
+            final OverthereExecutionOutputHandler stdout,
+            final OverthereExecutionOutputHandler stderr
+    ) {
+        final AdmissionControl.Permit permit = admitNow(invocation, 1, 1);
+        final DetachedJob.Reply reply = new DetachedJob.Reply(stdout);
+        boolean reusable = false;
+        WinRMConnectionPool.Lease lease = null;
+        try {
+            lease = borrowConnection(invocation);
+            final int result = new EncodedPowerShellCommand(script).execute(lease.getConnection(), reply, stderr);
+            reusable = true;
+            if (result != 0) {
+                throw new RuntimeIOException("Detached job script failed with exit code " + result);
+            }
+            return reply.getLine();
+        } finally {
+            if (null != lease) {
+                releaseConnection(lease, reusable);
+            }
+            permit.release();
+        }
+    }
+
+    /**
+     * Poll of a detached job, run on the shared poller. The output and warnings of the polls are queued, and passed on
+     * by the thread of the step with {@link #drain()}, as the execution listener must not be called from other
+     * threads.
+     */
+    private final class DetachedPoll implements Runnable {
+        private final Invocation invocation;
+        private final DetachedJob job;
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private final Queue<String> stdout = new ConcurrentLinkedQueue<String>();
+        private final Queue<String> stderr = new ConcurrentLinkedQueue<String>();
+        private final Queue<String> warnings = new ConcurrentLinkedQueue<String>();
+        private volatile int exitCode = -1;
+        private volatile int failures;
+
+        private DetachedPoll(final Invocation invocation, final DetachedJob job) {
+            this.invocation = invocation;
+            this.job = job;
+        }
+
+        public void run() {
+            if (finished.getCount() == 0) {
+                return;
+            }
+            final DetachedJob.Status status;
+            try {
+                final String line = runDetachedScript(invocation, job.pollScript(), queue(stdout), queue(stderr));
+                status = null != line ? DetachedJob.parseStatus(line) : null;
+                if (null == status) {
+                    throw new RuntimeIOException("Unexpected reply");
+                }
+            } catch (RuntimeException e) {
+                failures++;
+                warnings.add("Poll of detached job " + job.getId() + " failed (" + failures + " of "
+                        + MAX_DETACHED_POLL_FAILURES + "): " + e.getMessage());
+                if (failures >= MAX_DETACHED_POLL_FAILURES) {
+                    finished.countDown();
+                }
+                return;
+            }
+            failures = 0;
+            final String[] lines = status.getOutput().split("\n", -1);
+            for (int i = 0; i < lines.length; i++) {
+                if (i < lines.length - 1 || lines[i].length() > 0) {
+                    stdout.add(lines[i].endsWith("\r") ? lines[i].substring(0, lines[i].length() - 1) : lines[i]);
+                }
+            }
+            job.setOffset(status.getOffset());
+            DETACHED_JOBS.updated();
+            if (status.isFinished()) {
+                exitCode = status.getExitCode();
+                finished.countDown();
+            }
+        }
+
+        /**
+         * Pass on the queued output and warnings, on the thread of the step
+         */
+        private void drain() {
+            String line;
+            while (null != (line = stderr.poll())) {
+                RemoteShell.emitLine(invocation.stderr, line);
+            }
+            while (null != (line = stdout.poll())) {
+                RemoteShell.emitLine(invocation.stdout, line);
+            }
+            while (null != (line = warnings.poll())) {
+                invocation.log(Constants.WARN_LEVEL, line);
+            }
+        }
+    }
+
+    /**
+     * @return handler adding the lines of output to the queue
+     */
+    private static OverthereExecutionOutputHandler queue(final Queue<String> lines) {
+        return new OverthereExecutionOutputHandler() {
+            public void handleChar(final char c) {
+            }
+
+            public void handleLine(final String line) {
+                lines.add(line);
+            }
+        };
+    }
+
+    /**
+     * Run the command in a shell that stays open for the following steps of the same execution on the node.
+     */
+    private int executeInRemoteShell(final Invocation invocation) {
+        final RemoteShellRegistry.Key key = remoteShellKey(invocation);
+        RemoteShell shell = REMOTE_SHELLS.take(key);
+        if (null != shell) {
+            invocation.log(Constants.VERBOSE_LEVEL, "Reusing remote shell");
+        } else {
+            final WinRMConnectionPool.Lease lease = borrowConnection(invocation);
+            if (!lease.getConnection().canStartProcess()) {
+                releaseConnection(lease, true);
+                return executeInOwnShell(invocation);
+            }
+            shell = startRemoteShell(lease, invocation, true);
+        }
+
+        boolean reusable = false;
+        final long start = invocation.metrics.start();
+        invocation.commandStarted = true;
+        try {
+            int result = shell.execute(commandText(invocation), invocation.stdout, invocation.stderr);
+            reusable = true;
+            return result;
+        } finally {
+            invocation.metrics.record(WinRMMetrics.Phase.Command, start);
+            if (reusable) {
+                REMOTE_SHELLS.offer(key, shell, invocation.shellIdleTimeout);
+            } else {
+                REMOTE_SHELLS.discard(shell);
+            }
+        }
+    }
+
+    /**
+     * Run the command in a warm PowerShell host of the node, which is kept for the following PowerShell commands of
+     * any execution. If the maximum number of hosts of the node are busy, the command runs in its own process.
+     */
+    private int executeInPowerShellHost(final Invocation invocation) {
+        final WinRMConnectionPool.Key key = WinRMConnectionPool.Key.of(CifsConnectionBuilder.CIFS_PROTOCOL,
+                invocation.options);
+        RemoteShell host = POWERSHELL_HOSTS.take(key);
+        if (null != host) {
+            invocation.log(Constants.VERBOSE_LEVEL, "Reusing PowerShell host");
+        } else if (POWERSHELL_HOSTS.reserve(key, invocation.powershellPool.getMaxSize())) {
+            host = startPowerShellHost(key, invocation);
+            if (null == host) {
+                return executeInOwnShell(invocation);
+            }
+        } else {
+            invocation.log(Constants.VERBOSE_LEVEL, "All PowerShell hosts are busy");
+            return executeInOwnShell(invocation);
+        }
+
+        boolean reusable = false;
+        final long start = invocation.metrics.start();
+        invocation.commandStarted = true;
+        try {
+            int result = host.execute(commandText(invocation), invocation.stdout, invocation.stderr);
+            reusable = true;
+            return result;
+        } finally {
+            invocation.metrics.record(WinRMMetrics.Phase.Command, start);
+            if (reusable) {
+                POWERSHELL_HOSTS.offer(key, host, invocation.powershellPool);
+            } else {
+                POWERSHELL_HOSTS.discard(key, host);
+            }
+        }
+    }
+
+    /**
+     * Start a PowerShell host in the place reserved in the pool, the reservation is given up if it fails
+     *
+     * @return the host, or null if the connection cannot start processes
+     */
+    private RemoteShell startPowerShellHost(final WinRMConnectionPool.Key key, final Invocation invocation) {
+        boolean started = false;
+        try {
+            final WinRMConnectionPool.Lease lease = borrowConnection(invocation);
+            if (!lease.getConnection().canStartProcess()) {
+                releaseConnection(lease, true);
+                return null;
+            }
+            final RemoteShell host = startRemoteShell(lease, invocation, true);
+            started = true;
+            return host;
+        } finally {
+            if (!started) {
+                POWERSHELL_HOSTS.unreserve(key);
+            }
+        }
+    }
+
+    private static RemoteShellRegistry.Key remoteShellKey(final Invocation invocation) {
+        return new RemoteShellRegistry.Key(invocation.shellScope,
+                WinRMConnectionPool.Key.of(CifsConnectionBuilder.CIFS_PROTOCOL, invocation.options),
+                shellType(invocation));
+    }
+
+    /**
+     * @return the type of the shell for the invocation, a command batch is a PowerShell script for either type
+     */
+    private static String shellType(final Invocation invocation) {
+        return null != invocation.batch ? CMD_TYPE_POWERSHELL : invocation.cmdType;
+    }
+
+    /**
+     * Start a shell on the leased connection. A shell which is kept open after the command, as the remote shell of
+     * the execution or a pooled PowerShell host, is first admitted as a shell by the limits of the host, and holds
+     * that admission until it is closed. The lease is given back if the shell cannot be started.
+     *
+     * @param kept true if the shell is kept open after the command
+     */
+    private RemoteShell startRemoteShell(
+            final WinRMConnectionPool.Lease lease,
+            final Invocation invocation,
+            final boolean kept
+    ) {
+        AdmissionControl.Permit permit = AdmissionControl.Permit.NONE;
+        if (kept) {
+            try {
+                permit = admitNow(invocation, 1, 0);
+            } catch (RuntimeIOException e) {
+                releaseConnection(lease, true);
+                throw e;
+            }
+        }
+        final RemoteShell shell;
+        final long start = invocation.metrics.start();
+        try {
+            shell = RemoteShell.start(lease, permit, shellType(invocation));
+        } catch (RuntimeException e) {
+            permit.release();
+            releaseConnection(lease, false);
+            throw e;
+        } finally {
+            invocation.metrics.record(WinRMMetrics.Phase.Shell, start);
+        }
+        invocation.log(Constants.VERBOSE_LEVEL, "Opened remote shell");
+        return shell;
+    }
+
+    private static String joinCommand(final String[] command) {
+        StringBuilder sb = new StringBuilder();
+        for (String s : command) {
+            if (sb.length() > 0) {
+                sb.append(" ");
+            }
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+
     /**
      * Create the {@link CmdLine} to run from the input string array, the default behavior is to use {@link #buildCmdLineRaw(String...)}
      * @param command
@@ -161,7 +1389,7 @@ public class OTWinRMNodeExecutor extends OTWinRMPlugin implements NodeExecutor,
         cmdLine.addRaw("powershell");
         StringBuilder command = new StringBuilder("");
         for (String s : args) {
-            command.append(s.replaceAll("\"", "\\\\\"")).append(" ");
+            command.append(s.replace("\"", "\\\"")).append(" ");
         }
         cmdLine.addRaw(command.toString());
         return cmdLine;
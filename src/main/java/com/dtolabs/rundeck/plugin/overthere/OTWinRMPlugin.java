@@ -10,18 +10,23 @@ import com.dtolabs.rundeck.core.storage.ResourceMeta;
 import com.dtolabs.rundeck.plugins.util.DescriptionBuilder;
 import com.dtolabs.rundeck.plugins.util.PropertyBuilder;
 import com.xebialabs.overthere.ConnectionOptions;
+import com.xebialabs.overthere.OverthereConnection;
 import com.xebialabs.overthere.cifs.CifsConnectionBuilder;
 import com.xebialabs.overthere.cifs.CifsConnectionType;
 import com.xebialabs.overthere.cifs.WinrmHttpsCertificateTrustStrategy;
 import com.xebialabs.overthere.cifs.WinrmHttpsHostnameVerificationStrategy;
+import com.xebialabs.overthere.smb.SmbConnectionBuilder;
+import com.xebialabs.overthere.util.DefaultAddressPortMapper;
 import org.rundeck.storage.api.Path;
 import org.rundeck.storage.api.PathUtil;
 import org.rundeck.storage.api.StorageException;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 import static com.xebialabs.overthere.ConnectionOptions.*;
 import static com.xebialabs.overthere.OperatingSystemFamily.WINDOWS;
@@ -64,6 +69,7 @@ class OTWinRMPlugin {
     public static final String HOSTNAME_TRUST_ALL = "all";
 
     public static final String FILE_COPY_DESTINATION_DIR = "file-copy-destination-dir";
+    public static final String DEFAULT_TEMP_DIRECTORY = "C:\\windows\\temp";
 
     public static final String CMD_TYPE_CMD = "CMD";
     public static final String CMD_TYPE_POWERSHELL = "PowerShell";
@@ -82,6 +88,112 @@ class OTWinRMPlugin {
     public static final Boolean DEFAULT_KERBEROS_CACHE = false;
     public static final String DEFAULT_WINRM_USER = "rundeck";
 
+    public static final String WINRM_CONNECTION_POOL = "winrm-connection-pool";
+    public static final Boolean DEFAULT_CONNECTION_POOL = false;
+    public static final String WINRM_POOL_MAX_IDLE = "winrm-pool-max-idle";
+    public static final int DEFAULT_POOL_MAX_IDLE = 2;
+    public static final String WINRM_POOL_IDLE_TIMEOUT = "winrm-pool-idle-timeout";
+    public static final long DEFAULT_POOL_IDLE_TIMEOUT = 60000;
+    public static final String WINRM_POOL_MAX_LIFETIME = "winrm-pool-max-lifetime";
+    public static final long DEFAULT_POOL_MAX_LIFETIME = 600000;
+    public static final String WINRM_POOL_VALIDATE_AFTER = "winrm-pool-validate-after";
+    public static final long DEFAULT_POOL_VALIDATE_AFTER = 30000;
+    public static final String WINRM_SHELL_REUSE = "winrm-shell-reuse";
+    public static final Boolean DEFAULT_SHELL_REUSE = false;
+    public static final String WINRM_SHELL_IDLE_TIMEOUT = "winrm-shell-idle-timeout";
+    public static final long DEFAULT_SHELL_IDLE_TIMEOUT = 60000;
+    public static final String WINRM_POWERSHELL_POOL = "winrm-powershell-pool";
+    public static final Boolean DEFAULT_POWERSHELL_POOL = false;
+    public static final String WINRM_POWERSHELL_POOL_MIN = "winrm-powershell-pool-min";
+    public static final int DEFAULT_POWERSHELL_POOL_MIN = 0;
+    public static final String WINRM_POWERSHELL_POOL_MAX = "winrm-powershell-pool-max";
+    public static final int DEFAULT_POWERSHELL_POOL_MAX = 4;
+    public static final String WINRM_POWERSHELL_POOL_IDLE_TIMEOUT = "winrm-powershell-pool-idle-timeout";
+    public static final long DEFAULT_POWERSHELL_POOL_IDLE_TIMEOUT = 300000;
+    public static final String WINRM_PASSWORD_CACHE_TTL = "winrm-password-cache-ttl";
+    public static final long DEFAULT_PASSWORD_CACHE_TTL = 0;
+    public static final int PASSWORD_CACHE_SIZE = 1000;
+    public static final String WINRM_KERBEROS_CREDENTIAL_CHECK = "winrm-kerberos-credential-check";
+    public static final Boolean DEFAULT_KERBEROS_CREDENTIAL_CHECK = false;
+    public static final int KERBEROS_CREDENTIAL_CHECK_SIZE = 1000;
+    public static final String WINRM_OUTPUT_MODE = "winrm-output-mode";
+    public static final String OUTPUT_MODE_CONSOLE = "console";
+    public static final String OUTPUT_MODE_LISTENER = "listener";
+    public static final String DEFAULT_OUTPUT_MODE = OUTPUT_MODE_CONSOLE;
+    public static final String WINRM_OUTPUT_BATCH_SIZE = "winrm-output-batch-size";
+    public static final int DEFAULT_OUTPUT_BATCH_SIZE = 8192;
+    public static final String WINRM_OUTPUT_FLUSH_INTERVAL = "winrm-output-flush-interval";
+    public static final long DEFAULT_OUTPUT_FLUSH_INTERVAL = 500;
+    public static final String WINRM_FILE_COPY_MODE = "winrm-file-copy-mode";
+    public static final String FILE_COPY_MODE_SMB = "smb";
+    public static final String FILE_COPY_MODE_WINRM = "winrm";
+    public static final String DEFAULT_FILE_COPY_MODE = FILE_COPY_MODE_SMB;
+    public static final String WINRM_FILE_COPY_CHUNK_SIZE = "winrm-file-copy-chunk-size";
+    public static final int DEFAULT_FILE_COPY_CHUNK_SIZE = 65536;
+    public static final String WINRM_FILE_COPY_PARALLELISM = "winrm-file-copy-parallelism";
+    public static final int DEFAULT_FILE_COPY_PARALLELISM = 1;
+    public static final String WINRM_FILE_COPY_PARALLEL_THRESHOLD = "winrm-file-copy-parallel-threshold";
+    public static final long DEFAULT_FILE_COPY_PARALLEL_THRESHOLD = 8 * 1024 * 1024;
+    public static final String WINRM_FILE_COPY_DELTA = "winrm-file-copy-delta";
+    public static final Boolean DEFAULT_FILE_COPY_DELTA = false;
+    public static final String WINRM_FILE_COPY_BLOCK_SIZE = "winrm-file-copy-block-size";
+    public static final int DEFAULT_FILE_COPY_BLOCK_SIZE = 16384;
+    public static final String WINRM_SCRIPT_CACHE = "winrm-script-cache";
+    public static final Boolean DEFAULT_SCRIPT_CACHE = false;
+    public static final String WINRM_SCRIPT_CACHE_DIR = "winrm-script-cache-dir";
+    public static final String DEFAULT_SCRIPT_CACHE_DIR = "%LOCALAPPDATA%\\rundeck-script-cache";
+    public static final String WINRM_SCRIPT_CACHE_MAX_SIZE = "winrm-script-cache-max-size";
+    public static final long DEFAULT_SCRIPT_CACHE_MAX_SIZE = 64 * 1024 * 1024;
+    public static final String WINRM_BULK_CONCURRENCY = "winrm-bulk-concurrency";
+    public static final int DEFAULT_BULK_CONCURRENCY = 64;
+    public static final String WINRM_BULK_HOST_CONCURRENCY = "winrm-bulk-host-concurrency";
+    public static final int DEFAULT_BULK_HOST_CONCURRENCY = 1;
+    public static final String WINRM_POWERSHELL_ENCODED = "winrm-powershell-encoded";
+    public static final Boolean DEFAULT_POWERSHELL_ENCODED = false;
+    public static final String WINRM_CIRCUIT_BREAKER = "winrm-circuit-breaker";
+    public static final Boolean DEFAULT_CIRCUIT_BREAKER = false;
+    public static final String WINRM_CIRCUIT_BREAKER_THRESHOLD = "winrm-circuit-breaker-threshold";
+    public static final int DEFAULT_CIRCUIT_BREAKER_THRESHOLD = 3;
+    public static final String WINRM_CIRCUIT_BREAKER_BACKOFF = "winrm-circuit-breaker-backoff";
+    public static final long DEFAULT_CIRCUIT_BREAKER_BACKOFF = 30000;
+    public static final String WINRM_CIRCUIT_BREAKER_MAX_BACKOFF = "winrm-circuit-breaker-max-backoff";
+    public static final long DEFAULT_CIRCUIT_BREAKER_MAX_BACKOFF = 300000;
+    public static final String WINRM_RETRY_MAX_ATTEMPTS = "winrm-retry-max-attempts";
+    public static final int DEFAULT_RETRY_MAX_ATTEMPTS = 1;
+    public static final String WINRM_RETRY_BACKOFF = "winrm-retry-backoff";
+    public static final long DEFAULT_RETRY_BACKOFF = 1000;
+    public static final String WINRM_RETRY_MAX_BACKOFF = "winrm-retry-max-backoff";
+    public static final long DEFAULT_RETRY_MAX_BACKOFF = 30000;
+    public static final String WINRM_RETRY_BUDGET = "winrm-retry-budget";
+    public static final int DEFAULT_RETRY_BUDGET = 20;
+    public static final String WINRM_ADMISSION = "winrm-admission";
+    public static final Boolean DEFAULT_ADMISSION = false;
+    public static final String WINRM_ADMISSION_MAX_SHELLS = "winrm-admission-max-shells";
+    public static final int DEFAULT_ADMISSION_MAX_SHELLS = 30;
+    public static final String WINRM_ADMISSION_MAX_OPERATIONS = "winrm-admission-max-operations";
+    public static final int DEFAULT_ADMISSION_MAX_OPERATIONS = 1500;
+    public static final String WINRM_ADMISSION_TIMEOUT = "winrm-admission-timeout";
+    public static final long DEFAULT_ADMISSION_TIMEOUT = 60000;
+    public static final String WINRM_ADAPTIVE_TIMEOUT = "winrm-adaptive-timeout";
+    public static final Boolean DEFAULT_ADAPTIVE_TIMEOUT = false;
+    public static final String WINRM_ADAPTIVE_TIMEOUT_PERCENTILE = "winrm-adaptive-timeout-percentile";
+    public static final int DEFAULT_ADAPTIVE_TIMEOUT_PERCENTILE = 99;
+    public static final String WINRM_ADAPTIVE_TIMEOUT_MARGIN = "winrm-adaptive-timeout-margin";
+    public static final int DEFAULT_ADAPTIVE_TIMEOUT_MARGIN = 100;
+    public static final String WINRM_ADAPTIVE_TIMEOUT_MIN = "winrm-adaptive-timeout-min";
+    public static final long DEFAULT_ADAPTIVE_TIMEOUT_MIN = 2000;
+    public static final String ADAPTIVE_TIMEOUT_FILE = "var/winrm-latency.properties";
+    public static final String WINRM_WARMUP = "winrm-warmup";
+    public static final Boolean DEFAULT_WARMUP = false;
+    public static final String WINRM_WARMUP_TAGS = "winrm-warmup-tags";
+    public static final String WINRM_DETACHED = "winrm-detached";
+    public static final Boolean DEFAULT_DETACHED = false;
+    public static final String WINRM_DETACHED_POLL_INTERVAL = "winrm-detached-poll-interval";
+    public static final long DEFAULT_DETACHED_POLL_INTERVAL = 15000;
+    public static final String DETACHED_JOBS_FILE = "var/winrm-detached-jobs.properties";
+    public static final String WINRM_METRICS = "winrm-metrics";
+    public static final Boolean DEFAULT_METRICS = false;
+
     public static final WinrmHttpsCertificateTrustStrategy DEFAULT_CERT_TRUST =
             WinrmHttpsCertificateTrustStrategy.STRICT;
     public static final WinrmHttpsHostnameVerificationStrategy DEFAULT_HOSTNAME_VERIFY =
@@ -218,8 +330,13 @@ class OTWinRMPlugin {
             final String frameworkProject,
             final Framework framework
     ) throws OTWinRMNodeExecutor.ConfigurationException {
+        return toInt(attribute, resolveProperty(attribute, null, iNodeEntry, frameworkProject, framework),
+                defaultValue);
+    }
+
+    static int toInt(final String attribute, final String string, final int defaultValue)
+            throws ConfigurationException {
         int value = defaultValue;
-        final String string = resolveProperty(attribute, null, iNodeEntry, frameworkProject, framework);
         if (null != string) {
             try {
                 value = Integer.parseInt(string);
@@ -237,8 +354,13 @@ class OTWinRMPlugin {
             final String frameworkProject,
             final Framework framework
     ) throws OTWinRMNodeExecutor.ConfigurationException {
+        return toLong(attribute, resolveProperty(attribute, null, iNodeEntry, frameworkProject, framework),
+                defaultValue);
+    }
+
+    static long toLong(final String attribute, final String string, final long defaultValue)
+            throws ConfigurationException {
         long value = defaultValue;
-        final String string = resolveProperty(attribute, null, iNodeEntry, frameworkProject, framework);
         if (null != string) {
             try {
                 value = Long.parseLong(string);
@@ -256,14 +378,28 @@ class OTWinRMPlugin {
             final String frameworkProject,
             final Framework framework
     ) {
+        return toBoolean(resolveProperty(attribute, null, iNodeEntry, frameworkProject, framework), defaultValue);
+    }
+
+    static boolean toBoolean(final String string, final boolean defaultValue) {
         boolean value = defaultValue;
-        final String string = resolveProperty(attribute, null, iNodeEntry, frameworkProject, framework);
         if (null != string) {
             value = Boolean.parseBoolean(string);
         }
         return value;
     }
 
+    /**
+     * @return the execution id from the data context, or null if not available
+     */
+    static String getExecutionId(final ExecutionContext context) {
+        final Map<String, Map<String, String>> dataContext = context.getDataContext();
+        if (null != dataContext && null != dataContext.get("job")) {
+            return nonBlank(dataContext.get("job").get("execid"));
+        }
+        return null;
+    }
+
     protected static String nonBlank(String input) {
         if (null == input || "".equals(input.trim())) {
             return null;
@@ -312,18 +448,58 @@ class OTWinRMPlugin {
         private INodeEntry node;
         private Framework framework;
         private String frameworkProject;
+        private ProjectConfig config;
+        private WinRMMetrics.NodeMetrics metrics = WinRMMetrics.DISABLED;
+        private String passwordCacheKey;
 
         ConnectionOptionsBuilder(final ExecutionContext context, final INodeEntry node, final Framework framework) {
+            this(context, node, framework, ProjectConfig.forProject(framework, context.getFrameworkProject()));
+        }
+
+        ConnectionOptionsBuilder(
+                final ExecutionContext context,
+                final INodeEntry node,
+                final Framework framework,
+                final ProjectConfig config
+        ) {
             this.context = context;
             this.node = node;
             this.framework = framework;
             this.frameworkProject = context.getFrameworkProject();
+            this.config = config;
+        }
+
+        /**
+         * Resolve a property from the node attributes, or the project and framework configuration snapshot.
+         *
+         * @see #resolveProperty(String, String, INodeEntry, String, Framework)
+         */
+        public String resolve(final String attribute, final String defaultValue) {
+            return config.resolve(getNode(), attribute, defaultValue);
+        }
+
+        /**
+         * @param metrics metrics to record the Key Storage lookup in
+         */
+        void setMetrics(final WinRMMetrics.NodeMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        public int resolveInt(final String attribute, final int defaultValue) throws ConfigurationException {
+            return toInt(attribute, resolve(attribute, null), defaultValue);
+        }
+
+        public long resolveLong(final String attribute, final long defaultValue) throws ConfigurationException {
+            return toLong(attribute, resolve(attribute, null), defaultValue);
+        }
+
+        public boolean resolveBoolean(final String attribute, final boolean defaultValue) {
+            return toBoolean(resolve(attribute, null), defaultValue);
         }
 
         public String getPassword()  throws OTWinRMNodeExecutor.ConfigurationException {
             //look for storage option
-            String storagePath = resolveProperty(WINRM_PASSWORD_STORAGE_PATH, null,
-                    getNode(), getFrameworkProject(), getFramework());
+            String storagePath = resolve(WINRM_PASSWORD_STORAGE_PATH, null);
             if(null!=storagePath){
                 //look up storage value
                 if (storagePath.contains("${")) {
@@ -332,31 +508,95 @@ class OTWinRMPlugin {
                             context.getDataContext()
                     );
                 }
-                Path path = PathUtil.asPath(storagePath);
+                final long ttl = getPasswordCacheTtl();
+                if (ttl <= 0) {
+                    return readStoragePassword(storagePath);
+                }
+                //cache per user and project, as access to the storage path depends on both
+                final String cacheKey = context.getUser() + "@" + getFrameworkProject() + ":" + storagePath;
+                final String resolvedPath = storagePath;
+                passwordCacheKey = cacheKey;
                 try {
-                    ResourceMeta contents = context.getStorageTree().getResource(path)
-                            .getContents();
-                    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-                    contents.writeContent(byteArrayOutputStream);
-                    return new String(byteArrayOutputStream.toByteArray());
-                } catch (StorageException e) {
-                    throw new ConfigurationException("Failed to read the winrm password for " +
-                            "storage path: " + storagePath + ": " + e.getMessage());
-                } catch (IOException e) {
+                    return PASSWORD_CACHE.get(cacheKey, ttl, new Callable<String>() {
+                        public String call() throws Exception {
+                            return readStoragePassword(resolvedPath);
+                        }
+                    });
+                } catch (ConfigurationException e) {
+                    throw e;
+                } catch (Exception e) {
                     throw new ConfigurationException("Failed to read the winrm password for " +
-                            "storage path: " + storagePath + ": " + e.getMessage());
+                            "storage path: " + storagePath + ": " + e.getMessage(), e);
                 }
             }
             //else look up option value
-            final String passwordOption = resolveProperty(WINRM_PASSWORD_OPTION,
-                    DEFAULT_WINRM_PASSWORD_OPTION, getNode(),
-                    getFrameworkProject(), getFramework());
+            final String passwordOption = resolve(WINRM_PASSWORD_OPTION, DEFAULT_WINRM_PASSWORD_OPTION);
             return evaluateSecureOption(passwordOption, getContext());
         }
 
+        /**
+         * @return key of the password in the password cache, or null if the password was not read through the cache
+         */
+        String getPasswordCacheKey() {
+            return passwordCacheKey;
+        }
+
+        private String readStoragePassword(final String storagePath) throws ConfigurationException {
+            Path path = PathUtil.asPath(storagePath);
+            final long start = metrics.start();
+            try {
+                ResourceMeta contents = context.getStorageTree().getResource(path)
+                        .getContents();
+                ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+                contents.writeContent(byteArrayOutputStream);
+                return new String(byteArrayOutputStream.toByteArray());
+            } catch (StorageException e) {
+                throw new ConfigurationException("Failed to read the winrm password for " +
+                        "storage path: " + storagePath + ": " + e.getMessage());
+            } catch (IOException e) {
+                throw new ConfigurationException("Failed to read the winrm password for " +
+                        "storage path: " + storagePath + ": " + e.getMessage());
+            } finally {
+                metrics.record(WinRMMetrics.Phase.Storage, start);
+            }
+        }
+
+        /**
+         * @return time in milliseconds to keep passwords read from Key Storage, 0 to disable caching
+         */
+        public long getPasswordCacheTtl() throws ConfigurationException {
+            return resolveLong(WINRM_PASSWORD_CACHE_TTL, DEFAULT_PASSWORD_CACHE_TTL);
+        }
+
         public int getConnectionTimeout() throws ConfigurationException {
-            return resolveIntProperty(WINRM_CONNECTION_TIMEOUT_PROPERTY, DEFAULT_WINRM_CONNECTION_TIMEOUT, getNode(),
-                getFrameworkProject(), getFramework());
+            return resolveInt(WINRM_CONNECTION_TIMEOUT_PROPERTY, DEFAULT_WINRM_CONNECTION_TIMEOUT);
+        }
+
+        public boolean isAdaptiveTimeout() {
+            return resolveBoolean(WINRM_ADAPTIVE_TIMEOUT, DEFAULT_ADAPTIVE_TIMEOUT);
+        }
+
+        /**
+         * @return the connection timeout, derived from the latency observed for the host if adaptive timeouts are
+         * enabled, and at most the configured connection timeout
+         */
+        public int getEffectiveConnectionTimeout() throws ConfigurationException {
+            final int configured = getConnectionTimeout();
+            if (!isAdaptiveTimeout()) {
+                return configured;
+            }
+            final int percentile = resolveInt(WINRM_ADAPTIVE_TIMEOUT_PERCENTILE, DEFAULT_ADAPTIVE_TIMEOUT_PERCENTILE);
+            if (percentile <= 0 || percentile > 100) {
+                throw new ConfigurationException(WINRM_ADAPTIVE_TIMEOUT_PERCENTILE + " must be between 1 and 100: "
+                        + percentile);
+            }
+            if (null != framework && null != framework.getBaseDir()) {
+                ADAPTIVE_TIMEOUTS.load(new File(framework.getBaseDir(), ADAPTIVE_TIMEOUT_FILE));
+            }
+            return (int) ADAPTIVE_TIMEOUTS.timeout(getHostname(), configured,
+                    resolveLong(WINRM_ADAPTIVE_TIMEOUT_MIN, DEFAULT_ADAPTIVE_TIMEOUT_MIN),
+                    percentile,
+                    resolveInt(WINRM_ADAPTIVE_TIMEOUT_MARGIN, DEFAULT_ADAPTIVE_TIMEOUT_MARGIN));
         }
 
         public String getUsername() {
@@ -364,7 +604,7 @@ class OTWinRMPlugin {
             if (null != nonBlank(getNode().getUsername()) || getNode().containsUserName()) {
                 user = nonBlank(getNode().getUsername());
             } else {
-                user = resolveProperty(WINRM_USER_OPTION, DEFAULT_WINRM_USER_OPTION, getNode(), getFrameworkProject(), getFramework());
+                user = resolve(WINRM_USER_OPTION, DEFAULT_WINRM_USER_OPTION);
             }
 
             if (null != user && user.contains("${")) {
@@ -378,17 +618,11 @@ class OTWinRMPlugin {
         }
 
         public String getAuthType() {
-            return resolveProperty(WINRM_AUTH_TYPE, DEFAULT_AUTH_TYPE, getNode(), getFrameworkProject(), getFramework());
+            return resolve(WINRM_AUTH_TYPE, DEFAULT_AUTH_TYPE);
         }
 
         public WinrmHttpsCertificateTrustStrategy getCertTrustStrategy() {
-            String trust = resolveProperty(
-                    WINRM_CERT_TRUST,
-                    DEFAULT_CERT_TRUST.toString(),
-                    getNode(),
-                    getFrameworkProject(),
-                    getFramework()
-            );
+            String trust = resolve(WINRM_CERT_TRUST, DEFAULT_CERT_TRUST.toString());
             if (trust == null) {
                 return DEFAULT_CERT_TRUST;
             }
@@ -408,13 +642,7 @@ class OTWinRMPlugin {
         }
 
         public WinrmHttpsHostnameVerificationStrategy getHostTrust() {
-            String trust = resolveProperty(
-                    WINRM_HOSTNAME_TRUST,
-                    DEFAULT_HOSTNAME_VERIFY.toString(),
-                    getNode(),
-                    getFrameworkProject(),
-                    getFramework()
-            );
+            String trust = resolve(WINRM_HOSTNAME_TRUST, DEFAULT_HOSTNAME_VERIFY.toString());
             if (trust == null) {
                 return DEFAULT_HOSTNAME_VERIFY;
             }
@@ -434,54 +662,206 @@ class OTWinRMPlugin {
         }
 
         public String getProtocol() {
-            return resolveProperty(
-                    WINRM_PROTOCOL,
-                    DEFAULT_WINRM_PROTOCOL,
-                    getNode(),
-                    getFrameworkProject(),
-                    getFramework()
-            );
+            return resolve(WINRM_PROTOCOL, DEFAULT_WINRM_PROTOCOL);
         }
 
         public Boolean isDebugKerberosAuth() {
-            return resolveBooleanProperty(
-                    DEBUG_KERBEROS_AUTH,
-                    DEFAULT_DEBUG_KERBEROS_AUTH,
-                    getNode(),
-                    getFrameworkProject(),
-                    getFramework()
-            );
+            return resolveBoolean(DEBUG_KERBEROS_AUTH, DEFAULT_DEBUG_KERBEROS_AUTH);
         }
 
         public Boolean isDomainMember() {
-          return resolveBooleanProperty(WINRM_IS_DOMAIN_MEMBER, DEFAULT_IS_DOMAIN_MEMBER, getNode(), getFrameworkProject(),
-              getFramework());
+          return resolveBoolean(WINRM_IS_DOMAIN_MEMBER, DEFAULT_IS_DOMAIN_MEMBER);
         }
         public String getDomain() {
-            return resolveProperty(WINRM_DOMAIN, null, getNode(), getFrameworkProject(), getFramework());
+            return resolve(WINRM_DOMAIN, null);
         }
 
         public Boolean isWinrmSpnAddPort() {
-            return resolveBooleanProperty(WINRM_SPN_ADD_PORT, false, getNode(), getFrameworkProject(),
-                    getFramework());
+            return resolveBoolean(WINRM_SPN_ADD_PORT, false);
         }
 
         public Boolean isWinrmSpnUseHttp() {
-            return resolveBooleanProperty(WINRM_SPN_USE_HTTP, false, getNode(), getFrameworkProject(),
-                    getFramework());
+            return resolveBoolean(WINRM_SPN_USE_HTTP, false);
         }
 
         public String getWinrmLocale() {
-            return resolveProperty(WINRM_LOCALE, null, getNode(), getFrameworkProject(), getFramework());
+            return resolve(WINRM_LOCALE, null);
         }
 
         public String getWinrmTimeout() {
-            return resolveProperty(WINRM_TIMEOUT, null, getNode(), getFrameworkProject(), getFramework());
+            return resolve(WINRM_TIMEOUT, null);
         }
 
         public Boolean isKerberosCacheEnabled() {
-            return resolveBooleanProperty(KERBEROS_CACHE, DEFAULT_KERBEROS_CACHE, getNode(), getFrameworkProject(),
-                    getFramework());
+            return resolveBoolean(KERBEROS_CACHE, DEFAULT_KERBEROS_CACHE);
+        }
+
+        public Boolean isKerberosCredentialCheck() {
+            return resolveBoolean(WINRM_KERBEROS_CREDENTIAL_CHECK, DEFAULT_KERBEROS_CREDENTIAL_CHECK);
+        }
+
+        /**
+         * @return true if command output should be sent to the execution listener instead of System.out/err
+         */
+        public boolean isListenerOutput() {
+            return OUTPUT_MODE_LISTENER.equalsIgnoreCase(resolve(WINRM_OUTPUT_MODE, DEFAULT_OUTPUT_MODE));
+        }
+
+        public int getOutputBatchSize() throws ConfigurationException {
+            return resolveInt(WINRM_OUTPUT_BATCH_SIZE, DEFAULT_OUTPUT_BATCH_SIZE);
+        }
+
+        public long getOutputFlushInterval() throws ConfigurationException {
+            return resolveLong(WINRM_OUTPUT_FLUSH_INTERVAL, DEFAULT_OUTPUT_FLUSH_INTERVAL);
+        }
+
+        /**
+         * @return true if files should be copied over the WinRM connection instead of SMB
+         */
+        public boolean isWinRMFileCopy() {
+            return FILE_COPY_MODE_WINRM.equalsIgnoreCase(resolve(WINRM_FILE_COPY_MODE, DEFAULT_FILE_COPY_MODE));
+        }
+
+        /**
+         * @return number of bytes sent per message when copying files over WinRM
+         */
+        public int getFileCopyChunkSize() throws ConfigurationException {
+            final int size = resolveInt(WINRM_FILE_COPY_CHUNK_SIZE, DEFAULT_FILE_COPY_CHUNK_SIZE);
+            if (size <= 0) {
+                throw new ConfigurationException("Not a valid chunk size: " + WINRM_FILE_COPY_CHUNK_SIZE + ": " + size);
+            }
+            return size;
+        }
+
+        /**
+         * @return number of concurrent streams used to copy large files over WinRM
+         */
+        public int getFileCopyParallelism() throws ConfigurationException {
+            return Math.max(1, resolveInt(WINRM_FILE_COPY_PARALLELISM, DEFAULT_FILE_COPY_PARALLELISM));
+        }
+
+        /**
+         * @return minimum file size in bytes for a parallel copy
+         */
+        public long getFileCopyParallelThreshold() throws ConfigurationException {
+            return resolveLong(WINRM_FILE_COPY_PARALLEL_THRESHOLD, DEFAULT_FILE_COPY_PARALLEL_THRESHOLD);
+        }
+
+        /**
+         * @return true if copies to a fixed destination should only send the blocks that changed
+         */
+        public boolean isFileCopyDelta() {
+            return resolveBoolean(WINRM_FILE_COPY_DELTA, DEFAULT_FILE_COPY_DELTA);
+        }
+
+        public int getFileCopyBlockSize() throws ConfigurationException {
+            final int size = resolveInt(WINRM_FILE_COPY_BLOCK_SIZE, DEFAULT_FILE_COPY_BLOCK_SIZE);
+            if (size <= 0) {
+                throw new ConfigurationException("Not a valid block size: " + WINRM_FILE_COPY_BLOCK_SIZE + ": " + size);
+            }
+            return size;
+        }
+
+        /**
+         * @return true if scripts should be kept in a cache directory on the node and only uploaded once
+         */
+        public boolean isScriptCache() {
+            return resolveBoolean(WINRM_SCRIPT_CACHE, DEFAULT_SCRIPT_CACHE);
+        }
+
+        public String getScriptCacheDir() {
+            return resolve(WINRM_SCRIPT_CACHE_DIR, DEFAULT_SCRIPT_CACHE_DIR);
+        }
+
+        /**
+         * @return maximum total size in bytes of the scripts kept on the node
+         */
+        public long getScriptCacheMaxSize() throws ConfigurationException {
+            return resolveLong(WINRM_SCRIPT_CACHE_MAX_SIZE, DEFAULT_SCRIPT_CACHE_MAX_SIZE);
+        }
+
+        /**
+         * @return connection pool settings for the node
+         */
+        public WinRMConnectionPool.Settings getPoolSettings() throws ConfigurationException {
+            return new WinRMConnectionPool.Settings(
+                    resolveBoolean(WINRM_CONNECTION_POOL, DEFAULT_CONNECTION_POOL),
+                    resolveInt(WINRM_POOL_MAX_IDLE, DEFAULT_POOL_MAX_IDLE),
+                    resolveLong(WINRM_POOL_IDLE_TIMEOUT, DEFAULT_POOL_IDLE_TIMEOUT),
+                    resolveLong(WINRM_POOL_MAX_LIFETIME, DEFAULT_POOL_MAX_LIFETIME),
+                    resolveLong(WINRM_POOL_VALIDATE_AFTER, DEFAULT_POOL_VALIDATE_AFTER)
+            );
+        }
+
+        /**
+         * @return true if powershell commands should be run with -EncodedCommand instead of being escaped
+         */
+        public boolean isPowershellEncoded() {
+            return resolveBoolean(WINRM_POWERSHELL_ENCODED, DEFAULT_POWERSHELL_ENCODED);
+        }
+
+        /**
+         * @return circuit breaker settings for the node
+         */
+        public CircuitBreaker.Settings getCircuitBreakerSettings() throws ConfigurationException {
+            return new CircuitBreaker.Settings(
+                    resolveBoolean(WINRM_CIRCUIT_BREAKER, DEFAULT_CIRCUIT_BREAKER),
+                    resolveInt(WINRM_CIRCUIT_BREAKER_THRESHOLD, DEFAULT_CIRCUIT_BREAKER_THRESHOLD),
+                    resolveLong(WINRM_CIRCUIT_BREAKER_BACKOFF, DEFAULT_CIRCUIT_BREAKER_BACKOFF),
+                    resolveLong(WINRM_CIRCUIT_BREAKER_MAX_BACKOFF, DEFAULT_CIRCUIT_BREAKER_MAX_BACKOFF)
+            );
+        }
+
+        /**
+         * @return limits of the shells and operations open at once for the node and user
+         */
+        public AdmissionControl.Settings getAdmissionSettings() throws ConfigurationException {
+            return new AdmissionControl.Settings(
+                    resolveBoolean(WINRM_ADMISSION, DEFAULT_ADMISSION),
+                    resolveInt(WINRM_ADMISSION_MAX_SHELLS, DEFAULT_ADMISSION_MAX_SHELLS),
+                    resolveInt(WINRM_ADMISSION_MAX_OPERATIONS, DEFAULT_ADMISSION_MAX_OPERATIONS),
+                    resolveLong(WINRM_ADMISSION_TIMEOUT, DEFAULT_ADMISSION_TIMEOUT)
+            );
+        }
+
+        /**
+         * @return retry settings for transient faults on the node
+         */
+        public RetryPolicy.Settings getRetrySettings() throws ConfigurationException {
+            return new RetryPolicy.Settings(
+                    resolveInt(WINRM_RETRY_MAX_ATTEMPTS, DEFAULT_RETRY_MAX_ATTEMPTS),
+                    resolveLong(WINRM_RETRY_BACKOFF, DEFAULT_RETRY_BACKOFF),
+                    resolveLong(WINRM_RETRY_MAX_BACKOFF, DEFAULT_RETRY_MAX_BACKOFF),
+                    resolveInt(WINRM_RETRY_BUDGET, DEFAULT_RETRY_BUDGET)
+            );
+        }
+
+        public Boolean isShellReuse() {
+            return resolveBoolean(WINRM_SHELL_REUSE, DEFAULT_SHELL_REUSE);
+        }
+
+        public long getShellIdleTimeout() throws ConfigurationException {
+            return resolveLong(WINRM_SHELL_IDLE_TIMEOUT, DEFAULT_SHELL_IDLE_TIMEOUT);
+        }
+
+        /**
+         * @return settings of the pool of warm PowerShell hosts for the node
+         */
+        public PowerShellHostPool.Settings getPowerShellPoolSettings() throws ConfigurationException {
+            return new PowerShellHostPool.Settings(
+                    resolveBoolean(WINRM_POWERSHELL_POOL, DEFAULT_POWERSHELL_POOL),
+                    resolveInt(WINRM_POWERSHELL_POOL_MIN, DEFAULT_POWERSHELL_POOL_MIN),
+                    resolveInt(WINRM_POWERSHELL_POOL_MAX, DEFAULT_POWERSHELL_POOL_MAX),
+                    resolveLong(WINRM_POWERSHELL_POOL_IDLE_TIMEOUT, DEFAULT_POWERSHELL_POOL_IDLE_TIMEOUT)
+            );
+        }
+
+        public boolean isDetached() {
+            return resolveBoolean(WINRM_DETACHED, DEFAULT_DETACHED);
+        }
+
+        public long getDetachedPollInterval() throws ConfigurationException {
+            return resolveLong(WINRM_DETACHED_POLL_INTERVAL, DEFAULT_DETACHED_POLL_INTERVAL);
         }
 
         private int getPort(final int defaultPort) throws ConfigurationException {
@@ -493,7 +873,7 @@ class OTWinRMPlugin {
                     throw new ConfigurationException("Port number is not valid: " + getNode().extractPort(), e);
                 }
             } else {
-                return resolveIntProperty(WINRM_PORT, defaultPort, getNode(), getFrameworkProject(), getFramework());
+                return resolveInt(WINRM_PORT, defaultPort);
             }
         }
 
@@ -501,18 +881,19 @@ class OTWinRMPlugin {
             final ConnectionOptions options = new ConnectionOptions();
             final String authType = getAuthType();
             final boolean isHttps = WINRM_PROTOCOL_HTTPS.equalsIgnoreCase(getProtocol());
+            final Boolean spnAddPort = isWinrmSpnAddPort();
+            final Boolean spnUseHttp = isWinrmSpnUseHttp();
+            final String user = getUsername();
 
-            final boolean isKerberos = getUsername().indexOf("@") > 0 || AUTH_TYPE_KERBEROS.equals(authType);
+            final boolean isKerberos = user.indexOf("@") > 0 || AUTH_TYPE_KERBEROS.equals(authType);
 
             String username;
             if (isKerberos) {
                 username = getKerberosUsername(this);
                 options.set(CifsConnectionBuilder.WINRM_KERBEROS_DEBUG, isDebugKerberosAuth());
-                options.set(CifsConnectionBuilder.WINRM_KERBEROS_ADD_PORT_TO_SPN, isWinrmSpnAddPort());
-                options.set(CifsConnectionBuilder.WINRM_KERBEROS_USE_HTTP_SPN, isWinrmSpnUseHttp());
                 options.set(CifsConnectionBuilder.WINRM_KERBEROS_TICKET_CACHE, isKerberosCacheEnabled());
             } else {
-                username = getUsername();
+                username = user;
             }
             final String password = getClearAuthPassword(this);
             final boolean valid = null != password && !"".equals(password);
@@ -529,17 +910,19 @@ class OTWinRMPlugin {
             options.set(USERNAME, username);
             options.set(PASSWORD, password);
             options.set(OPERATING_SYSTEM, WINDOWS);
-            options.set(CONNECTION_TIMEOUT_MILLIS, getConnectionTimeout());
+            options.set(CONNECTION_TIMEOUT_MILLIS, getEffectiveConnectionTimeout());
             options.set(PORT, getPort(isHttps ? DEFAULT_HTTPS_PORT : DEFAULT_HTTP_PORT));
             options.set(CifsConnectionBuilder.CONNECTION_TYPE, CifsConnectionType.WINRM_INTERNAL);
             options.set(CifsConnectionBuilder.WINRM_ENABLE_HTTPS, isHttps);
-            options.set(CifsConnectionBuilder.WINRM_KERBEROS_ADD_PORT_TO_SPN, isWinrmSpnAddPort());
-            options.set(CifsConnectionBuilder.WINRM_KERBEROS_USE_HTTP_SPN, isWinrmSpnUseHttp());
-            if (null != getWinrmLocale()) {
-                options.set(CifsConnectionBuilder.WINRM_LOCALE, getWinrmLocale());
+            options.set(CifsConnectionBuilder.WINRM_KERBEROS_ADD_PORT_TO_SPN, spnAddPort);
+            options.set(CifsConnectionBuilder.WINRM_KERBEROS_USE_HTTP_SPN, spnUseHttp);
+            final String locale = getWinrmLocale();
+            if (null != locale) {
+                options.set(CifsConnectionBuilder.WINRM_LOCALE, locale);
             }
-            if (null != getWinrmTimeout()) {
-                options.set(CifsConnectionBuilder.WINRM_TIMEMOUT, getWinrmTimeout());
+            final String winrmTimeout = getWinrmTimeout();
+            if (null != winrmTimeout) {
+                options.set(CifsConnectionBuilder.WINRM_TIMEMOUT, winrmTimeout);
             }
             return options;
         }
@@ -597,12 +980,170 @@ class OTWinRMPlugin {
         }
     }
 
+    static final WinRMConnectionPool CONNECTION_POOL = new WinRMConnectionPool();
+    static final RemoteShellRegistry REMOTE_SHELLS = new RemoteShellRegistry(CONNECTION_POOL);
+    static final PowerShellHostPool POWERSHELL_HOSTS = new PowerShellHostPool(CONNECTION_POOL);
+    static final CredentialCache PASSWORD_CACHE = new CredentialCache(PASSWORD_CACHE_SIZE);
+    static final KerberosCredentialCheck KERBEROS_CHECKS =
+            new KerberosCredentialCheck(KERBEROS_CREDENTIAL_CHECK_SIZE);
+    static final CircuitBreaker CIRCUIT_BREAKER = new CircuitBreaker();
+    static final RetryPolicy RETRIES = new RetryPolicy();
+    static final AdmissionControl ADMISSION = new AdmissionControl();
+    static final AdaptiveTimeouts ADAPTIVE_TIMEOUTS = new AdaptiveTimeouts();
+    static final DetachedJobs DETACHED_JOBS = new DetachedJobs();
+    static final WinRMMetrics METRICS = new WinRMMetrics(CONNECTION_POOL, REMOTE_SHELLS, POWERSHELL_HOSTS,
+            PASSWORD_CACHE, KERBEROS_CHECKS, CIRCUIT_BREAKER, ADMISSION);
+
     protected Framework framework;
 
     protected OTWinRMPlugin(Framework framework) {
         this.framework = framework;
     }
 
+    /**
+     * @return the project and framework configuration for the execution
+     */
+    ProjectConfig getProjectConfig(final ExecutionContext context) {
+        return ProjectConfig.forProject(framework, context.getFrameworkProject());
+    }
+
+    /**
+     * @return the metrics for the node, or the disabled metrics if "winrm-metrics" is not enabled for it
+     */
+    WinRMMetrics.NodeMetrics getMetrics(final ExecutionContext context, final INodeEntry node) {
+        final boolean enabled = toBoolean(getProjectConfig(context).resolve(node, WINRM_METRICS, null),
+                DEFAULT_METRICS);
+        return METRICS.forNode(enabled, context.getFrameworkProject(), node.getNodename());
+    }
+
+    /**
+     * Open a new connection, can be overridden by a subclass to alter how connections are created. All WinRM and SMB
+     * connections of the node executor and file copier, pooled or not, are opened here, so this is the place to plug
+     * in a different transport.
+     *
+     * @param protocol overthere protocol, either {@link CifsConnectionBuilder#CIFS_PROTOCOL} or
+     *                 {@link SmbConnectionBuilder#SMB_PROTOCOL}
+     * @param options  connection options
+     *
+     * @return the connection
+     */
+    protected OverthereConnection connect(final String protocol, final ConnectionOptions options) {
+        if (SmbConnectionBuilder.SMB_PROTOCOL.equals(protocol)) {
+            return new SmbConnectionBuilder(protocol, options, new DefaultAddressPortMapper()).connect();
+        }
+        return new CifsConnectionBuilder(protocol, options, new DefaultAddressPortMapper()).connect();
+    }
+
+    /**
+     * Forget the cached password when the node or the KDC rejected it, so that the next connection reads it from Key
+     * Storage again, for example after the password was rotated
+     *
+     * @param cacheKey password cache key of the connection, or null if its password was not cached
+     * @param failure  failure of the connection
+     */
+    static void passwordFailed(final String cacheKey, final Throwable failure) {
+        if (null != cacheKey && CredentialCache.isAuthenticationFailure(failure)) {
+            PASSWORD_CACHE.invalidate(cacheKey);
+        }
+    }
+
+    /**
+     * Check the Kerberos credentials of the connection options with a login to the KDC, unless the same credentials
+     * were checked within the ticket lifetime, using the shared {@link KerberosCredentialCheck}. Overthere still does
+     * its own logins when connecting, this only makes wrong credentials fail fast. Does nothing if the options do not
+     * use Kerberos.
+     *
+     * @param options connection options
+     *
+     * @throws KerberosCredentialCheck.KerberosException if the KDC rejects the credentials
+     */
+    void checkKerberosCredentials(final ConnectionOptions options) throws KerberosCredentialCheck.KerberosException {
+        final String username = options.get(USERNAME, "");
+        if (username.indexOf("@") <= 0) {
+            return;
+        }
+        KERBEROS_CHECKS.check(username, options.get(PASSWORD, ""),
+                options.get(CifsConnectionBuilder.WINRM_KERBEROS_DEBUG, false));
+    }
+
+    /**
+     * Wait for admission by the limits of the host and user of the connection options, the time waited is recorded
+     * in the metrics
+     *
+     * @param options    connection options
+     * @param settings   admission settings
+     * @param shells     number of new shells
+     * @param operations number of operations
+     * @param metrics    metrics to record the wait in
+     *
+     * @return the permit, which must be released
+     */
+    AdmissionControl.Permit admit(
+            final ConnectionOptions options,
+            final AdmissionControl.Settings settings,
+            final int shells,
+            final int operations,
+            final WinRMMetrics.NodeMetrics metrics
+    ) throws AdmissionControl.TimeoutException, InterruptedException {
+        final long start = metrics.start();
+        try {
+            final String key = AdmissionControl.key(options.get(ADDRESS, ""), options.get(USERNAME, ""));
+            return ADMISSION.acquire(key, settings, shells, operations);
+        } finally {
+            metrics.record(WinRMMetrics.Phase.Admission, start);
+        }
+    }
+
+    /**
+     * Borrow a connection from the connection pool, or open a new one if there is no idle connection for the
+     * endpoint. The lease must be given back with {@link #releaseConnection(WinRMConnectionPool.Lease, boolean)}.
+     *
+     * @param protocol    overthere protocol
+     * @param options     connection options
+     * @param settings    pool settings
+     * @param healthCheck check to run on connections which have been idle for a while, may be null
+     * @param metrics     metrics to record the time to open a new connection in
+     *
+     * @return the lease
+     */
+    WinRMConnectionPool.Lease borrowConnection(
+            final String protocol,
+            final ConnectionOptions options,
+            final WinRMConnectionPool.Settings settings,
+            final WinRMConnectionPool.HealthCheck healthCheck,
+            final WinRMMetrics.NodeMetrics metrics
+    ) {
+        return CONNECTION_POOL.borrow(
+                WinRMConnectionPool.Key.of(protocol, options),
+                settings,
+                new WinRMConnectionPool.ConnectionFactory() {
+                    public OverthereConnection connect() {
+                        final long start = metrics.start();
+                        try {
+                            return OTWinRMPlugin.this.connect(protocol, options);
+                        } finally {
+                            metrics.record(WinRMMetrics.Phase.Connect, start);
+                        }
+                    }
+                },
+                healthCheck
+        );
+    }
+
+    /**
+     * Give back a borrowed connection
+     *
+     * @param lease    the lease
+     * @param reusable false if the connection failed and should be closed instead of pooled
+     */
+    void releaseConnection(final WinRMConnectionPool.Lease lease, final boolean reusable) {
+        if (reusable) {
+            CONNECTION_POOL.release(lease);
+        } else {
+            CONNECTION_POOL.invalidate(lease);
+        }
+    }
+
     /**
      * Return the cleartext user password
      *
@@ -0,0 +1,221 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Warm PowerShell processes per endpoint, shared by the steps of all executions, so that a PowerShell command does
+ * not wait for powershell.exe to start. Each host is a {@link RemoteShell} running the PowerShell host loop, which
+ * runs every command in its own scope and resets the state of the process after it, as far as PowerShell allows. As
+ * hosts are shared by executions, jobs and projects connecting with the same credentials, what cannot be reset, listed
+ * in the comment of {@link RemoteShell}, is seen by later commands of other executions. At most a maximum number of
+ * hosts are open per endpoint, hosts idle for longer than the idle timeout are closed, except for a minimum number
+ * kept open.
+ */
+class PowerShellHostPool {
+    private static final long EVICTION_INTERVAL = 10000;
+
+    static class Settings {
+        static final Settings DISABLED = new Settings(false, 0, 0, 0);
+
+        private final boolean enabled;
+        private final int minSize;
+        private final int maxSize;
+        private final long idleTimeout;
+
+        /**
+         * @param enabled     true to use the pool
+         * @param minSize     number of idle hosts kept open after the idle timeout
+         * @param maxSize     maximum number of hosts open at once per endpoint
+         * @param idleTimeout milliseconds after which an idle host is closed
+         */
+        Settings(final boolean enabled, final int minSize, final int maxSize, final long idleTimeout) {
+            this.enabled = enabled && maxSize > 0;
+            this.maxSize = maxSize;
+            this.minSize = Math.min(Math.max(0, minSize), maxSize);
+            this.idleTimeout = idleTimeout;
+        }
+
+        boolean isEnabled() {
+            return enabled;
+        }
+
+        int getMinSize() {
+            return minSize;
+        }
+
+        int getMaxSize() {
+            return maxSize;
+        }
+    }
+
+    private static final class Hosts {
+        private final Deque<RemoteShell> idle = new ArrayDeque<RemoteShell>();
+        private int open;
+        private int minSize;
+    }
+
+    private final WinRMConnectionPool pool;
+    private final ConcurrentMap<WinRMConnectionPool.Key, Hosts> hosts =
+            new ConcurrentHashMap<WinRMConnectionPool.Key, Hosts>();
+    private final AtomicBoolean evictorStarted = new AtomicBoolean(false);
+
+    PowerShellHostPool(final WinRMConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    private Hosts hosts(final WinRMConnectionPool.Key key) {
+        Hosts existing = hosts.get(key);
+        if (null == existing) {
+            final Hosts created = new Hosts();
+            existing = hosts.putIfAbsent(key, created);
+            if (null == existing) {
+                existing = created;
+            }
+        }
+        return existing;
+    }
+
+    /**
+     * Take the most recently used idle host of the endpoint, if any. The caller has exclusive use of the host until it
+     * is offered back or discarded.
+     */
+    RemoteShell take(final WinRMConnectionPool.Key key) {
+        final Hosts endpoint = hosts(key);
+        final List<RemoteShell> dead = new ArrayList<RemoteShell>();
+        try {
+            synchronized (endpoint) {
+                RemoteShell host;
+                while (null != (host = endpoint.idle.pollFirst())) {
+                    if (host.isAlive()) {
+                        return host;
+                    }
+                    endpoint.open--;
+                    dead.add(host);
+                }
+                return null;
+            }
+        } finally {
+            close(dead);
+        }
+    }
+
+    /**
+     * Reserve a place for a new host of the endpoint, which must be followed by {@link #offer}, {@link #discard} or
+     * {@link #unreserve}
+     *
+     * @param limit maximum number of open hosts
+     *
+     * @return false if the limit of hosts is open already
+     */
+    boolean reserve(final WinRMConnectionPool.Key key, final int limit) {
+        final Hosts endpoint = hosts(key);
+        synchronized (endpoint) {
+            if (endpoint.open >= limit) {
+                return false;
+            }
+            endpoint.open++;
+            return true;
+        }
+    }
+
+    /**
+     * Give up a reservation which did not result in a host
+     */
+    void unreserve(final WinRMConnectionPool.Key key) {
+        final Hosts endpoint = hosts(key);
+        synchronized (endpoint) {
+            endpoint.open--;
+        }
+    }
+
+    /**
+     * Keep the host for the next command
+     */
+    void offer(final WinRMConnectionPool.Key key, final RemoteShell host, final Settings settings) {
+        if (!host.isAlive()) {
+            discard(key, host);
+            return;
+        }
+        host.setIdleTimeout(settings.idleTimeout);
+        final Hosts endpoint = hosts(key);
+        synchronized (endpoint) {
+            endpoint.minSize = settings.minSize;
+            endpoint.idle.addFirst(host);
+        }
+        startEvictor();
+    }
+
+    /**
+     * Close the host without keeping it
+     */
+    void discard(final WinRMConnectionPool.Key key, final RemoteShell host) {
+        unreserve(key);
+        host.close(pool);
+    }
+
+    void evictExpired() {
+        final long now = System.currentTimeMillis();
+        final List<RemoteShell> expired = new ArrayList<RemoteShell>();
+        for (Hosts endpoint : hosts.values()) {
+            synchronized (endpoint) {
+                //the least recently used hosts are at the end
+                final Iterator<RemoteShell> iterator = endpoint.idle.descendingIterator();
+                while (iterator.hasNext()) {
+                    final RemoteShell host = iterator.next();
+                    final boolean idle = now - host.getLastUsed() > host.getIdleTimeout();
+                    if (host.isAlive() && (!idle || endpoint.open <= endpoint.minSize)) {
+                        continue;
+                    }
+                    iterator.remove();
+                    endpoint.open--;
+                    expired.add(host);
+                }
+            }
+        }
+        close(expired);
+    }
+
+    private void close(final List<RemoteShell> closing) {
+        for (RemoteShell host : closing) {
+            host.close(pool);
+        }
+    }
+
+    int getIdleCount() {
+        int count = 0;
+        for (Hosts endpoint : hosts.values()) {
+            synchronized (endpoint) {
+                count += endpoint.idle.size();
+            }
+        }
+        return count;
+    }
+
+    int getOpenCount() {
+        int count = 0;
+        for (Hosts endpoint : hosts.values()) {
+            synchronized (endpoint) {
+                count += endpoint.open;
+            }
+        }
+        return count;
+    }
+
+    private void startEvictor() {
+        if (evictorStarted.compareAndSet(false, true)) {
+            WinRMScheduler.get().scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    evictExpired();
+                }
+            }, EVICTION_INTERVAL, EVICTION_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+}
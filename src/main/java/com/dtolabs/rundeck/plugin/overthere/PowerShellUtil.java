@@ -0,0 +1,102 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import com.xebialabs.overthere.CmdLine;
+import org.apache.commons.codec.binary.Base64;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Helpers for running generated PowerShell scripts on the remote node
+ */
+final class PowerShellUtil {
+    /**
+     * Function Invoke-Cmd, which runs a command line with cmd.exe /c in a process of its own, as a new WinRM command
+     * would. The command line is passed to cmd.exe as it is, without PowerShell's quoting of native arguments. Stdin of
+     * the process is closed, so that a command reading input cannot consume the rest of the script, and its output and
+     * error output are read separately and passed on line by line: output to the pipeline, error output to stderr,
+     * or with Write-Error when called with -Records. The exit code is left in $LASTEXITCODE.
+     */
+    static final String CMD_FUNCTION = "function Invoke-Cmd([string]$c, [switch]$Records) {\n"
+            + "  $si = New-Object Diagnostics.ProcessStartInfo -ArgumentList 'cmd.exe', ('/c ' + $c)\n"
+            + "  $si.UseShellExecute = $false\n"
+            + "  $si.WorkingDirectory = (Get-Location).ProviderPath\n"
+            + "  $si.RedirectStandardInput = $true\n"
+            + "  $si.RedirectStandardOutput = $true\n"
+            + "  $si.RedirectStandardError = $true\n"
+            + "  $p = [Diagnostics.Process]::Start($si)\n"
+            + "  $p.StandardInput.Close()\n"
+            + "  $rd = @{ o = $p.StandardOutput; e = $p.StandardError }\n"
+            + "  $rt = @{ o = $rd.o.ReadLineAsync(); e = $rd.e.ReadLineAsync() }\n"
+            + "  while ($rt.Count -gt 0) {\n"
+            + "    [void][Threading.Tasks.Task]::WaitAny([Threading.Tasks.Task[]]@($rt.Values))\n"
+            + "    foreach ($k in @($rt.Keys)) {\n"
+            + "      if (-not $rt[$k].IsCompleted) { continue }\n"
+            + "      $l = $rt[$k].Result\n"
+            + "      if ($null -eq $l) { $rt.Remove($k); continue }\n"
+            + "      if ($k -eq 'o') { $l }\n"
+            + "      elseif ($Records) { Write-Error $l }\n"
+            + "      else { [Console]::Error.WriteLine($l) }\n"
+            + "      $rt[$k] = $rd[$k].ReadLineAsync()\n"
+            + "    }\n"
+            + "  }\n"
+            + "  $p.WaitForExit()\n"
+            + "  $global:LASTEXITCODE = $p.ExitCode\n"
+            + "  $p.Dispose()\n"
+            + "}\n";
+
+    private PowerShellUtil() {
+    }
+
+    /**
+     * Encode a script for use with powershell's -EncodedCommand argument
+     *
+     * @param script script text
+     *
+     * @return base64 of the UTF-16LE encoded script
+     */
+    static String encodeCommand(final String script) {
+        try {
+            return Base64.encodeBase64String(script.getBytes("UTF-16LE"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Create a command line which runs the script with -EncodedCommand, no escaping of the script is necessary.
+     *
+     * @param script script text
+     *
+     * @return the command line
+     */
+    static CmdLine encodedCommandLine(final String script) {
+        CmdLine cmdLine = new CmdLine();
+        cmdLine.addRaw("powershell");
+        cmdLine.addRaw("-NoLogo");
+        cmdLine.addRaw("-NoProfile");
+        cmdLine.addRaw("-NonInteractive");
+        cmdLine.addRaw("-EncodedCommand");
+        cmdLine.addRaw(encodeCommand(script));
+        return cmdLine;
+    }
+
+    /**
+     * Quote a string as a powershell single quoted literal. PowerShell also ends a single quoted string at the
+     * typographic single quotes U+2018 to U+201B, so each of them is doubled as well.
+     */
+    static String quote(final String value) {
+        final StringBuilder sb = new StringBuilder(value.length() + 2).append('\'');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (isSingleQuote(c)) {
+                sb.append(c);
+            }
+            sb.append(c);
+        }
+        return sb.append('\'').toString();
+    }
+
+    private static boolean isSingleQuote(final char c) {
+        return c == '\'' || c >= '\u2018' && c <= '\u201b';
+    }
+}
@@ -0,0 +1,168 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import com.dtolabs.rundeck.core.common.Framework;
+import com.dtolabs.rundeck.core.common.INodeEntry;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Snapshot of the plugin's project and framework level configuration. Each property is looked up in the framework
+ * once per snapshot and remembered, node attributes are applied on top of the snapshot for each node. The plugin API
+ * gives no notice of changes to the project configuration, so snapshots are instead replaced after
+ * {@link #DEFAULT_REFRESH_INTERVAL} milliseconds, or the framework property "framework.winrm-config-refresh-interval":
+ * changes are picked up within that time, without scanning the project properties for every node. With an interval
+ * of 0 no snapshot is kept between calls.
+ */
+final class ProjectConfig {
+    static final String REFRESH_INTERVAL_PROPERTY = "winrm-config-refresh-interval";
+    static final long DEFAULT_REFRESH_INTERVAL = 5000;
+
+    private static final Object NULL = new Object();
+    private static final ConcurrentMap<SnapshotKey, ProjectConfig> SNAPSHOTS =
+            new ConcurrentHashMap<SnapshotKey, ProjectConfig>();
+
+    /**
+     * Source of project and framework level values
+     */
+    static interface PropertySource {
+        /**
+         * @param name property name without "project." or "framework." prefix
+         *
+         * @return the project value if set and not empty, else the framework value, or null
+         */
+        String lookup(String name);
+    }
+
+    private final PropertySource source;
+    private final long expires;
+    private final ConcurrentMap<String, Object> values = new ConcurrentHashMap<String, Object>();
+
+    ProjectConfig(final PropertySource source, final long expires) {
+        this.source = source;
+        this.expires = expires;
+    }
+
+    /**
+     * @return a snapshot backed by a fixed map of values
+     */
+    static ProjectConfig of(final Map<String, String> properties) {
+        return new ProjectConfig(new PropertySource() {
+            public String lookup(final String name) {
+                return properties.get(name);
+            }
+        }, Long.MAX_VALUE);
+    }
+
+    /**
+     * @return the current snapshot for the project, loading a new one if it has expired
+     */
+    static ProjectConfig forProject(final Framework framework, final String project) {
+        final SnapshotKey key = new SnapshotKey(framework, project);
+        ProjectConfig config = SNAPSHOTS.get(key);
+        long now = System.currentTimeMillis();
+        if (null == config || now > config.expires) {
+            final long interval = refreshInterval(framework);
+            config = new ProjectConfig(new FrameworkSource(framework, project), now + interval);
+            if (interval > 0) {
+                SNAPSHOTS.put(key, config);
+            } else {
+                SNAPSHOTS.remove(key);
+            }
+        }
+        return config;
+    }
+
+    private static long refreshInterval(final Framework framework) {
+        String value = null;
+        if (framework.hasProperty(OTWinRMPlugin.FWK_PROP_PREFIX + REFRESH_INTERVAL_PROPERTY)) {
+            value = framework.getProperty(OTWinRMPlugin.FWK_PROP_PREFIX + REFRESH_INTERVAL_PROPERTY);
+        }
+        if (null != value) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                return DEFAULT_REFRESH_INTERVAL;
+            }
+        }
+        return DEFAULT_REFRESH_INTERVAL;
+    }
+
+    /**
+     * Resolve a property in the same way as {@link OTWinRMPlugin#resolveProperty(String, String, INodeEntry, String,
+     * Framework)}: node attribute, then project property, then framework property, then the default value.
+     */
+    String resolve(final INodeEntry node, final String name, final String defaultValue) {
+        final String attribute = node.getAttributes().get(name);
+        if (null != attribute) {
+            return attribute;
+        }
+        final String value = get(name);
+        return null != value ? value : defaultValue;
+    }
+
+    /**
+     * @return the project or framework level value for the property
+     */
+    String get(final String name) {
+        Object value = values.get(name);
+        if (null == value) {
+            String loaded = source.lookup(name);
+            value = null != loaded ? loaded : NULL;
+            values.putIfAbsent(name, value);
+        }
+        return value == NULL ? null : (String) value;
+    }
+
+    private static final class FrameworkSource implements PropertySource {
+        private final Framework framework;
+        private final String project;
+
+        private FrameworkSource(final Framework framework, final String project) {
+            this.framework = framework;
+            this.project = project;
+        }
+
+        public String lookup(final String name) {
+            final String projectProperty = OTWinRMPlugin.PROJ_PROP_PREFIX + name;
+            if (framework.hasProjectProperty(projectProperty, project)) {
+                final String value = framework.getProjectProperty(project, projectProperty);
+                if (!"".equals(value)) {
+                    return value;
+                }
+            }
+            if (framework.hasProperty(OTWinRMPlugin.FWK_PROP_PREFIX + name)) {
+                return framework.getProperty(OTWinRMPlugin.FWK_PROP_PREFIX + name);
+            }
+            return null;
+        }
+    }
+
+    private static final class SnapshotKey {
+        private final Framework framework;
+        private final String project;
+
+        private SnapshotKey(final Framework framework, final String project) {
+            this.framework = framework;
+            this.project = null != project ? project : "";
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof SnapshotKey)) {
+                return false;
+            }
+            SnapshotKey that = (SnapshotKey) o;
+            return framework == that.framework && project.equals(that.project);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(framework) + project.hashCode();
+        }
+    }
+}
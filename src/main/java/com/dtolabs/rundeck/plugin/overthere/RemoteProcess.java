@@ -0,0 +1,102 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import com.xebialabs.overthere.CmdLine;
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.OverthereExecutionOutputHandler;
+import com.xebialabs.overthere.OverthereProcess;
+import com.xebialabs.overthere.RuntimeIOException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+
+/**
+ * Runs a command line on a connection as {@link OverthereConnection#execute(OverthereExecutionOutputHandler,
+ * OverthereExecutionOutputHandler, CmdLine)} does, but tells the caller when the command was sent. A WinRM connection
+ * creates the shell and sends the command when the process is started, so a fault before that, such as a refused
+ * connection or a quota fault, happened before the command could run.
+ */
+final class RemoteProcess {
+    private RemoteProcess() {
+    }
+
+    /**
+     * Run the command line and return its exit code, all output has been passed on when this returns
+     *
+     * @param connection connection
+     * @param cmdLine    command line
+     * @param input      text written to stdin of the process, or null
+     * @param stdout     output handler
+     * @param stderr     error output handler
+     * @param started    run once the command was sent, before its output is read
+     *
+     * @return exit code
+     */
+    static int run(
+            final OverthereConnection connection,
+            final CmdLine cmdLine,
+            final String input,
+            final OverthereExecutionOutputHandler stdout,
+            final OverthereExecutionOutputHandler stderr,
+            final Runnable started
+    ) {
+        if (!connection.canStartProcess() && null == input) {
+            started.run();
+            return connection.execute(stdout, stderr, cmdLine);
+        }
+        final OverthereProcess process = connection.startProcess(cmdLine);
+        started.run();
+        final Thread stderrPump = pump(process.getStderr(), stderr);
+        stderrPump.start();
+        boolean done = false;
+        try {
+            if (null != input) {
+                final Writer stdin = new OutputStreamWriter(process.getStdin(), "US-ASCII");
+                stdin.write(input);
+                stdin.flush();
+            }
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(process.getStdout()));
+            String line;
+            while (null != (line = reader.readLine())) {
+                RemoteShell.emitLine(stdout, line);
+            }
+            final int exitCode = process.waitFor();
+            stderrPump.join();
+            done = true;
+            return exitCode;
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new RuntimeIOException("Failed to run command: " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeIOException("Interrupted waiting for command", e);
+        } finally {
+            if (!done) {
+                process.destroy();
+            }
+        }
+    }
+
+    private static Thread pump(final InputStream input, final OverthereExecutionOutputHandler handler) {
+        final Thread thread = new Thread(new Runnable() {
+            public void run() {
+                final BufferedReader reader = new BufferedReader(new InputStreamReader(input));
+                try {
+                    String line;
+                    while (null != (line = reader.readLine())) {
+                        RemoteShell.emitLine(handler, line);
+                    }
+                } catch (IOException e) {
+                    //process is gone
+                }
+            }
+        }, "winrm-command-stderr");
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,150 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Cache of script files on the node, each script is stored under its SHA-256 checksum so that identical scripts are
+ * uploaded once. Cached scripts are copied to the requested path on the node, Rundeck removes that copy after the
+ * step. The cache directory is kept below a maximum size by removing the least recently used scripts; the
+ * modification time of a script is updated whenever it is used.
+ * <p>
+ * The name of a cached script is not trusted: its content is hashed again before it is used, and a script that does
+ * not match its checksum is removed and treated as a miss. Environment variables in the directory are expanded on the
+ * node, and the directory is created with access for the connecting user only.
+ */
+class RemoteScriptCache {
+    private static final String HIT = "HIT";
+    private static final String MISS = "MISS";
+
+    private final WinRMFileTransfer transfer;
+    private final String directory;
+    private final long maxSize;
+
+    /**
+     * @param transfer  transfer used to run the cache scripts
+     * @param directory cache directory on the node
+     * @param maxSize   maximum total size of the cached scripts in bytes
+     */
+    RemoteScriptCache(final WinRMFileTransfer transfer, final String directory, final long maxSize) {
+        this.transfer = transfer;
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param content   script content
+     * @param extension file extension including the dot, or empty
+     *
+     * @return cache file name for the content
+     */
+    static String key(final byte[] content, final String extension) {
+        try {
+            return Hex.encodeHexString(MessageDigest.getInstance("SHA-256").digest(content)) + extension;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the extension of the file name in the path including the dot, or empty
+     */
+    static String extension(final String path) {
+        if (null == path) {
+            return "";
+        }
+        final int name = Math.max(path.lastIndexOf('\\'), path.lastIndexOf('/'));
+        final int dot = path.lastIndexOf('.');
+        return dot > name + 1 ? path.substring(dot) : "";
+    }
+
+    private String directoryScript() {
+        return "$d = [Environment]::ExpandEnvironmentVariables(" + PowerShellUtil.quote(directory) + ")\n";
+    }
+
+    private static String cachePathScript(final String key) {
+        return "$c = Join-Path $d " + PowerShellUtil.quote(key) + "\n";
+    }
+
+    /**
+     * @return the checksum part of the cache key
+     */
+    static String checksum(final String key) {
+        final int dot = key.indexOf('.');
+        return dot < 0 ? key : key.substring(0, dot);
+    }
+
+    /**
+     * Copy the cached script to the destination if it is present and its content matches the key. The content is read
+     * once, checked and written from the same bytes.
+     *
+     * @return true if the script was cached
+     */
+    boolean fetch(final String key, final String destination) throws IOException {
+        final String result = transfer.runScript("$ErrorActionPreference = 'Stop'\n"
+                + directoryScript()
+                + cachePathScript(key)
+                + "$r = " + PowerShellUtil.quote(MISS) + "\n"
+                + "if ([IO.File]::Exists($c)) {\n"
+                + "  $b = [IO.File]::ReadAllBytes($c)\n"
+                + "  $h = [Security.Cryptography.SHA256]::Create()\n"
+                + "  $s = [BitConverter]::ToString($h.ComputeHash($b)).Replace('-', '').ToLowerInvariant()\n"
+                + "  $h.Dispose()\n"
+                + "  if ($s -eq " + PowerShellUtil.quote(checksum(key)) + ") {\n"
+                + "    [IO.File]::SetLastWriteTimeUtc($c, [DateTime]::UtcNow)\n"
+                + "    [IO.File]::WriteAllBytes(" + PowerShellUtil.quote(destination) + ", $b)\n"
+                + "    $r = " + PowerShellUtil.quote(HIT) + "\n"
+                + "  } else {\n"
+                + "    [IO.File]::Delete($c)\n"
+                + "  }\n"
+                + "}\n"
+                + "[Console]::Out.WriteLine(" + PowerShellUtil.quote(WinRMFileTransfer.RESULT_PREFIX) + " + $r)\n");
+        return HIT.equals(result);
+    }
+
+    /**
+     * Add an uploaded script to the cache, and remove the least recently used scripts if the cache is too large
+     *
+     * @param key    cache key
+     * @param source path of the uploaded script on the node
+     *
+     * @return number of scripts removed from the cache
+     */
+    int store(final String key, final String source) throws IOException {
+        final String result = transfer.runScript("$ErrorActionPreference = 'Stop'\n"
+                + directoryScript()
+                + cachePathScript(key)
+                + "if (-not [IO.Directory]::Exists($d)) {\n"
+                + "  $a = New-Object Security.AccessControl.DirectorySecurity\n"
+                + "  $a.SetAccessRuleProtection($true, $false)\n"
+                + "  $a.AddAccessRule((New-Object Security.AccessControl.FileSystemAccessRule("
+                + "[Security.Principal.WindowsIdentity]::GetCurrent().User, 'FullControl',"
+                + " 'ContainerInherit, ObjectInherit', 'None', 'Allow')))\n"
+                + "  [void][IO.Directory]::CreateDirectory($d, $a)\n"
+                + "}\n"
+                + "if (-not [IO.File]::Exists($c)) {\n"
+                + "  $t = $c + '.' + [Guid]::NewGuid().ToString('N')\n"
+                + "  [IO.File]::Copy(" + PowerShellUtil.quote(source) + ", $t, $true)\n"
+                + "  try { [IO.File]::Move($t, $c) } catch { [IO.File]::Delete($t) }\n"
+                + "}\n"
+                + "$total = 0\n"
+                + "$removed = 0\n"
+                + "foreach ($f in (Get-ChildItem -LiteralPath $d | Where-Object { -not $_.PSIsContainer }"
+                + " | Sort-Object LastWriteTimeUtc -Descending)) {\n"
+                + "  $total += $f.Length\n"
+                + "  if ($total -gt " + maxSize + " -and $f.FullName -ne $c) {\n"
+                + "    try { $f.Delete(); $removed++ } catch { }\n"
+                + "  }\n"
+                + "}\n"
+                + "[Console]::Out.WriteLine(" + PowerShellUtil.quote(WinRMFileTransfer.RESULT_PREFIX)
+                + " + $removed)\n");
+        try {
+            return Integer.parseInt(result);
+        } catch (NumberFormatException e) {
+            throw new IOException("Unexpected script cache output: " + result);
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import com.xebialabs.overthere.CmdLine;
+import com.xebialabs.overthere.OverthereExecutionOutputHandler;
+import com.xebialabs.overthere.OverthereProcess;
+import com.xebialabs.overthere.RuntimeIOException;
+import org.apache.commons.codec.binary.Base64;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.UUID;
+
+/**
+ * A long running PowerShell process on the remote node which executes one command after another, read from its stdin,
+ * so that several steps can share a single WinRM shell. This is one process fed over stdin, not one WS-Man Command per
+ * step, as Overthere creates a new shell for each command it runs. After each command the process prints a marker
+ * line to stderr, and then one with the exit code to stdout, output up to the markers belongs to the command.
+ *
+ * Each command starts from the initial state of the process: location, environment variables and preference
+ * variables are restored after it, and global variables, functions and modules it added are removed. Commands for cmd
+ * are run by cmd.exe in a process of their own, with stdin closed, so their working directory and variables never
+ * carry over. What PowerShell commands cannot be stopped from leaving behind for the next command: new values of
+ * other variables which existed before, such as automatic variables, redefined functions which existed before,
+ * assemblies loaded with Add-Type, and static .NET state. A native program started by a PowerShell command which
+ * reads stdin waits for input that never comes.
+ *
+ * Not thread safe, a shell must only be used by one caller at a time.
+ */
+class RemoteShell {
+    private static final String MARKER_PREFIX = "__RD_WINRM_DONE_";
+    private static final String NEWLINE = "\r\n";
+
+    private final WinRMConnectionPool.Lease lease;
+    private final AdmissionControl.Permit permit;
+    private final OverthereProcess process;
+    private final boolean powershell;
+    private final String marker;
+    private final BufferedReader stdout;
+    private final Writer stdin;
+    private final Thread stderrPump;
+    private volatile OverthereExecutionOutputHandler stderrHandler;
+    private final Object stderrLock = new Object();
+    private int stderrMarkers;
+    private boolean stderrClosed;
+    private volatile boolean alive = true;
+    private long lastUsed;
+    private long idleTimeout;
+
+    private RemoteShell(
+            final WinRMConnectionPool.Lease lease,
+            final AdmissionControl.Permit permit,
+            final OverthereProcess process,
+            final boolean powershell,
+            final String marker
+    ) {
+        this.lease = lease;
+        this.permit = permit;
+        this.process = process;
+        this.powershell = powershell;
+        this.marker = marker;
+        this.stdout = new BufferedReader(new InputStreamReader(process.getStdout()));
+        this.stdin = new OutputStreamWriter(process.getStdin());
+        this.stderrPump = new Thread(new Runnable() {
+            public void run() {
+                pumpStderr();
+            }
+        }, "winrm-shell-stderr");
+        this.stderrPump.setDaemon(true);
+        this.lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Start a shell process using the leased connection, the lease is given back and the permit released when the
+     * shell is closed.
+     *
+     * @param lease   connection lease
+     * @param permit  admission of the shell, held for as long as it is open
+     * @param cmdType {@link OTWinRMPlugin#CMD_TYPE_CMD} or {@link OTWinRMPlugin#CMD_TYPE_POWERSHELL}
+     *
+     * @return the started shell
+     */
+    static RemoteShell start(
+            final WinRMConnectionPool.Lease lease,
+            final AdmissionControl.Permit permit,
+            final String cmdType
+    ) {
+        final boolean powershell = OTWinRMPlugin.CMD_TYPE_POWERSHELL.equals(cmdType);
+        final String marker = MARKER_PREFIX + UUID.randomUUID().toString().replace("-", "") + "__";
+        final CmdLine cmdLine = PowerShellUtil.encodedCommandLine(hostScript(marker));
+        RemoteShell shell = new RemoteShell(lease, permit, lease.getConnection().startProcess(cmdLine), powershell,
+                marker);
+        shell.stderrPump.start();
+        return shell;
+    }
+
+    /**
+     * PowerShell loop which reads base64 encoded scripts from stdin, one per line, and runs each of them in its own
+     * scope. After each script the location, environment variables and preference variables are restored, and the
+     * global variables, functions and modules it added are removed, so that the next script starts as in a new
+     * process, apart from what cannot be undone, see the class comment.
+     */
+    private static String hostScript(final String marker) {
+        return PowerShellUtil.CMD_FUNCTION
+                + "$m = " + PowerShellUtil.quote(marker) + "\n"
+                + "$h = (Get-Location).Path\n"
+                + "$l = $null; $c = 0; $sb = $null; $k = $null; $e = $null\n"
+                + "$env0 = @{}\n"
+                + "foreach ($e in [Environment]::GetEnvironmentVariables().GetEnumerator()) {\n"
+                + "  $env0[$e.Key] = $e.Value\n"
+                + "}\n"
+                + "$prefs0 = @{}\n"
+                + "foreach ($e in Get-Variable -Scope Global -Name '*Preference') { $prefs0[$e.Name] = $e.Value }\n"
+                + "$fns0 = @{}\n"
+                + "foreach ($e in Get-ChildItem Function:) { $fns0[$e.Name] = $true }\n"
+                + "$vars0 = @{}\n"
+                + "foreach ($e in Get-Variable -Scope Global) { $vars0[$e.Name] = $true }\n"
+                + "while ($true) {\n"
+                + "  $l = [Console]::In.ReadLine()\n"
+                + "  if ($l -eq $null -or $l -eq 'exit') { break }\n"
+                + "  if ($l.Length -eq 0) { continue }\n"
+                + "  Set-Location -LiteralPath $h\n"
+                + "  $c = 0\n"
+                + "  $global:LASTEXITCODE = $null\n"
+                + "  try {\n"
+                + "    $sb = [ScriptBlock]::Create([Text.Encoding]::UTF8.GetString([Convert]::FromBase64String($l)))\n"
+                + "    & $sb | Out-Default\n"
+                + "    if (-not $?) { $c = 1 }\n"
+                + "  } catch {\n"
+                + "    [Console]::Error.WriteLine($_.ToString())\n"
+                + "    $c = 1\n"
+                + "  }\n"
+                + "  if ($LASTEXITCODE) { $c = $LASTEXITCODE }\n"
+                + "  foreach ($k in @([Environment]::GetEnvironmentVariables().Keys)) {\n"
+                + "    if (-not $env0.ContainsKey($k)) { [Environment]::SetEnvironmentVariable($k, $null) }\n"
+                + "  }\n"
+                + "  foreach ($k in $env0.Keys) { [Environment]::SetEnvironmentVariable($k, $env0[$k]) }\n"
+                + "  foreach ($k in $prefs0.Keys) { Set-Variable -Name $k -Scope Global -Value $prefs0[$k] }\n"
+                + "  foreach ($e in @(Get-Variable -Scope Global)) {\n"
+                + "    if (-not $vars0.ContainsKey($e.Name)) {\n"
+                + "      Remove-Variable -Name $e.Name -Scope Global -Force -ErrorAction SilentlyContinue\n"
+                + "    }\n"
+                + "  }\n"
+                + "  foreach ($e in @(Get-ChildItem Function:)) {\n"
+                + "    if (-not $fns0.ContainsKey($e.Name)) {\n"
+                + "      Remove-Item -LiteralPath ('Function:' + $e.Name) -Force -ErrorAction SilentlyContinue\n"
+                + "    }\n"
+                + "  }\n"
+                + "  Get-Module | Where-Object { $_.ModuleBase -notlike \"$PSHOME*\" }"
+                + " | Remove-Module -Force -ErrorAction SilentlyContinue\n"
+                + "  [Console]::Error.WriteLine($m)\n"
+                + "  [Console]::Error.Flush()\n"
+                + "  [Console]::Out.WriteLine($m + ' ' + $c)\n"
+                + "  [Console]::Out.Flush()\n"
+                + "}\n";
+    }
+
+    /**
+     * Run a command in the shell and wait for it to finish, and for its error output to be passed on
+     *
+     * @param command command text, for cmd or PowerShell as the shell was started
+     * @param stdoutHandler handler for output
+     * @param stderrHandler handler for error output
+     *
+     * @return exit code of the command
+     */
+    int execute(
+            final String command,
+            final OverthereExecutionOutputHandler stdoutHandler,
+            final OverthereExecutionOutputHandler stderrHandler
+    ) {
+        if (!alive) {
+            throw new RuntimeIOException("Remote shell is closed");
+        }
+        this.stderrHandler = stderrHandler;
+        try {
+            try {
+                final String script = powershell ? command : "Invoke-Cmd " + PowerShellUtil.quote(command);
+                stdin.write(Base64.encodeBase64String(script.getBytes("UTF-8")) + NEWLINE);
+                stdin.flush();
+
+                String line;
+                while (null != (line = stdout.readLine())) {
+                    int index = line.indexOf(marker);
+                    if (index < 0) {
+                        emitLine(stdoutHandler, line);
+                        continue;
+                    }
+                    if (index > 0) {
+                        emitLine(stdoutHandler, line.substring(0, index));
+                    }
+                    final int exitCode = parseExitCode(line.substring(index + marker.length()).trim());
+                    awaitStderrMarker();
+                    return exitCode;
+                }
+            } catch (IOException e) {
+                alive = false;
+                throw new RuntimeIOException("Remote shell failed: " + e.getMessage(), e);
+            }
+            //the command ended the shell process, e.g. by calling exit
+            alive = false;
+            try {
+                return process.waitFor();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeIOException("Interrupted waiting for remote shell", e);
+            }
+        } finally {
+            lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    private static int parseExitCode(final String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Wait until the stderr pump has passed on the error output of the command, up to its marker
+     */
+    private void awaitStderrMarker() {
+        synchronized (stderrLock) {
+            try {
+                while (stderrMarkers == 0 && !stderrClosed) {
+                    stderrLock.wait();
+                }
+            } catch (InterruptedException e) {
+                alive = false;
+                Thread.currentThread().interrupt();
+                throw new RuntimeIOException("Interrupted waiting for remote shell", e);
+            }
+            if (stderrMarkers > 0) {
+                stderrMarkers--;
+            }
+        }
+    }
+
+    static void emitLine(final OverthereExecutionOutputHandler handler, final String line) {
+        for (int i = 0; i < line.length(); i++) {
+            handler.handleChar(line.charAt(i));
+        }
+        handler.handleChar('\n');
+        handler.handleLine(line);
+    }
+
+    private void pumpStderr() {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getStderr()));
+        try {
+            String line;
+            while (null != (line = reader.readLine())) {
+                final int index = line.indexOf(marker);
+                final OverthereExecutionOutputHandler handler = stderrHandler;
+                if (null != handler && index != 0) {
+                    emitLine(handler, index < 0 ? line : line.substring(0, index));
+                }
+                if (index >= 0) {
+                    synchronized (stderrLock) {
+                        stderrMarkers++;
+                        stderrLock.notifyAll();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            //shell is gone
+        } finally {
+            synchronized (stderrLock) {
+                stderrClosed = true;
+                stderrLock.notifyAll();
+            }
+        }
+    }
+
+    boolean isAlive() {
+        return alive;
+    }
+
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    void setIdleTimeout(final long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Stop the shell process, release its connection and its admission
+     *
+     * @param pool pool the connection is returned to
+     */
+    void close(final WinRMConnectionPool pool) {
+        boolean clean = alive;
+        alive = false;
+        if (clean) {
+            try {
+                stdin.write("exit" + NEWLINE);
+                stdin.flush();
+            } catch (IOException e) {
+                clean = false;
+            }
+        }
+        try {
+            process.destroy();
+        } catch (RuntimeException e) {
+            clean = false;
+        }
+        if (clean) {
+            pool.release(lease);
+        } else {
+            pool.invalidate(lease);
+        }
+        permit.release();
+    }
+}
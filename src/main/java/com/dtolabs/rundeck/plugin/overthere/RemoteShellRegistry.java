@@ -0,0 +1,116 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Holds idle {@link RemoteShell}s between steps. Shells are scoped, usually to one execution, so that a shell is
+ * only shared by the steps of the execution which opened it.
+ */
+class RemoteShellRegistry {
+    private static final long EVICTION_INTERVAL = 10000;
+
+    static final class Key {
+        private final String scope;
+        private final WinRMConnectionPool.Key endpoint;
+        private final String cmdType;
+
+        Key(final String scope, final WinRMConnectionPool.Key endpoint, final String cmdType) {
+            this.scope = scope;
+            this.endpoint = endpoint;
+            this.cmdType = null != cmdType ? cmdType : OTWinRMPlugin.DEFAULT_CMD_TYPE;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return scope.equals(key.scope) && endpoint.equals(key.endpoint) && cmdType.equals(key.cmdType);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = scope.hashCode();
+            result = 31 * result + endpoint.hashCode();
+            result = 31 * result + cmdType.hashCode();
+            return result;
+        }
+    }
+
+    private final WinRMConnectionPool pool;
+    private final ConcurrentMap<Key, RemoteShell> idle = new ConcurrentHashMap<Key, RemoteShell>();
+    private final AtomicBoolean evictorStarted = new AtomicBoolean(false);
+
+    RemoteShellRegistry(final WinRMConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Take the idle shell for the key, if any. The caller has exclusive use of the shell until it is offered back.
+     */
+    RemoteShell take(final Key key) {
+        RemoteShell shell = idle.remove(key);
+        if (null != shell && !shell.isAlive()) {
+            shell.close(pool);
+            return null;
+        }
+        return shell;
+    }
+
+    /**
+     * Keep the shell for the next step, it is closed after being idle for the given time
+     */
+    void offer(final Key key, final RemoteShell shell, final long idleTimeout) {
+        if (!shell.isAlive()) {
+            shell.close(pool);
+            return;
+        }
+        shell.setIdleTimeout(idleTimeout);
+        RemoteShell existing = idle.putIfAbsent(key, shell);
+        if (null != existing) {
+            //another caller already offered a shell for the same key
+            shell.close(pool);
+            return;
+        }
+        startEvictor();
+    }
+
+    /**
+     * Close the shell without keeping it
+     */
+    void discard(final RemoteShell shell) {
+        shell.close(pool);
+    }
+
+    void evictExpired() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Key, RemoteShell> entry : idle.entrySet()) {
+            RemoteShell shell = entry.getValue();
+            if (now - shell.getLastUsed() > shell.getIdleTimeout() && idle.remove(entry.getKey(), shell)) {
+                shell.close(pool);
+            }
+        }
+    }
+
+    int getIdleCount() {
+        return idle.size();
+    }
+
+    private void startEvictor() {
+        if (evictorStarted.compareAndSet(false, true)) {
+            WinRMScheduler.get().scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    evictExpired();
+                }
+            }, EVICTION_INTERVAL, EVICTION_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Retries of commands and copies after transient WinRM faults, shared by the node executor and the file copier. The
+ * wait before each retry grows exponentially, with random jitter so that nodes failing together do not retry
+ * together, and the number of retries of an execution is limited by a budget shared by all of its nodes, so that an
+ * unhealthy environment does not get many times its normal load.
+ */
+class RetryPolicy {
+    /**
+     * Kind of fault, from {@link #classify(Throwable)}
+     */
+    static enum Fault {
+        /**
+         * not transient, retrying would fail again
+         */
+        Permanent,
+        /**
+         * transient, but the request may have been processed by the node
+         */
+        Transient,
+        /**
+         * transient, and the node did not process the request
+         */
+        Rejected,
+    }
+
+    static class Settings {
+        static final Settings DISABLED = new Settings(1, 0, 0, 0);
+
+        private final int maxAttempts;
+        private final long backoff;
+        private final long maxBackoff;
+        private final int budget;
+
+        /**
+         * @param maxAttempts maximum number of attempts, 1 to not retry
+         * @param backoff     milliseconds before the first retry
+         * @param maxBackoff  maximum milliseconds before a retry
+         * @param budget      maximum number of retries of an execution, for all of its nodes
+         */
+        Settings(final int maxAttempts, final long backoff, final long maxBackoff, final int budget) {
+            this.maxAttempts = Math.max(1, maxAttempts);
+            this.backoff = Math.max(0, backoff);
+            this.maxBackoff = Math.max(this.backoff, maxBackoff);
+            this.budget = budget;
+        }
+
+        boolean isEnabled() {
+            return maxAttempts > 1;
+        }
+
+        int getMaxAttempts() {
+            return maxAttempts;
+        }
+    }
+
+    /**
+     * Faults which show that the request was not processed: WS-Management quota faults, a shell which no longer
+     * exists, or an HTTP 503 from the listener
+     */
+    private static final Pattern REJECTED = Pattern.compile(
+            "QuotaLimit|ShellNotFound|shell was not found|2150858843|HTTP response.*\\b503\\b",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern TRANSIENT = Pattern.compile(
+            "HTTP response.*\\b5\\d\\d\\b|Connection reset|Broken pipe",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final int BUDGET_HISTORY = 1000;
+
+    private final Random random = new Random();
+    private final Map<String, AtomicInteger> budgets = Collections.synchronizedMap(
+            new LinkedHashMap<String, AtomicInteger>() {
+                protected boolean removeEldestEntry(final Map.Entry<String, AtomicInteger> eldest) {
+                    return size() > BUDGET_HISTORY;
+                }
+            }
+    );
+
+    /**
+     * @return the kind of fault of the exception, or of one of its causes
+     */
+    static Fault classify(final Throwable exception) {
+        Fault fault = Fault.Permanent;
+        for (Throwable t = exception; null != t; t = t.getCause() != t ? t.getCause() : null) {
+            final String message = String.valueOf(t.getMessage());
+            if (t instanceof ConnectException
+                    || "ConnectTimeoutException".equals(t.getClass().getSimpleName())
+                    || REJECTED.matcher(message).find()) {
+                return Fault.Rejected;
+            }
+            if (t instanceof SocketException
+                    || t instanceof SocketTimeoutException
+                    || "NoHttpResponseException".equals(t.getClass().getSimpleName())
+                    || TRANSIENT.matcher(message).find()) {
+                fault = Fault.Transient;
+            }
+        }
+        return fault;
+    }
+
+    /**
+     * @param exception      fault of an attempt
+     * @param commandStarted true if the command had been sent to the node before the fault
+     *
+     * @return true if the attempt can be retried: the fault is not permanent and the command cannot have run yet
+     */
+    static boolean isRetryable(final Throwable exception, final boolean commandStarted) {
+        return !commandStarted && classify(exception) != Fault.Permanent;
+    }
+
+    /**
+     * Take a retry from the budget of the scope, and compute the wait before it
+     *
+     * @param scope    execution the retry counts against, or null if it has no budget
+     * @param settings retry settings
+     * @param attempt  number of the attempt which failed, starting at 1
+     *
+     * @return milliseconds to wait before the next attempt, or -1 if the attempts or the budget are used up
+     */
+    long nextDelay(final String scope, final Settings settings, final int attempt) {
+        if (attempt >= settings.maxAttempts) {
+            return -1;
+        }
+        if (null != scope && budget(scope).incrementAndGet() > settings.budget) {
+            return -1;
+        }
+        long base = settings.backoff;
+        for (int i = 1; i < attempt && base < settings.maxBackoff; i++) {
+            base *= 2;
+        }
+        base = Math.min(base, settings.maxBackoff);
+        final long half = base / 2;
+        return half + (long) (random.nextDouble() * (base - half + 1));
+    }
+
+    private AtomicInteger budget(final String scope) {
+        synchronized (budgets) {
+            AtomicInteger used = budgets.get(scope);
+            if (null == used) {
+                used = new AtomicInteger();
+                budgets.put(scope, used);
+            }
+            return used;
+        }
+    }
+
+    /**
+     * Wait before a retry
+     *
+     * @return false if interrupted, the interrupt status is kept
+     */
+    static boolean pause(final long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,376 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import com.xebialabs.overthere.ConnectionOptions;
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.cifs.CifsConnectionBuilder;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.xebialabs.overthere.ConnectionOptions.*;
+
+/**
+ * Keeps idle {@link OverthereConnection}s per remote endpoint so that consecutive commands and file copies against
+ * the same node can reuse a connection instead of opening a new one. Connections are borrowed exclusively, they are
+ * never shared between two callers at the same time. Overthere opens a new HTTP connection and Kerberos context for
+ * each WS-Man request of a WinRM connection, pooling does not save those handshakes.
+ */
+class WinRMConnectionPool {
+    private static final long EVICTION_INTERVAL = 30000;
+
+    /**
+     * Creates a new connection when the pool has none available
+     */
+    static interface ConnectionFactory {
+        OverthereConnection connect();
+    }
+
+    /**
+     * Verifies a connection which has been idle for a while before handing it out again
+     */
+    static interface HealthCheck {
+        boolean isHealthy(OverthereConnection connection);
+    }
+
+    static class Settings {
+        static final Settings DISABLED = new Settings(false, 0, 0, 0, 0);
+
+        private final boolean enabled;
+        private final int maxIdle;
+        private final long idleTimeout;
+        private final long maxLifetime;
+        private final long validateAfter;
+
+        Settings(
+                final boolean enabled,
+                final int maxIdle,
+                final long idleTimeout,
+                final long maxLifetime,
+                final long validateAfter
+        ) {
+            this.enabled = enabled && maxIdle > 0;
+            this.maxIdle = maxIdle;
+            this.idleTimeout = idleTimeout;
+            this.maxLifetime = maxLifetime;
+            this.validateAfter = validateAfter;
+        }
+
+        boolean isEnabled() {
+            return enabled;
+        }
+
+        int getMaxIdle() {
+            return maxIdle;
+        }
+
+        long getIdleTimeout() {
+            return idleTimeout;
+        }
+
+        long getMaxLifetime() {
+            return maxLifetime;
+        }
+
+        long getValidateAfter() {
+            return validateAfter;
+        }
+    }
+
+    /**
+     * Identifies the remote endpoint, credentials and options a connection was opened with: every connection option is
+     * part of the key, so that a connection is only shared by callers which would have opened the same connection. The
+     * password is kept as its SHA-256 digest.
+     */
+    static final class Key {
+        private final String protocol;
+        private final SortedMap<String, String> options;
+        private final byte[] passwordDigest;
+
+        Key(final String protocol, final Map<String, ?> options, final String password) {
+            this.protocol = protocol;
+            this.options = new TreeMap<String, String>();
+            for (Map.Entry<String, ?> entry : options.entrySet()) {
+                if (!PASSWORD.equals(entry.getKey())) {
+                    this.options.put(entry.getKey(), String.valueOf(entry.getValue()));
+                }
+            }
+            this.passwordDigest = null != password ? digest(password) : null;
+        }
+
+        private static byte[] digest(final String password) {
+            try {
+                return MessageDigest.getInstance("SHA-256").digest(password.getBytes("UTF-8"));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        static Key of(final String protocol, final ConnectionOptions options) {
+            final Map<String, Object> values = new HashMap<String, Object>();
+            for (String name : options.keys()) {
+                values.put(name, options.get(name));
+            }
+            return new Key(protocol, values, options.<String>get(PASSWORD, null));
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return Arrays.equals(passwordDigest, key.passwordDigest)
+                    && (protocol != null ? protocol.equals(key.protocol) : key.protocol == null)
+                    && options.equals(key.options);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = protocol != null ? protocol.hashCode() : 0;
+            result = 31 * result + options.hashCode();
+            result = 31 * result + Arrays.hashCode(passwordDigest);
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return ("true".equals(options.get(CifsConnectionBuilder.WINRM_ENABLE_HTTPS)) ? "https" : "http")
+                    + "/" + protocol + "://" + options.get(USERNAME) + "@" + options.get(ADDRESS) + ":"
+                    + options.get(PORT);
+        }
+    }
+
+    /**
+     * A connection handed out by the pool, must be given back with {@link #release(Lease)} or
+     * {@link #invalidate(Lease)}.
+     */
+    static final class Lease {
+        private final Key key;
+        private final OverthereConnection connection;
+        private final long created;
+        private boolean reused;
+        private Settings settings;
+        private long lastUsed;
+
+        private Lease(final Key key, final OverthereConnection connection, final Settings settings) {
+            this.key = key;
+            this.connection = connection;
+            this.settings = settings;
+            this.created = System.currentTimeMillis();
+            this.lastUsed = created;
+        }
+
+        OverthereConnection getConnection() {
+            return connection;
+        }
+
+        Key getKey() {
+            return key;
+        }
+
+        /**
+         * @return true if the connection was taken from the pool rather than newly opened
+         */
+        boolean isReused() {
+            return reused;
+        }
+    }
+
+    private final ConcurrentMap<Key, LinkedList<Lease>> idle = new ConcurrentHashMap<Key, LinkedList<Lease>>();
+    private final AtomicBoolean evictorStarted = new AtomicBoolean(false);
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+
+    /**
+     * Borrow a connection for the key, reusing an idle one when the settings allow it.
+     *
+     * @param key         endpoint key
+     * @param settings    pool settings
+     * @param factory     creates a new connection if none is available
+     * @param healthCheck check for connections idle longer than the validation interval, may be null
+     *
+     * @return the lease
+     */
+    Lease borrow(
+            final Key key,
+            final Settings settings,
+            final ConnectionFactory factory,
+            final HealthCheck healthCheck
+    ) {
+        if (settings.isEnabled()) {
+            Lease lease;
+            while (null != (lease = pollIdle(key))) {
+                long now = System.currentTimeMillis();
+                if (isExpired(lease, settings, now)) {
+                    discard(lease);
+                    continue;
+                }
+                if (null != healthCheck
+                        && now - lease.lastUsed > settings.getValidateAfter()
+                        && !isHealthy(lease, healthCheck)) {
+                    discard(lease);
+                    continue;
+                }
+                lease.reused = true;
+                lease.settings = settings;
+                reused.incrementAndGet();
+                return lease;
+            }
+        }
+        Lease lease = new Lease(key, factory.connect(), settings);
+        created.incrementAndGet();
+        return lease;
+    }
+
+    /**
+     * Return a healthy connection to the pool, or close it if pooling is disabled or the pool is full
+     */
+    void release(final Lease lease) {
+        Settings settings = lease.settings;
+        long now = System.currentTimeMillis();
+        if (!settings.isEnabled() || isExpired(lease, settings, now)) {
+            discard(lease);
+            return;
+        }
+        lease.lastUsed = now;
+        LinkedList<Lease> list = idleList(lease.key);
+        boolean pooled = false;
+        synchronized (list) {
+            if (list.size() < settings.getMaxIdle()) {
+                list.addFirst(lease);
+                pooled = true;
+            }
+        }
+        if (!pooled) {
+            discard(lease);
+        } else {
+            startEvictor();
+        }
+    }
+
+    /**
+     * Close a connection which failed and must not be reused
+     */
+    void invalidate(final Lease lease) {
+        discard(lease);
+    }
+
+    /**
+     * Close all idle connections which exceeded their idle timeout or lifetime
+     */
+    void evictExpired() {
+        long now = System.currentTimeMillis();
+        for (LinkedList<Lease> list : idle.values()) {
+            LinkedList<Lease> expired = new LinkedList<Lease>();
+            synchronized (list) {
+                for (Iterator<Lease> iterator = list.iterator(); iterator.hasNext(); ) {
+                    Lease lease = iterator.next();
+                    if (isExpired(lease, lease.settings, now)) {
+                        iterator.remove();
+                        expired.add(lease);
+                    }
+                }
+            }
+            for (Lease lease : expired) {
+                discard(lease);
+            }
+        }
+    }
+
+    int getIdleCount() {
+        int count = 0;
+        for (LinkedList<Lease> list : idle.values()) {
+            synchronized (list) {
+                count += list.size();
+            }
+        }
+        return count;
+    }
+
+    long getCreatedCount() {
+        return created.get();
+    }
+
+    long getReusedCount() {
+        return reused.get();
+    }
+
+    long getEvictedCount() {
+        return evicted.get();
+    }
+
+    private Lease pollIdle(final Key key) {
+        LinkedList<Lease> list = idle.get(key);
+        if (null == list) {
+            return null;
+        }
+        synchronized (list) {
+            return list.poll();
+        }
+    }
+
+    private LinkedList<Lease> idleList(final Key key) {
+        LinkedList<Lease> list = idle.get(key);
+        if (null == list) {
+            LinkedList<Lease> created = new LinkedList<Lease>();
+            list = idle.putIfAbsent(key, created);
+            if (null == list) {
+                list = created;
+            }
+        }
+        return list;
+    }
+
+    private static boolean isExpired(final Lease lease, final Settings settings, final long now) {
+        return (settings.getMaxLifetime() > 0 && now - lease.created > settings.getMaxLifetime())
+                || (settings.getIdleTimeout() > 0 && now - lease.lastUsed > settings.getIdleTimeout());
+    }
+
+    private static boolean isHealthy(final Lease lease, final HealthCheck healthCheck) {
+        try {
+            return healthCheck.isHealthy(lease.connection);
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    private void discard(final Lease lease) {
+        if (lease.settings.isEnabled()) {
+            evicted.incrementAndGet();
+        }
+        try {
+            lease.connection.close();
+        } catch (RuntimeException e) {
+            //ignore failures closing a connection that is thrown away
+        }
+    }
+
+    private void startEvictor() {
+        if (evictorStarted.compareAndSet(false, true)) {
+            WinRMScheduler.get().scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    evictExpired();
+                }
+            }, EVICTION_INTERVAL, EVICTION_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+}
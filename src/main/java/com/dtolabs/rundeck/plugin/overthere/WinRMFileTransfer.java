@@ -0,0 +1,704 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.OverthereProcess;
+import com.xebialabs.overthere.RuntimeIOException;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Copies files to the node over the WinRM channel, without SMB. A PowerShell receiver is started on the node which
+ * reads the file content from stdin as base64 encoded chunks, one chunk per line, and writes it to the destination
+ * file. When the end marker is received the receiver reports the number of bytes written.
+ *
+ * Large local files can be sent as several ranges in parallel, each range uses its own remote shell and receiver.
+ * Files which replace an earlier version can be sent as a delta, see {@link DeltaEncoder}.
+ */
+class WinRMFileTransfer {
+    static final String RESULT_PREFIX = "RD-WINRM-COPY ";
+    static final String SIGNATURE_PREFIX = "RD-WINRM-SIG ";
+    private static final String MISSING = "MISSING";
+    private static final String END_MARKER = ".";
+    private static final String NEWLINE = "\r\n";
+    private static final int MAX_ERROR_LENGTH = 4096;
+    private static final int HASH_BUFFER_SIZE = 65536;
+
+    private final OverthereConnection connection;
+    private final int chunkSize;
+
+    /**
+     * @param connection WinRM connection which can start processes
+     * @param chunkSize  number of bytes sent per chunk, WinRM limits the size of a single message (MaxEnvelopeSizekb)
+     *                   and a chunk grows by a third when encoded
+     */
+    WinRMFileTransfer(final OverthereConnection connection, final int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunk size must be positive: " + chunkSize);
+        }
+        this.connection = connection;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @return a new unique file path in the temporary directory
+     */
+    static String tempFilePath(final String tempDirectory) {
+        String dir = tempDirectory;
+        if (!dir.endsWith("\\")) {
+            dir = dir + "\\";
+        }
+        return dir + "RD_WINRM_TMP_" + UUID.randomUUID().toString().replace("-", "");
+    }
+
+    /**
+     * Copy the stream to the remote file, the file is replaced if it exists.
+     *
+     * @param input source data
+     * @param path  remote file path
+     *
+     * @return number of bytes copied
+     *
+     * @throws IOException if reading the input fails, or the remote file could not be written
+     */
+    long upload(final InputStream input, final String path) throws IOException {
+        return receive(input, path, -1);
+    }
+
+    /**
+     * Copy a local file by splitting it into ranges which are sent concurrently, each range over its own WinRM
+     * shell, and written at their offset in the remote file. The remote file is verified with a SHA-256 checksum
+     * afterwards.
+     *
+     * @param file        local file
+     * @param path        remote file path
+     * @param parallelism number of concurrent streams
+     *
+     * @return number of bytes copied
+     *
+     * @throws IOException if reading the file fails, or the remote file could not be written or does not match
+     */
+    long uploadRanges(final File file, final String path, final int parallelism) throws IOException {
+        final FileInputStream fileStream = new FileInputStream(file);
+        try {
+            final FileChannel channel = fileStream.getChannel();
+            final long length = channel.size();
+            allocate(path, length);
+            final int streams = (int) Math.max(1, Math.min(parallelism, length / chunkSize));
+            //ranges are whole chunks, so that every message except the last of each range is full size
+            final long rangeSize = ((length / streams + chunkSize - 1) / chunkSize) * chunkSize;
+
+            final ExecutorService executor = Executors.newFixedThreadPool(streams,
+                    WinRMScheduler.daemonThreadFactory("winrm-copy"));
+            final List<Future<Long>> results = new ArrayList<Future<Long>>();
+            try {
+                for (long start = 0; start < length; start += rangeSize) {
+                    final long offset = start;
+                    final long end = Math.min(length, start + rangeSize);
+                    results.add(executor.submit(new Callable<Long>() {
+                        public Long call() throws IOException {
+                            return receive(new ChannelRangeInputStream(channel, offset, end), path, offset);
+                        }
+                    }));
+                }
+                long total = 0;
+                for (Future<Long> result : results) {
+                    total += await(result);
+                }
+                if (total != length) {
+                    throw new IOException("Copy to " + path + " incomplete: " + total + " of " + length + " bytes");
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+
+            final String expected = sha256(channel);
+            final String actual = remoteSha256(path);
+            if (!expected.equalsIgnoreCase(actual)) {
+                throw new IOException("Checksum of " + path + " does not match: expected " + expected + " but was "
+                        + actual);
+            }
+            return length;
+        } finally {
+            fileStream.close();
+        }
+    }
+
+    private static long await(final Future<Long> result) throws IOException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeIOException("Interrupted waiting for file copy", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Result of a delta copy
+     */
+    static final class DeltaResult {
+        private final long length;
+        private final long sent;
+        private final boolean full;
+
+        DeltaResult(final long length, final long sent, final boolean full) {
+            this.length = length;
+            this.sent = sent;
+            this.full = full;
+        }
+
+        /**
+         * @return length of the file
+         */
+        long getLength() {
+            return length;
+        }
+
+        /**
+         * @return number of file bytes which had to be sent
+         */
+        long getSent() {
+            return sent;
+        }
+
+        /**
+         * @return number of bytes which did not have to be sent
+         */
+        long getSaved() {
+            return length - sent;
+        }
+
+        /**
+         * @return true if the whole file was sent because the destination did not exist
+         */
+        boolean isFull() {
+            return full;
+        }
+    }
+
+    /**
+     * Copy the stream to the remote file, sending only the blocks which are not already present in the existing
+     * remote file. The remote file is rebuilt next to the existing one and replaces it when complete. If the remote
+     * file does not exist the whole stream is sent.
+     *
+     * @param input     new content
+     * @param path      remote file path
+     * @param blockSize size of the blocks compared
+     *
+     * @return the result
+     *
+     * @throws IOException if reading the input fails, or the remote file could not be written
+     */
+    DeltaResult uploadDelta(final InputStream input, final String path, final int blockSize) throws IOException {
+        final List<String> signatures = new ArrayList<String>();
+        final String status = runScript(signatureScript(path, blockSize), SIGNATURE_PREFIX, signatures);
+        if (MISSING.equals(status)) {
+            final long length = upload(input, path);
+            return new DeltaResult(length, length, true);
+        }
+
+        final DeltaEncoder encoder = new DeltaEncoder(blockSize, chunkSize);
+        long index = 0;
+        for (String signature : signatures) {
+            final String[] parts = signature.split(" ");
+            if (parts.length != 3) {
+                throw new IOException("Unexpected signature output: " + signature);
+            }
+            try {
+                encoder.addBlock(index++, (int) Long.parseLong(parts[0], 16), Hex.decodeHex(parts[1].toCharArray()),
+                        Integer.parseInt(parts[2]));
+            } catch (Exception e) {
+                throw new IOException("Unexpected signature output: " + signature, e);
+            }
+        }
+
+        final MessageDigest digest = newSha256();
+        final OverthereProcess process = connection.startProcess(
+                PowerShellUtil.encodedCommandLine(rebuildScript(path, blockSize)));
+        final ErrorCollector errors = new ErrorCollector(process.getStderr());
+        errors.start();
+        boolean done = false;
+        try {
+            final Writer stdin = new OutputStreamWriter(process.getStdin(), "US-ASCII");
+            final RecipeWriter recipe = new RecipeWriter(stdin);
+            final long sent = encoder.encode(input, digest, recipe);
+            recipe.finish();
+            final String[] result = readResult(process, errors).split(" ");
+            final String expected = Hex.encodeHexString(digest.digest());
+            if (result.length != 2 || !expected.equalsIgnoreCase(result[1])) {
+                throw new IOException("Checksum of " + path + " does not match after delta copy");
+            }
+            done = true;
+            return new DeltaResult(toLong(result[0]), sent, false);
+        } finally {
+            if (!done) {
+                process.destroy();
+            }
+        }
+    }
+
+    /**
+     * Writes the recipe to the rebuild script, consecutive block copies are sent as one instruction
+     */
+    private final class RecipeWriter implements DeltaEncoder.Recipe {
+        private final Writer stdin;
+        private long runStart = -1;
+        private int runLength;
+
+        private RecipeWriter(final Writer stdin) {
+            this.stdin = stdin;
+        }
+
+        public void copy(final long index) throws IOException {
+            if (runStart >= 0 && index == runStart + runLength) {
+                runLength++;
+                return;
+            }
+            flushRun();
+            runStart = index;
+            runLength = 1;
+        }
+
+        public void data(final byte[] buffer, final int offset, final int length) throws IOException {
+            flushRun();
+            final byte[] bytes = new byte[length];
+            System.arraycopy(buffer, offset, bytes, 0, length);
+            stdin.write("D ");
+            stdin.write(new String(Base64.encodeBase64(bytes), "US-ASCII"));
+            stdin.write(NEWLINE);
+            stdin.flush();
+        }
+
+        private void flushRun() throws IOException {
+            if (runStart >= 0) {
+                stdin.write("C " + runStart + " " + runLength + NEWLINE);
+                runStart = -1;
+                runLength = 0;
+            }
+        }
+
+        private void finish() throws IOException {
+            flushRun();
+            stdin.write(END_MARKER + NEWLINE);
+            stdin.flush();
+        }
+    }
+
+    /**
+     * PowerShell script which prints the weak and strong checksum of each block of the file, the weak checksum is
+     * computed in C# as it needs a loop over every byte.
+     */
+    static String signatureScript(final String path, final int blockSize) {
+        return "$ErrorActionPreference = 'Stop'\n"
+                + "$p = " + PowerShellUtil.quote(path) + "\n"
+                + "if (-not [IO.File]::Exists($p)) {\n"
+                + "  [Console]::Out.WriteLine(" + PowerShellUtil.quote(RESULT_PREFIX + MISSING) + ")\n"
+                + "  exit 0\n"
+                + "}\n"
+                + "Add-Type -TypeDefinition @'\n"
+                + "public static class RundeckBlockSignature {\n"
+                + "  public static long Write(string path, int size) {\n"
+                + "    System.Security.Cryptography.MD5 md5 = System.Security.Cryptography.MD5.Create();\n"
+                + "    System.IO.TextWriter o = System.Console.Out;\n"
+                + "    byte[] buf = new byte[size];\n"
+                + "    long count = 0;\n"
+                + "    using (System.IO.FileStream f = System.IO.File.OpenRead(path)) {\n"
+                + "      while (true) {\n"
+                + "        int n = 0;\n"
+                + "        int r;\n"
+                + "        while (n < size && (r = f.Read(buf, n, size - n)) > 0) { n += r; }\n"
+                + "        if (n == 0) { break; }\n"
+                + "        uint a = 0;\n"
+                + "        uint b = 0;\n"
+                + "        for (int i = 0; i < n; i++) { a += buf[i]; b += (uint)(n - i) * buf[i]; }\n"
+                + "        uint weak = (a & 0xffff) | ((b & 0xffff) << 16);\n"
+                + "        string strong = System.BitConverter.ToString(md5.ComputeHash(buf, 0, n)).Replace(\"-\", \"\");\n"
+                + "        o.WriteLine(\"" + SIGNATURE_PREFIX + "\" + weak.ToString(\"x8\") + \" \" + strong + \" \" + n);\n"
+                + "        count++;\n"
+                + "      }\n"
+                + "    }\n"
+                + "    return count;\n"
+                + "  }\n"
+                + "}\n"
+                + "'@\n"
+                + "$c = [RundeckBlockSignature]::Write($p, " + blockSize + ")\n"
+                + "[Console]::Out.WriteLine(" + PowerShellUtil.quote(RESULT_PREFIX) + " + $c)\n";
+    }
+
+    /**
+     * PowerShell script which rebuilds the file from the recipe read from stdin, into a new file which then replaces
+     * the existing one. Reports the length and SHA-256 checksum of the new file.
+     */
+    static String rebuildScript(final String path, final int blockSize) {
+        return "$ErrorActionPreference = 'Stop'\n"
+                + "$p = " + PowerShellUtil.quote(path) + "\n"
+                + "$t = $p + '.rdtmp'\n"
+                + "$bs = " + blockSize + "\n"
+                + "$src = [IO.File]::OpenRead($p)\n"
+                + "$dst = [IO.File]::Open($t, 'Create', 'Write', 'None')\n"
+                + "$sha = [Security.Cryptography.SHA256]::Create()\n"
+                + "$buf = New-Object byte[] $bs\n"
+                + "$n = 0\n"
+                + "function Add-Bytes($b, $c) {\n"
+                + "  $dst.Write($b, 0, $c)\n"
+                + "  [void]$sha.TransformBlock($b, 0, $c, $null, 0)\n"
+                + "  $script:n += $c\n"
+                + "}\n"
+                + "try {\n"
+                + "  while ($true) {\n"
+                + "    $l = [Console]::In.ReadLine()\n"
+                + "    if ($l -eq $null) { throw 'Input ended before the end of the file' }\n"
+                + "    if ($l -eq " + PowerShellUtil.quote(END_MARKER) + ") { break }\n"
+                + "    if ($l.StartsWith('C ')) {\n"
+                + "      $x = $l.Split(' ')\n"
+                + "      [void]$src.Seek([long]$x[1] * $bs, 'Begin')\n"
+                + "      for ($k = 0; $k -lt [int]$x[2]; $k++) {\n"
+                + "        $r = $src.Read($buf, 0, $bs)\n"
+                + "        Add-Bytes $buf $r\n"
+                + "      }\n"
+                + "    } else {\n"
+                + "      $b = [Convert]::FromBase64String($l.Substring(2))\n"
+                + "      Add-Bytes $b $b.Length\n"
+                + "    }\n"
+                + "  }\n"
+                + "  [void]$sha.TransformFinalBlock((New-Object byte[] 0), 0, 0)\n"
+                + "} catch {\n"
+                + "  $dst.Close()\n"
+                + "  [IO.File]::Delete($t)\n"
+                + "  throw\n"
+                + "} finally {\n"
+                + "  $src.Close()\n"
+                + "  $dst.Close()\n"
+                + "}\n"
+                + "[IO.File]::Delete($p)\n"
+                + "[IO.File]::Move($t, $p)\n"
+                + "[Console]::Out.WriteLine(" + PowerShellUtil.quote(RESULT_PREFIX)
+                + " + $n + ' ' + [BitConverter]::ToString($sha.Hash).Replace('-', ''))\n";
+    }
+
+    /**
+     * Create or truncate the remote file and set its length, so that ranges can be written to it concurrently
+     */
+    private void allocate(final String path, final long length) throws IOException {
+        runScript("$ErrorActionPreference = 'Stop'\n"
+                + "$f = [IO.File]::Open(" + PowerShellUtil.quote(path) + ", 'Create', 'Write', 'None')\n"
+                + "try { $f.SetLength(" + length + ") } finally { $f.Close() }\n"
+                + "[Console]::Out.WriteLine(" + PowerShellUtil.quote(RESULT_PREFIX) + " + " + length + ")\n");
+    }
+
+    /**
+     * @return hex SHA-256 checksum of the remote file
+     */
+    String remoteSha256(final String path) throws IOException {
+        return runScript("$ErrorActionPreference = 'Stop'\n"
+                + "$f = [IO.File]::OpenRead(" + PowerShellUtil.quote(path) + ")\n"
+                + "try { $h = [Security.Cryptography.SHA256]::Create().ComputeHash($f) } finally { $f.Close() }\n"
+                + "[Console]::Out.WriteLine(" + PowerShellUtil.quote(RESULT_PREFIX)
+                + " + [BitConverter]::ToString($h).Replace('-', ''))\n");
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String sha256(final FileChannel channel) throws IOException {
+        final MessageDigest digest = newSha256();
+        final ByteBuffer buffer = ByteBuffer.allocate(HASH_BUFFER_SIZE);
+        long position = 0;
+        int read;
+        while ((read = channel.read(buffer, position)) > 0) {
+            buffer.flip();
+            digest.update(buffer);
+            buffer.clear();
+            position += read;
+        }
+        return Hex.encodeHexString(digest.digest());
+    }
+
+    /**
+     * Start a receiver and send the input to it
+     *
+     * @param offset position in the remote file to write at, or -1 to replace the file
+     */
+    private long receive(final InputStream input, final String path, final long offset) throws IOException {
+        final OverthereProcess process = connection.startProcess(
+                PowerShellUtil.encodedCommandLine(receiverScript(path, offset)));
+        final ErrorCollector errors = new ErrorCollector(process.getStderr());
+        errors.start();
+        boolean done = false;
+        try {
+            final long sent = send(input, process);
+            final long received = toLong(readResult(process, errors));
+            if (received != sent) {
+                throw new IOException("Copy to " + path + " incomplete: sent " + sent + " bytes, but " + received +
+                        " bytes were written");
+            }
+            done = true;
+            return sent;
+        } finally {
+            if (!done) {
+                process.destroy();
+            }
+        }
+    }
+
+    /**
+     * Run a PowerShell script which prints a result line prefixed with {@link #RESULT_PREFIX}
+     *
+     * @return the result value
+     *
+     * @throws IOException if the script fails or does not print a result
+     */
+    String runScript(final String script) throws IOException {
+        return runScript(script, null, null);
+    }
+
+    private String runScript(final String script, final String linePrefix, final List<String> lines)
+            throws IOException {
+        final OverthereProcess process = connection.startProcess(PowerShellUtil.encodedCommandLine(script));
+        final ErrorCollector errors = new ErrorCollector(process.getStderr());
+        errors.start();
+        boolean done = false;
+        try {
+            process.getStdin().close();
+            final String result = readResult(process, errors, linePrefix, lines);
+            done = true;
+            return result;
+        } finally {
+            if (!done) {
+                process.destroy();
+            }
+        }
+    }
+
+    private static long toLong(final String value) throws IOException {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IOException("Unexpected receiver output: " + value);
+        }
+    }
+
+    private long send(final InputStream input, final OverthereProcess process) throws IOException {
+        final Writer stdin = new OutputStreamWriter(process.getStdin(), "US-ASCII");
+        final byte[] buffer = new byte[chunkSize];
+        long total = 0;
+        int read;
+        while ((read = readChunk(input, buffer)) > 0) {
+            stdin.write(encode(buffer, read));
+            stdin.write(NEWLINE);
+            stdin.flush();
+            total += read;
+        }
+        stdin.write(END_MARKER + NEWLINE);
+        stdin.flush();
+        return total;
+    }
+
+    /**
+     * Fill the buffer from the stream, so that every chunk except the last one is full size
+     *
+     * @return number of bytes read, 0 at the end of the stream
+     */
+    static int readChunk(final InputStream input, final byte[] buffer) throws IOException {
+        int filled = 0;
+        while (filled < buffer.length) {
+            int read = input.read(buffer, filled, buffer.length - filled);
+            if (read < 0) {
+                break;
+            }
+            filled += read;
+        }
+        return filled;
+    }
+
+    static String encode(final byte[] buffer, final int length) throws IOException {
+        final byte[] bytes;
+        if (length == buffer.length) {
+            bytes = buffer;
+        } else {
+            bytes = new byte[length];
+            System.arraycopy(buffer, 0, bytes, 0, length);
+        }
+        return new String(Base64.encodeBase64(bytes), "US-ASCII");
+    }
+
+    private static String readResult(final OverthereProcess process, final ErrorCollector errors)
+            throws IOException {
+        return readResult(process, errors, null, null);
+    }
+
+    /**
+     * Read the output of a script until it ends, and check that it succeeded
+     *
+     * @param linePrefix prefix of other lines to collect, or null
+     * @param lines      collected lines, without the prefix
+     *
+     * @return the value of the result line
+     */
+    private static String readResult(
+            final OverthereProcess process,
+            final ErrorCollector errors,
+            final String linePrefix,
+            final List<String> lines
+    ) throws IOException {
+        final BufferedReader stdout = new BufferedReader(new InputStreamReader(process.getStdout(), "UTF-8"));
+        String result = null;
+        String line;
+        while (null != (line = stdout.readLine())) {
+            if (line.startsWith(RESULT_PREFIX)) {
+                result = line.substring(RESULT_PREFIX.length()).trim();
+            } else if (null != linePrefix && line.startsWith(linePrefix)) {
+                lines.add(line.substring(linePrefix.length()));
+            }
+        }
+        final int exitCode;
+        try {
+            exitCode = process.waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeIOException("Interrupted waiting for the file receiver", e);
+        }
+        if (exitCode != 0 || null == result) {
+            throw new IOException("File receiver failed with exit code " + exitCode + ": " + errors.getText());
+        }
+        return result;
+    }
+
+    /**
+     * PowerShell script which writes the base64 lines read from stdin to the file
+     *
+     * @param offset position to start writing at, the file must exist and other receivers may write to other
+     *               ranges of it concurrently; or -1 to replace the file
+     */
+    static String receiverScript(final String path, final long offset) {
+        final String open;
+        if (offset < 0) {
+            open = "$f = [IO.File]::Open(" + PowerShellUtil.quote(path) + ", 'Create', 'Write', 'None')\n";
+        } else {
+            open = "$f = [IO.File]::Open(" + PowerShellUtil.quote(path) + ", 'Open', 'Write', 'ReadWrite')\n"
+                    + "[void]$f.Seek(" + offset + ", 'Begin')\n";
+        }
+        return "$ErrorActionPreference = 'Stop'\n"
+                + open
+                + "$n = 0\n"
+                + "try {\n"
+                + "  while ($true) {\n"
+                + "    $l = [Console]::In.ReadLine()\n"
+                + "    if ($l -eq $null) { throw 'Input ended before the end of the file' }\n"
+                + "    if ($l -eq " + PowerShellUtil.quote(END_MARKER) + ") { break }\n"
+                + "    $b = [Convert]::FromBase64String($l)\n"
+                + "    $f.Write($b, 0, $b.Length)\n"
+                + "    $n += $b.Length\n"
+                + "  }\n"
+                + "} finally {\n"
+                + "  $f.Close()\n"
+                + "}\n"
+                + "[Console]::Out.WriteLine(" + PowerShellUtil.quote(RESULT_PREFIX) + " + $n)\n";
+    }
+
+    /**
+     * Reads a range of a file with positional reads, so that several ranges can be read from one channel at once
+     */
+    private static final class ChannelRangeInputStream extends InputStream {
+        private final FileChannel channel;
+        private final long end;
+        private long position;
+
+        private ChannelRangeInputStream(final FileChannel channel, final long start, final long end) {
+            this.channel = channel;
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int off, final int len) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            final int wanted = (int) Math.min(len, end - position);
+            final int read = channel.read(ByteBuffer.wrap(buffer, off, wanted), position);
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+    }
+
+    /**
+     * Drains stderr of the receiver, so that the process does not block on it, and keeps the start of it for the
+     * error message.
+     */
+    private static final class ErrorCollector extends Thread {
+        private final InputStream stderr;
+        private final StringBuffer text = new StringBuffer();
+
+        private ErrorCollector(final InputStream stderr) {
+            super("winrm-copy-stderr");
+            this.stderr = stderr;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(stderr));
+            try {
+                String line;
+                while (null != (line = reader.readLine())) {
+                    if (text.length() < MAX_ERROR_LENGTH) {
+                        text.append(line).append('\n');
+                    }
+                }
+            } catch (IOException e) {
+                //receiver is gone
+            }
+        }
+
+        private String getText() {
+            try {
+                join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return text.toString().trim();
+        }
+    }
+}
@@ -0,0 +1,417 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import com.dtolabs.rundeck.core.execution.workflow.steps.FailureReason;
+import com.xebialabs.overthere.OverthereExecutionOutputHandler;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timers and counters for the phases of commands and file copies, per project and node, published as MBeans on the
+ * platform MBean server. Each node has an MBean named
+ * "com.dtolabs.rundeck.plugin.overthere:type=WinRMNode,project=&lt;project&gt;,node=&lt;node&gt;", and the shared
+ * connection pool, remote shells, PowerShell hosts, credential caches, circuit breaker and admission control are
+ * described by "com.dtolabs.rundeck.plugin.overthere:type=WinRM".
+ *
+ * The MBean of a node which has not been used for {@link #NODE_IDLE_TIMEOUT} is unregistered and its metrics are
+ * dropped, its counters start again from zero when it is used next. An MBean registered under the same name by a
+ * previously loaded copy of the plugin is replaced, so that reloading the plugin does not keep the old copy's MBeans,
+ * and the class loader they reference, registered.
+ */
+class WinRMMetrics {
+    static final String DOMAIN = "com.dtolabs.rundeck.plugin.overthere";
+    static final long NODE_IDLE_TIMEOUT = 60 * 60 * 1000L;
+    private static final long EVICTION_INTERVAL = 60000;
+
+    /**
+     * Timed phases of a command or copy
+     */
+    static enum Phase {
+        /**
+         * resolving the configuration and connection options
+         */
+        Options,
+        /**
+         * reading the password from Key Storage
+         */
+        Storage,
+        /**
+         * Kerberos credential check
+         */
+        Auth,
+        /**
+         * waiting for admission by the shell and operation limits of the host
+         */
+        Admission,
+        /**
+         * opening a new connection, pooled connections are not counted
+         */
+        Connect,
+        /**
+         * starting a remote shell
+         */
+        Shell,
+        /**
+         * running the command and receiving its output
+         */
+        Command,
+        /**
+         * copying a file
+         */
+        Copy,
+    }
+
+    /**
+     * Metrics of one node of one project. The disabled instance ignores everything recorded.
+     */
+    static class NodeMetrics {
+        private final boolean enabled;
+        private final AtomicLong[] counts = new AtomicLong[Phase.values().length];
+        private final AtomicLong[] totals = new AtomicLong[Phase.values().length];
+        private final AtomicLong[] maxima = new AtomicLong[Phase.values().length];
+        private final AtomicLong bytesCopied = new AtomicLong();
+        private final AtomicLong outputChars = new AtomicLong();
+        private final AtomicLong scriptCacheHits = new AtomicLong();
+        private final AtomicLong scriptCacheMisses = new AtomicLong();
+        private final AtomicLong retries = new AtomicLong();
+        private final ConcurrentMap<String, AtomicLong> errors = new ConcurrentHashMap<String, AtomicLong>();
+        private final String name;
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        private NodeMetrics(final boolean enabled, final String name) {
+            this.enabled = enabled;
+            this.name = name;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new AtomicLong();
+                totals[i] = new AtomicLong();
+                maxima[i] = new AtomicLong();
+            }
+        }
+
+        boolean isEnabled() {
+            return enabled;
+        }
+
+        /**
+         * @return start time for {@link #record(Phase, long)}
+         */
+        long start() {
+            return enabled ? System.nanoTime() : 0;
+        }
+
+        /**
+         * Record the time of a phase
+         *
+         * @param start time returned by {@link #start()}
+         */
+        void record(final Phase phase, final long start) {
+            if (!enabled) {
+                return;
+            }
+            lastUsed = System.currentTimeMillis();
+            final long elapsed = System.nanoTime() - start;
+            final int i = phase.ordinal();
+            counts[i].incrementAndGet();
+            totals[i].addAndGet(elapsed);
+            long max;
+            while (elapsed > (max = maxima[i].get())) {
+                if (maxima[i].compareAndSet(max, elapsed)) {
+                    break;
+                }
+            }
+        }
+
+        void error(final FailureReason reason) {
+            if (!enabled) {
+                return;
+            }
+            final String name = null != reason ? reason.toString() : "Unknown";
+            AtomicLong count = errors.get(name);
+            if (null == count) {
+                final AtomicLong created = new AtomicLong();
+                count = errors.putIfAbsent(name, created);
+                if (null == count) {
+                    count = created;
+                }
+            }
+            count.incrementAndGet();
+        }
+
+        void bytesCopied(final long bytes) {
+            if (enabled && bytes > 0) {
+                bytesCopied.addAndGet(bytes);
+            }
+        }
+
+        void scriptCache(final boolean hit) {
+            if (enabled) {
+                (hit ? scriptCacheHits : scriptCacheMisses).incrementAndGet();
+            }
+        }
+
+        void retry() {
+            if (enabled) {
+                retries.incrementAndGet();
+            }
+        }
+
+        /**
+         * @return the handler, counting the characters of output passed to it
+         */
+        OverthereExecutionOutputHandler countOutput(final OverthereExecutionOutputHandler handler) {
+            if (!enabled) {
+                return handler;
+            }
+            return new OverthereExecutionOutputHandler() {
+                public void handleChar(final char c) {
+                    outputChars.incrementAndGet();
+                    handler.handleChar(c);
+                }
+
+                public void handleLine(final String line) {
+                    handler.handleLine(line);
+                }
+            };
+        }
+
+        private Map<String, Object> values() {
+            final Map<String, Object> values = new LinkedHashMap<String, Object>();
+            for (Phase phase : Phase.values()) {
+                final int i = phase.ordinal();
+                values.put(phase + "Count", counts[i].get());
+                values.put(phase + "TotalMillis", totals[i].get() / 1000000);
+                values.put(phase + "MaxMillis", maxima[i].get() / 1000000);
+            }
+            values.put("BytesCopied", bytesCopied.get());
+            values.put("OutputChars", outputChars.get());
+            values.put("ScriptCacheHits", scriptCacheHits.get());
+            values.put("ScriptCacheMisses", scriptCacheMisses.get());
+            values.put("Retries", retries.get());
+            for (Map.Entry<String, AtomicLong> entry : errors.entrySet()) {
+                values.put(entry.getKey() + "Errors", entry.getValue().get());
+            }
+            return values;
+        }
+    }
+
+    static final NodeMetrics DISABLED = new NodeMetrics(false, null);
+
+    private final WinRMConnectionPool pool;
+    private final RemoteShellRegistry shells;
+    private final PowerShellHostPool powershellHosts;
+    private final CredentialCache passwords;
+    private final KerberosCredentialCheck kerberos;
+    private final CircuitBreaker circuitBreaker;
+    private final AdmissionControl admission;
+    private final ConcurrentMap<String, NodeMetrics> nodes = new ConcurrentHashMap<String, NodeMetrics>();
+    private final AtomicBoolean registered = new AtomicBoolean(false);
+    private final AtomicBoolean evictorStarted = new AtomicBoolean(false);
+
+    WinRMMetrics(
+            final WinRMConnectionPool pool,
+            final RemoteShellRegistry shells,
+            final PowerShellHostPool powershellHosts,
+            final CredentialCache passwords,
+            final KerberosCredentialCheck kerberos,
+            final CircuitBreaker circuitBreaker,
+            final AdmissionControl admission
+    ) {
+        this.pool = pool;
+        this.shells = shells;
+        this.powershellHosts = powershellHosts;
+        this.passwords = passwords;
+        this.kerberos = kerberos;
+        this.circuitBreaker = circuitBreaker;
+        this.admission = admission;
+    }
+
+    /**
+     * @param enabled false to return the disabled metrics
+     *
+     * @return the metrics of the node, registering its MBean when it is first used
+     */
+    NodeMetrics forNode(final boolean enabled, final String project, final String node) {
+        if (!enabled) {
+            return DISABLED;
+        }
+        final String key = project + "/" + node;
+        NodeMetrics metrics = nodes.get(key);
+        if (null != metrics) {
+            metrics.lastUsed = System.currentTimeMillis();
+            return metrics;
+        }
+        //registration and eviction are serialized, so that an evicted MBean is not unregistered after it was
+        //registered again
+        synchronized (this) {
+            metrics = nodes.get(key);
+            if (null != metrics) {
+                return metrics;
+            }
+            if (registered.compareAndSet(false, true)) {
+                register(DOMAIN + ":type=WinRM", new ValuesMBean("WinRM connection pool and caches") {
+                    Map<String, Object> values() {
+                        return sharedValues();
+                    }
+                });
+            }
+            final NodeMetrics created = new NodeMetrics(true, DOMAIN + ":type=WinRMNode,project="
+                    + ObjectName.quote(String.valueOf(project)) + ",node=" + ObjectName.quote(String.valueOf(node)));
+            register(created.name, new ValuesMBean("WinRM node " + node) {
+                Map<String, Object> values() {
+                    return created.values();
+                }
+            });
+            nodes.put(key, created);
+            startEvictor();
+            return created;
+        }
+    }
+
+    /**
+     * Unregister the MBeans of the nodes not used for the idle timeout, and drop their metrics
+     */
+    synchronized void evictIdle(final long idleTimeout) {
+        final long now = System.currentTimeMillis();
+        for (Map.Entry<String, NodeMetrics> entry : nodes.entrySet()) {
+            final NodeMetrics metrics = entry.getValue();
+            if (now - metrics.lastUsed > idleTimeout && nodes.remove(entry.getKey(), metrics)) {
+                unregister(metrics.name);
+            }
+        }
+    }
+
+    private void startEvictor() {
+        if (evictorStarted.compareAndSet(false, true)) {
+            WinRMScheduler.get().scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    evictIdle(NODE_IDLE_TIMEOUT);
+                }
+            }, EVICTION_INTERVAL, EVICTION_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private Map<String, Object> sharedValues() {
+        final Map<String, Object> values = new LinkedHashMap<String, Object>();
+        values.put("PoolIdleConnections", pool.getIdleCount());
+        values.put("PoolCreatedConnections", pool.getCreatedCount());
+        values.put("PoolReusedConnections", pool.getReusedCount());
+        values.put("PoolEvictedConnections", pool.getEvictedCount());
+        values.put("IdleRemoteShells", shells.getIdleCount());
+        values.put("OpenPowerShellHosts", powershellHosts.getOpenCount());
+        values.put("IdlePowerShellHosts", powershellHosts.getIdleCount());
+        values.put("PasswordCacheSize", passwords.size());
+        values.put("PasswordCacheHits", passwords.getHitCount());
+        values.put("PasswordCacheMisses", passwords.getMissCount());
+        values.put("KerberosChecksRemembered", kerberos.size());
+        values.put("KerberosCheckHits", kerberos.getHitCount());
+        values.put("KerberosLogins", kerberos.getLoginCount());
+        values.put("OpenCircuits", circuitBreaker.getOpenCount());
+        values.put("AdmissionWaiting", admission.getWaitingCount());
+        values.put("AdmissionTimeouts", admission.getTimeoutCount());
+        return values;
+    }
+
+    /**
+     * Register the MBean, replacing one registered under the name by another copy of the plugin. Failures are ignored
+     * so that metrics never fail an execution.
+     */
+    private static void register(final String name, final DynamicMBean mbean) {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName objectName = new ObjectName(name);
+            if (server.isRegistered(objectName)
+                    && server.getClassLoaderFor(objectName) != WinRMMetrics.class.getClassLoader()) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(mbean, objectName);
+        } catch (JMException e) {
+            //ignore
+        } catch (SecurityException e) {
+            //ignore
+        }
+    }
+
+    private static void unregister(final String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(name));
+        } catch (JMException e) {
+            //ignore
+        } catch (SecurityException e) {
+            //ignore
+        }
+    }
+
+    /**
+     * Read only MBean with the current values as attributes
+     */
+    private abstract static class ValuesMBean implements DynamicMBean {
+        private final String description;
+
+        private ValuesMBean(final String description) {
+            this.description = description;
+        }
+
+        abstract Map<String, Object> values();
+
+        public Object getAttribute(final String attribute) throws AttributeNotFoundException {
+            final Object value = values().get(attribute);
+            if (null == value) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        public void setAttribute(final Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Read only attribute: " + attribute.getName());
+        }
+
+        public AttributeList getAttributes(final String[] attributes) {
+            final Map<String, Object> values = values();
+            final AttributeList list = new AttributeList();
+            for (String name : attributes) {
+                if (values.containsKey(name)) {
+                    list.add(new Attribute(name, values.get(name)));
+                }
+            }
+            return list;
+        }
+
+        public AttributeList setAttributes(final AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        public Object invoke(final String actionName, final Object[] params, final String[] signature)
+                throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        public MBeanInfo getMBeanInfo() {
+            final Map<String, Object> values = values();
+            final MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+            int i = 0;
+            for (Map.Entry<String, Object> entry : values.entrySet()) {
+                attributes[i++] = new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+                        entry.getKey(), true, false, false);
+            }
+            return new MBeanInfo(getClass().getName(), description, attributes, null,
+                    new MBeanOperationInfo[0], null);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process-wide low frequency scheduler used for housekeeping (idle connection eviction and the like). Uses a single
+ * daemon thread so that it never keeps the Rundeck JVM alive.
+ */
+final class WinRMScheduler {
+    private static ScheduledExecutorService scheduler;
+
+    private WinRMScheduler() {
+    }
+
+    static synchronized ScheduledExecutorService get() {
+        if (null == scheduler) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("winrm-scheduler"));
+        }
+        return scheduler;
+    }
+
+    static ThreadFactory daemonThreadFactory(final String prefix) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
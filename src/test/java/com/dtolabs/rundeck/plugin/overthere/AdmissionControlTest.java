@@ -0,0 +1,77 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AdmissionControlTest {
+    private static final String KEY = AdmissionControl.key("host", "user");
+
+    private static AdmissionControl.Settings settings(final int maxShells, final int maxOperations) {
+        return new AdmissionControl.Settings(true, maxShells, maxOperations, 0);
+    }
+
+    private static boolean admitted(
+            final AdmissionControl admission,
+            final AdmissionControl.Settings settings,
+            final int shells,
+            final int operations
+    ) throws InterruptedException {
+        try {
+            admission.acquire(KEY, settings, shells, operations).release();
+            return true;
+        } catch (AdmissionControl.TimeoutException e) {
+            return false;
+        }
+    }
+
+    @Test
+    public void limitsShells() throws Exception {
+        final AdmissionControl admission = new AdmissionControl();
+        final AdmissionControl.Settings settings = settings(2, 10);
+        final AdmissionControl.Permit first = admission.acquire(KEY, settings, 1, 1);
+        final AdmissionControl.Permit second = admission.acquire(KEY, settings, 1, 0);
+        assertFalse(admitted(admission, settings, 1, 1));
+        assertTrue(admitted(admission, settings, 0, 1));
+        first.release();
+        assertTrue(admitted(admission, settings, 1, 1));
+        second.release();
+        assertEquals(1, admission.getTimeoutCount());
+    }
+
+    @Test
+    public void countsAreCapped() throws Exception {
+        final AdmissionControl admission = new AdmissionControl();
+        assertTrue(admitted(admission, settings(2, 2), 5, 5));
+    }
+
+    @Test
+    public void loweredLimitKeepsHeldPermits() throws Exception {
+        final AdmissionControl admission = new AdmissionControl();
+        final AdmissionControl.Permit held = admission.acquire(KEY, settings(3, 10), 2, 0);
+        final AdmissionControl.Settings lowered = settings(2, 10);
+        assertFalse(admitted(admission, lowered, 1, 0));
+        held.release();
+        final AdmissionControl.Permit first = admission.acquire(KEY, lowered, 1, 0);
+        final AdmissionControl.Permit second = admission.acquire(KEY, lowered, 1, 0);
+        assertFalse(admitted(admission, lowered, 1, 0));
+        first.release();
+        second.release();
+    }
+
+    @Test
+    public void raisedLimitAdmitsMore() throws Exception {
+        final AdmissionControl admission = new AdmissionControl();
+        final AdmissionControl.Permit held = admission.acquire(KEY, settings(1, 10), 1, 0);
+        assertFalse(admitted(admission, settings(1, 10), 1, 0));
+        assertTrue(admitted(admission, settings(2, 10), 1, 0));
+        held.release();
+    }
+
+    @Test
+    public void disabledAdmitsAll() throws Exception {
+        final AdmissionControl admission = new AdmissionControl();
+        assertSame(AdmissionControl.Permit.NONE,
+                admission.acquire(KEY, AdmissionControl.Settings.DISABLED, 100, 100));
+    }
+}
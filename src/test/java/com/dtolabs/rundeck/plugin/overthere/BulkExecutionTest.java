@@ -0,0 +1,63 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import com.dtolabs.rundeck.core.common.INodeEntry;
+import com.dtolabs.rundeck.core.common.NodeEntryImpl;
+import com.dtolabs.rundeck.core.execution.service.NodeExecutorResult;
+import com.dtolabs.rundeck.core.execution.service.NodeExecutorResultImpl;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BulkExecutionTest {
+    private static List<INodeEntry> nodes(final String host, final int count) {
+        final List<INodeEntry> nodes = new ArrayList<INodeEntry>();
+        for (int i = 0; i < count; i++) {
+            nodes.add(new NodeEntryImpl(host, host + i));
+        }
+        return nodes;
+    }
+
+    @Test
+    public void busyHostDoesNotStarveOtherHosts() throws Exception {
+        final List<INodeEntry> nodes = nodes("a", 6);
+        nodes.addAll(nodes("b", 1));
+        final CountDownLatch otherHostDone = new CountDownLatch(1);
+        final List<String> finished = Collections.synchronizedList(new ArrayList<String>());
+        final Map<String, NodeExecutorResult> results = new BulkExecution(2, 1).run(nodes,
+                new BulkExecution.NodeTask() {
+                    public NodeExecutorResult execute(final INodeEntry node) {
+                        if ("a".equals(node.getHostname())) {
+                            try {
+                                otherHostDone.await(10, TimeUnit.SECONDS);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        } else {
+                            otherHostDone.countDown();
+                        }
+                        finished.add(node.getNodename());
+                        return NodeExecutorResultImpl.createSuccess(node);
+                    }
+                }, null);
+        assertEquals(7, results.size());
+        assertEquals("b0", finished.get(0));
+        assertEquals(Arrays.asList("a0", "a1", "a2", "a3", "a4", "a5", "b0"),
+                new ArrayList<String>(results.keySet()));
+    }
+
+    @Test
+    public void interleaveHosts() {
+        final List<INodeEntry> nodes = nodes("a", 3);
+        nodes.addAll(nodes("b", 1));
+        nodes.addAll(nodes("c", 2));
+        assertEquals(Arrays.asList(0, 3, 4, 1, 5, 2), BulkExecution.interleaveHosts(nodes));
+    }
+}
@@ -0,0 +1,108 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+
+import static org.junit.Assert.*;
+
+public class CircuitBreakerTest {
+    private static final String HOST = "host";
+
+    private static void assertOpen(final CircuitBreaker breaker, final CircuitBreaker.Settings settings) {
+        try {
+            breaker.check(HOST, settings);
+            fail("expected the circuit to be open");
+        } catch (CircuitBreaker.OpenException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(HOST));
+        }
+    }
+
+    private static void failures(
+            final CircuitBreaker breaker,
+            final CircuitBreaker.Settings settings,
+            final int times
+    ) throws CircuitBreaker.OpenException {
+        for (int i = 0; i < times; i++) {
+            breaker.check(HOST, settings);
+            breaker.record(HOST, settings, false);
+        }
+    }
+
+    @Test
+    public void opensAfterThreshold() throws Exception {
+        final CircuitBreaker breaker = new CircuitBreaker();
+        final CircuitBreaker.Settings settings = new CircuitBreaker.Settings(true, 3, 60000, 60000);
+        failures(breaker, settings, 2);
+        breaker.check(HOST, settings);
+        assertEquals(0, breaker.getOpenCount());
+        breaker.record(HOST, settings, false);
+        assertEquals(1, breaker.getOpenCount());
+        assertOpen(breaker, settings);
+    }
+
+    @Test
+    public void reachingTheHostResetsFailures() throws Exception {
+        final CircuitBreaker breaker = new CircuitBreaker();
+        final CircuitBreaker.Settings settings = new CircuitBreaker.Settings(true, 2, 60000, 60000);
+        failures(breaker, settings, 1);
+        breaker.check(HOST, settings);
+        breaker.record(HOST, settings, true);
+        failures(breaker, settings, 1);
+        assertEquals(0, breaker.getOpenCount());
+        breaker.check(HOST, settings);
+    }
+
+    @Test
+    public void singleProbeAfterBackoff() throws Exception {
+        final CircuitBreaker breaker = new CircuitBreaker();
+        final CircuitBreaker.Settings settings = new CircuitBreaker.Settings(true, 1, 0, 0);
+        failures(breaker, settings, 1);
+        breaker.check(HOST, settings);
+        assertOpen(breaker, settings);
+        breaker.record(HOST, settings, true);
+        assertEquals(0, breaker.getOpenCount());
+        breaker.check(HOST, settings);
+    }
+
+    @Test
+    public void failedProbeOpensAgain() throws Exception {
+        final CircuitBreaker breaker = new CircuitBreaker();
+        final CircuitBreaker.Settings settings = new CircuitBreaker.Settings(true, 1, 0, 0);
+        failures(breaker, settings, 1);
+        breaker.check(HOST, settings);
+        breaker.record(HOST, settings, false);
+        assertEquals(1, breaker.getOpenCount());
+        breaker.check(HOST, settings);
+        assertOpen(breaker, settings);
+    }
+
+    @Test
+    public void releasedProbeIsAllowedAgain() throws Exception {
+        final CircuitBreaker breaker = new CircuitBreaker();
+        final CircuitBreaker.Settings settings = new CircuitBreaker.Settings(true, 1, 0, 0);
+        failures(breaker, settings, 1);
+        breaker.check(HOST, settings);
+        assertOpen(breaker, settings);
+        breaker.release(HOST, settings);
+        assertEquals(1, breaker.getOpenCount());
+        breaker.check(HOST, settings);
+    }
+
+    @Test
+    public void disabledNeverOpens() throws Exception {
+        final CircuitBreaker breaker = new CircuitBreaker();
+        failures(breaker, CircuitBreaker.Settings.DISABLED, 10);
+        assertEquals(0, breaker.getOpenCount());
+    }
+
+    @Test
+    public void connectionFailures() {
+        assertTrue(CircuitBreaker.isConnectionFailure(new ConnectException("refused")));
+        assertTrue(CircuitBreaker.isConnectionFailure(new RuntimeException(new SocketTimeoutException())));
+        assertFalse(CircuitBreaker.isConnectionFailure(new IOException("HTTP response 500")));
+        assertFalse(CircuitBreaker.isConnectionFailure(null));
+    }
+}
@@ -0,0 +1,148 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import com.dtolabs.rundeck.core.common.INodeEntry;
+import com.dtolabs.rundeck.core.common.NodeEntryImpl;
+import com.dtolabs.rundeck.core.execution.service.NodeExecutorResult;
+import com.dtolabs.rundeck.core.execution.service.NodeExecutorResultImpl;
+import com.dtolabs.rundeck.core.execution.workflow.steps.node.NodeStepFailureReason;
+import com.xebialabs.overthere.OverthereExecutionOutputHandler;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class CommandBatchTest {
+    private static final INodeEntry NODE = new NodeEntryImpl("host", "node");
+
+    private static final class Lines implements OverthereExecutionOutputHandler {
+        private final List<String> lines = new ArrayList<String>();
+
+        public void handleChar(final char c) {
+        }
+
+        public void handleLine(final String line) {
+            lines.add(line);
+        }
+    }
+
+    private static CommandBatch batch(final int size, final boolean keepgoing) {
+        final List<String[]> commands = new ArrayList<String[]>();
+        for (int i = 0; i < size; i++) {
+            commands.add(new String[]{"echo", "step" + i});
+        }
+        return new CommandBatch(commands, keepgoing);
+    }
+
+    private static String marker(final CommandBatch batch) {
+        final Matcher matcher = Pattern.compile("\\$m = '([^']+)'").matcher(batch.getScript(true));
+        assertTrue(matcher.find());
+        return matcher.group(1);
+    }
+
+    private static void feed(final OverthereExecutionOutputHandler handler, final String... lines) {
+        for (String line : lines) {
+            RemoteShell.emitLine(handler, line);
+        }
+    }
+
+    @Test
+    public void markerLinesAreRemovedAndRecorded() {
+        final CommandBatch batch = batch(2, true);
+        final String marker = marker(batch);
+        final Lines output = new Lines();
+        feed(batch.split(output), "one", marker + " 0 0", "two", "partial" + marker + " 1 3");
+        assertEquals(Arrays.asList("one", "two", "partial"), output.lines);
+        assertTrue(batch.hasResults());
+        assertEquals(3, batch.getResult(0));
+
+        final List<NodeExecutorResult> results = batch.getResults(
+                NodeExecutorResultImpl.createFailure(NodeStepFailureReason.NonZeroResultCode, "failed", NODE, 3),
+                NODE);
+        assertEquals(2, results.size());
+        assertTrue(results.get(0).isSuccess());
+        assertFalse(results.get(1).isSuccess());
+        assertEquals(3, results.get(1).getResultCode());
+    }
+
+    @Test
+    public void markerOfAnotherIndexIsIgnored() {
+        final CommandBatch batch = batch(2, true);
+        final String marker = marker(batch);
+        feed(batch.split(new Lines()), marker + " 1 0", marker + " 0 garbled");
+        assertEquals(-1, batch.getResult(0));
+        final List<NodeExecutorResult> results = batch.getResults(NodeExecutorResultImpl.createSuccess(NODE), NODE);
+        assertEquals(2, results.size());
+        assertEquals(-1, results.get(0).getResultCode());
+    }
+
+    @Test
+    public void completeBatchSucceeds() {
+        final CommandBatch batch = batch(3, false);
+        final String marker = marker(batch);
+        feed(batch.split(new Lines()), marker + " 0 0", marker + " 1 0", marker + " 2 0");
+        assertEquals(0, batch.getResult(0));
+        final List<NodeExecutorResult> results = batch.getResults(NodeExecutorResultImpl.createSuccess(NODE), NODE);
+        assertEquals(3, results.size());
+        for (NodeExecutorResult result : results) {
+            assertTrue(result.isSuccess());
+        }
+    }
+
+    @Test
+    public void stoppedBatchHasNoResultsAfterTheFailure() {
+        final CommandBatch batch = batch(3, false);
+        final String marker = marker(batch);
+        feed(batch.split(new Lines()), marker + " 0 0", marker + " 1 2");
+        assertEquals(2, batch.getResult(0));
+        final List<NodeExecutorResult> results = batch.getResults(
+                NodeExecutorResultImpl.createFailure(NodeStepFailureReason.NonZeroResultCode, "failed", NODE, 2),
+                NODE);
+        assertEquals(2, results.size());
+        assertTrue(results.get(0).isSuccess());
+        assertEquals(2, results.get(1).getResultCode());
+    }
+
+    @Test
+    public void interruptedBatchGetsTheFailureOfTheConnection() {
+        final CommandBatch batch = batch(3, true);
+        final String marker = marker(batch);
+        feed(batch.split(new Lines()), marker + " 0 0");
+        final NodeExecutorResult failure = NodeExecutorResultImpl.createFailure(
+                NodeStepFailureReason.ConnectionTimeout, "timed out", NODE);
+        final List<NodeExecutorResult> results = batch.getResults(failure, NODE);
+        assertEquals(2, results.size());
+        assertTrue(results.get(0).isSuccess());
+        assertSame(failure, results.get(1));
+    }
+
+    @Test
+    public void commandEndingTheShellGetsTheExitCodeOfTheShell() {
+        final CommandBatch batch = batch(3, true);
+        final String marker = marker(batch);
+        feed(batch.split(new Lines()), marker + " 0 0");
+        assertEquals(-1, batch.getResult(5));
+        final List<NodeExecutorResult> results = batch.getResults(
+                NodeExecutorResultImpl.createFailure(NodeStepFailureReason.NonZeroResultCode, "failed", NODE, -1),
+                NODE);
+        assertEquals(2, results.size());
+        assertEquals(5, results.get(1).getResultCode());
+    }
+
+    @Test
+    public void cmdCommandsRunInProcessesOfTheirOwn() {
+        final CommandBatch batch = batch(2, false);
+        final String cmd = batch.getScript(false);
+        assertTrue(cmd.startsWith(PowerShellUtil.CMD_FUNCTION));
+        assertTrue(cmd.contains("Invoke-Cmd $s"));
+        assertTrue(cmd.contains("'echo step1'"));
+        assertTrue(cmd.contains("break"));
+        final String powershell = batch.getScript(true);
+        assertFalse(powershell.contains("Invoke-Cmd"));
+        assertFalse(batch(2, true).getScript(true).contains("break"));
+    }
+}
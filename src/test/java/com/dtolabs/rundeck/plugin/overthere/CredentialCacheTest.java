@@ -0,0 +1,69 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import com.xebialabs.overthere.RuntimeIOException;
+import org.junit.Test;
+
+import javax.security.auth.login.LoginException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CredentialCacheTest {
+    private static Callable<String> loader(final AtomicInteger loads, final String value) {
+        return new Callable<String>() {
+            public String call() {
+                loads.incrementAndGet();
+                return value;
+            }
+        };
+    }
+
+    @Test
+    public void cachesUntilInvalidated() throws Exception {
+        final CredentialCache cache = new CredentialCache(10);
+        final AtomicInteger loads = new AtomicInteger();
+        assertEquals("old", cache.get("key", 60000, loader(loads, "old")));
+        assertEquals("old", cache.get("key", 60000, loader(loads, "new")));
+        assertEquals(1, loads.get());
+        cache.invalidate("key");
+        assertEquals("new", cache.get("key", 60000, loader(loads, "new")));
+        assertEquals(2, loads.get());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void expiresAfterTtl() throws Exception {
+        final CredentialCache cache = new CredentialCache(10);
+        final AtomicInteger loads = new AtomicInteger();
+        cache.get("key", -1, loader(loads, "value"));
+        cache.get("key", -1, loader(loads, "value"));
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void boundedSize() throws Exception {
+        final CredentialCache cache = new CredentialCache(2);
+        final AtomicInteger loads = new AtomicInteger();
+        for (int i = 0; i < 5; i++) {
+            cache.get("key" + i, 60000, loader(loads, "value"));
+        }
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void authenticationFailures() {
+        assertTrue(CredentialCache.isAuthenticationFailure(
+                new RuntimeIOException("Unexpected HTTP response on http://host:5985/wsman:  (401)")));
+        assertTrue(CredentialCache.isAuthenticationFailure(new RuntimeIOException("Login failure",
+                new LoginException("Pre-authentication information was invalid"))));
+        assertTrue(CredentialCache.isAuthenticationFailure(new KerberosCredentialCheck.KerberosException("failed")));
+        assertFalse(CredentialCache.isAuthenticationFailure(new RuntimeIOException(new ConnectException("refused"))));
+        assertFalse(CredentialCache.isAuthenticationFailure(
+                new IOException("Unexpected HTTP response on http://host:5985/wsman:  (500)")));
+        assertFalse(CredentialCache.isAuthenticationFailure(null));
+    }
+}
@@ -0,0 +1,139 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DeltaEncoderTest {
+    private static final int BLOCK_SIZE = 16;
+    private static final int MAX_LITERAL = 64;
+
+    /**
+     * Applies a recipe to the old content, as the node does
+     */
+    private static final class Rebuild implements DeltaEncoder.Recipe {
+        private final byte[] old;
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private int copies;
+
+        private Rebuild(final byte[] old) {
+            this.old = old;
+        }
+
+        public void copy(final long index) {
+            out.write(old, (int) index * BLOCK_SIZE, BLOCK_SIZE);
+            copies++;
+        }
+
+        public void data(final byte[] buffer, final int offset, final int length) {
+            assertTrue("literal longer than the maximum", length <= MAX_LITERAL);
+            out.write(buffer, offset, length);
+        }
+    }
+
+    private static DeltaEncoder encoder(final byte[] old) throws Exception {
+        final DeltaEncoder encoder = new DeltaEncoder(BLOCK_SIZE, MAX_LITERAL);
+        for (int offset = 0, index = 0; offset < old.length; offset += BLOCK_SIZE, index++) {
+            final int length = Math.min(BLOCK_SIZE, old.length - offset);
+            final MessageDigest md5 = MessageDigest.getInstance("MD5");
+            md5.update(old, offset, length);
+            encoder.addBlock(index, DeltaEncoder.weak(old, offset, length), md5.digest(), length);
+        }
+        return encoder;
+    }
+
+    private static Rebuild roundTrip(final byte[] old, final byte[] content, final long expectedLiteral)
+            throws Exception {
+        final Rebuild rebuild = new Rebuild(old);
+        final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        final long literal = encoder(old).encode(new ByteArrayInputStream(content), digest, rebuild);
+        assertArrayEquals(content, rebuild.out.toByteArray());
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(content), digest.digest());
+        if (expectedLiteral >= 0) {
+            assertEquals(expectedLiteral, literal);
+        }
+        return rebuild;
+    }
+
+    private static byte[] random(final int length, final long seed) {
+        final byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] concat(final byte[]... parts) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void sameContentIsCopied() throws Exception {
+        final byte[] old = random(BLOCK_SIZE * 20, 1);
+        final Rebuild rebuild = roundTrip(old, old, 0);
+        assertEquals(20, rebuild.copies);
+    }
+
+    @Test
+    public void insertedDataIsSentAndTheRestCopied() throws Exception {
+        final byte[] old = random(BLOCK_SIZE * 20, 2);
+        final byte[] content = concat(Arrays.copyOfRange(old, 0, BLOCK_SIZE * 7 + 3), random(5, 3),
+                Arrays.copyOfRange(old, BLOCK_SIZE * 7 + 3, old.length));
+        final Rebuild rebuild = roundTrip(old, content, -1);
+        assertTrue("too few blocks matched after the insert: " + rebuild.copies, rebuild.copies >= 18);
+    }
+
+    @Test
+    public void deletedDataIsNotSent() throws Exception {
+        final byte[] old = random(BLOCK_SIZE * 20, 4);
+        final byte[] content = concat(Arrays.copyOfRange(old, 0, BLOCK_SIZE * 5),
+                Arrays.copyOfRange(old, BLOCK_SIZE * 6, old.length));
+        final Rebuild rebuild = roundTrip(old, content, 0);
+        assertEquals(19, rebuild.copies);
+    }
+
+    @Test
+    public void shortTailBlockIsSentAsData() throws Exception {
+        final byte[] old = random(BLOCK_SIZE * 4 + 5, 5);
+        final Rebuild rebuild = roundTrip(old, old, 5);
+        assertEquals(4, rebuild.copies);
+    }
+
+    @Test
+    public void emptyDestinationSendsEverything() throws Exception {
+        final byte[] content = random(BLOCK_SIZE * 10 + 7, 6);
+        final Rebuild rebuild = roundTrip(new byte[0], content, content.length);
+        assertEquals(0, rebuild.copies);
+    }
+
+    @Test
+    public void emptyContent() throws Exception {
+        roundTrip(random(BLOCK_SIZE * 3, 7), new byte[0], 0);
+    }
+
+    @Test
+    public void rollingChecksumFindsBlocksAtAnyOffset() throws Exception {
+        final byte[] block = random(BLOCK_SIZE, 8);
+        for (int shift = 0; shift < BLOCK_SIZE * 2; shift++) {
+            final byte[] content = concat(random(shift, 9), block, random(3, 10));
+            final Rebuild rebuild = roundTrip(block, content, content.length - BLOCK_SIZE);
+            assertEquals("block not found at offset " + shift, 1, rebuild.copies);
+        }
+    }
+
+    @Test
+    public void weakChecksumOfEqualDataIsEqual() throws Exception {
+        final byte[] data = random(BLOCK_SIZE * 2, 11);
+        final byte[] copy = concat(random(3, 12), data);
+        assertEquals(DeltaEncoder.weak(data, 0, data.length), DeltaEncoder.weak(copy, 3, data.length));
+    }
+}
@@ -0,0 +1,92 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DetachedJobTest {
+    private static final String MARKER = "__RD_WINRM_DETACHED__";
+
+    private static String base64(final String text) throws Exception {
+        return Base64.encodeBase64String(text.getBytes("UTF-8"));
+    }
+
+    @Test
+    public void parseStarted() {
+        final DetachedJob job = DetachedJob.parseStarted("abc", "host",
+                MARKER + " 4242 C:\\Users\\rundeck\\AppData\\Local\\Temp\\rundeck-winrm ");
+        assertNotNull(job);
+        assertEquals("abc", job.getId());
+        assertEquals("host", job.getHostname());
+        assertEquals(4242, job.getProcessId());
+        assertEquals("C:\\Users\\rundeck\\AppData\\Local\\Temp\\rundeck-winrm", job.getDirectory());
+        assertEquals(0, job.getOffset());
+        assertTrue(job.getStarted() > 0);
+    }
+
+    @Test
+    public void startScriptKeepsCommandOutOfWrapper() {
+        final String script = DetachedJob.startScript("abc", "echo 50% & exit 3");
+        final String wrapper = script.substring(script.indexOf("WriteAllText($f, "));
+        assertFalse(wrapper, wrapper.contains("echo 50"));
+        assertTrue(script, script.contains("'-echo 50% & exit 3'"));
+        assertTrue(wrapper, wrapper.contains("cmd /c %%RD_WINRM_COMMAND:~1%%"));
+        assertTrue(wrapper, wrapper.contains("del /q"));
+    }
+
+    @Test
+    public void parseStartedOtherLine() {
+        assertNull(DetachedJob.parseStarted("abc", "host", "Win32_Process.Create failed: 9"));
+    }
+
+    @Test
+    public void parseRunning() throws Exception {
+        final DetachedJob.Status status = DetachedJob.parseStatus(MARKER + " 12 running " + base64("hello\r\n"));
+        assertNotNull(status);
+        assertFalse(status.isFinished());
+        assertEquals(12, status.getOffset());
+        assertEquals("hello\r\n", status.getOutput());
+    }
+
+    @Test
+    public void parseRunningWithoutOutput() {
+        final DetachedJob.Status status = DetachedJob.parseStatus(MARKER + " 0 running ");
+        assertNotNull(status);
+        assertFalse(status.isFinished());
+        assertEquals("", status.getOutput());
+    }
+
+    @Test
+    public void parseExit() throws Exception {
+        final DetachedJob.Status status = DetachedJob.parseStatus(MARKER + " 100 exit:3 " + base64("done\r\n"));
+        assertNotNull(status);
+        assertTrue(status.isFinished());
+        assertEquals(3, status.getExitCode());
+        assertEquals(100, status.getOffset());
+        assertEquals("done\r\n", status.getOutput());
+        assertEquals(-1, DetachedJob.parseStatus(MARKER + " 0 exit:-1 ").getExitCode());
+    }
+
+    @Test
+    public void parseLost() {
+        final DetachedJob.Status status = DetachedJob.parseStatus(MARKER + " 7 lost ");
+        assertNotNull(status);
+        assertTrue(status.isFinished());
+        assertEquals(-1, status.getExitCode());
+    }
+
+    @Test
+    public void parseUtf8Output() throws Exception {
+        final DetachedJob.Status status = DetachedJob.parseStatus(MARKER + " 9 running " + base64("caf\u00e9\n"));
+        assertEquals("caf\u00e9\n", status.getOutput());
+    }
+
+    @Test
+    public void parseInvalid() {
+        assertNull(DetachedJob.parseStatus("some output"));
+        assertNull(DetachedJob.parseStatus(MARKER + " x running "));
+        assertNull(DetachedJob.parseStatus(MARKER + " 1 exit: "));
+        assertNull(DetachedJob.parseStatus(MARKER + " 99999999999999999999 running "));
+    }
+}
@@ -0,0 +1,81 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import com.dtolabs.rundeck.core.execution.ExecutionListener;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ExecutionListenerOutputHandlerTest {
+    private final List<String> logged = Collections.synchronizedList(new ArrayList<String>());
+
+    private ExecutionListener listener() {
+        return (ExecutionListener) Proxy.newProxyInstance(ExecutionListener.class.getClassLoader(),
+                new Class[]{ExecutionListener.class}, new InvocationHandler() {
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        if ("log".equals(method.getName())) {
+                            logged.add((String) args[1]);
+                            return null;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private static void write(final ExecutionListenerOutputHandler handler, final String text) {
+        for (char c : text.toCharArray()) {
+            handler.handleChar(c);
+        }
+    }
+
+    @Test
+    public void flushesWhenBatchIsFull() {
+        final ExecutionListenerOutputHandler handler = new ExecutionListenerOutputHandler(listener(), 2, 8, 0);
+        write(handler, "abc\r\n");
+        assertTrue(logged.isEmpty());
+        write(handler, "def\n");
+        assertEquals(Arrays.asList("abc", "def"), logged);
+        write(handler, "gh");
+        assertEquals(2, logged.size());
+        handler.close();
+        assertEquals(Arrays.asList("abc", "def", "gh"), logged);
+    }
+
+    @Test
+    public void flushesAfterInterval() throws Exception {
+        final ExecutionListenerOutputHandler handler = new ExecutionListenerOutputHandler(listener(), 2, 8192, 50);
+        handler.start();
+        try {
+            write(handler, "first\n");
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (logged.isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(Arrays.asList("first"), logged);
+            write(handler, "partial");
+            Thread.sleep(200);
+            assertEquals(1, logged.size());
+        } finally {
+            handler.close();
+        }
+        assertEquals(Arrays.asList("first", "partial"), logged);
+    }
+
+    @Test
+    public void noTimerWithoutInterval() throws Exception {
+        final ExecutionListenerOutputHandler handler = new ExecutionListenerOutputHandler(listener(), 2, 8192, 0);
+        handler.start();
+        write(handler, "line\n");
+        Thread.sleep(100);
+        assertTrue(logged.isEmpty());
+        handler.close();
+        assertEquals(Arrays.asList("line"), logged);
+    }
+}
@@ -0,0 +1,36 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class KerberosCredentialCheckTest {
+    private static boolean rejected(final KerberosCredentialCheck checks, final String principal) {
+        try {
+            checks.check(principal, "password", false);
+            return false;
+        } catch (KerberosCredentialCheck.KerberosException e) {
+            return true;
+        }
+    }
+
+    @Test
+    public void failureIsRemembered() {
+        final KerberosCredentialCheck checks = new KerberosCredentialCheck(10);
+        assertTrue(rejected(checks, "user"));
+        assertTrue(rejected(checks, "user"));
+        assertEquals(1, checks.getLoginCount());
+        assertEquals(1, checks.getHitCount());
+    }
+
+    @Test
+    public void boundedNumberOfChecks() {
+        final KerberosCredentialCheck checks = new KerberosCredentialCheck(2);
+        assertTrue(rejected(checks, "a"));
+        assertTrue(rejected(checks, "b"));
+        assertTrue(rejected(checks, "c"));
+        assertEquals(2, checks.size());
+        assertTrue(rejected(checks, "a"));
+        assertEquals(4, checks.getLoginCount());
+    }
+}
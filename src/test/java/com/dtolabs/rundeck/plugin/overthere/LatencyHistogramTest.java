@@ -0,0 +1,84 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+    @Test
+    public void emptyHasNoPercentile() {
+        assertEquals(-1, new LatencyHistogram(1000).percentile(99));
+    }
+
+    @Test
+    public void percentileIsBucketBound() {
+        final LatencyHistogram histogram = new LatencyHistogram(1000);
+        for (int i = 0; i < 99; i++) {
+            histogram.record(10);
+        }
+        histogram.record(1000);
+        final long p50 = histogram.percentile(50);
+        assertTrue("p50 " + p50, p50 >= 10 && p50 < 13);
+        assertEquals(p50, histogram.percentile(99));
+        final long max = histogram.percentile(100);
+        assertTrue("p100 " + max, max >= 1000 && max < 1250);
+    }
+
+    @Test
+    public void percentileIsMonotonic() {
+        final LatencyHistogram histogram = new LatencyHistogram(100000);
+        for (int i = 1; i <= 5000; i++) {
+            histogram.record(i);
+        }
+        long previous = 0;
+        for (int p = 1; p <= 100; p++) {
+            final long value = histogram.percentile(p);
+            assertTrue("percentile " + p, value >= previous);
+            previous = value;
+        }
+        assertTrue(histogram.percentile(100) >= 5000);
+    }
+
+    @Test
+    public void negativeAndZeroInFirstBucket() {
+        final LatencyHistogram histogram = new LatencyHistogram(1000);
+        histogram.record(-5);
+        histogram.record(0);
+        assertEquals(2, histogram.getCount());
+        assertEquals(1, histogram.percentile(100));
+    }
+
+    @Test
+    public void decayHalvesCounts() {
+        final LatencyHistogram histogram = new LatencyHistogram(10);
+        for (int i = 0; i < 9; i++) {
+            histogram.record(10);
+        }
+        assertEquals(9, histogram.getCount());
+        histogram.record(10);
+        assertEquals(5, histogram.getCount());
+    }
+
+    @Test
+    public void formatAndParse() {
+        final LatencyHistogram histogram = new LatencyHistogram(1000);
+        histogram.record(5);
+        histogram.record(50);
+        histogram.record(500);
+        final LatencyHistogram parsed = LatencyHistogram.parse(histogram.format(), 1000);
+        assertNotNull(parsed);
+        assertEquals(3, parsed.getCount());
+        assertEquals(histogram.format(), parsed.format());
+        assertEquals(histogram.percentile(50), parsed.percentile(50));
+    }
+
+    @Test
+    public void parseRejectsInvalid() {
+        assertNull(LatencyHistogram.parse("1,2,3", 1000));
+        final StringBuilder sb = new StringBuilder("x");
+        for (int i = 1; i < 64; i++) {
+            sb.append(",0");
+        }
+        assertNull(LatencyHistogram.parse(sb.toString(), 1000));
+    }
+}
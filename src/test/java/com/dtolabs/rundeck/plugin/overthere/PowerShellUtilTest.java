@@ -0,0 +1,32 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PowerShellUtilTest {
+    @Test
+    public void quote() {
+        assertEquals("'C:\\temp\\a b'", PowerShellUtil.quote("C:\\temp\\a b"));
+        assertEquals("''", PowerShellUtil.quote(""));
+        assertEquals("'$x \"y\"'", PowerShellUtil.quote("$x \"y\""));
+    }
+
+    @Test
+    public void quoteDoublesSingleQuotes() {
+        assertEquals("'it''s'", PowerShellUtil.quote("it's"));
+    }
+
+    @Test
+    public void quoteDoublesTypographicSingleQuotes() {
+        for (char c = '\u2018'; c <= '\u201b'; c++) {
+            assertEquals("'a" + c + c + "b'", PowerShellUtil.quote("a" + c + "b"));
+        }
+        assertEquals("'\u2019\u2019; rm x; \u2018\u2018'", PowerShellUtil.quote("\u2019; rm x; \u2018"));
+    }
+
+    @Test
+    public void quoteKeepsDoubleQuotes() {
+        assertEquals("'\u201c\u201d'", PowerShellUtil.quote("\u201c\u201d"));
+    }
+}
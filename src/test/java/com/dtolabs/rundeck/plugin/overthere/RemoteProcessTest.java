@@ -0,0 +1,158 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import com.xebialabs.overthere.CmdLine;
+import com.xebialabs.overthere.OverthereConnection;
+import com.xebialabs.overthere.OverthereExecutionOutputHandler;
+import com.xebialabs.overthere.OverthereProcess;
+import com.xebialabs.overthere.RuntimeIOException;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RemoteProcessTest {
+    private static final class Started implements Runnable {
+        private boolean started;
+
+        public void run() {
+            started = true;
+        }
+    }
+
+    private static final class Lines implements OverthereExecutionOutputHandler {
+        private final List<String> lines = new ArrayList<String>();
+
+        public void handleChar(final char c) {
+        }
+
+        public void handleLine(final String line) {
+            lines.add(line);
+        }
+    }
+
+    /**
+     * @return a connection which starts the process, or throws the failure
+     */
+    private static OverthereConnection connection(final OverthereProcess process, final RuntimeException failure) {
+        return (OverthereConnection) Proxy.newProxyInstance(OverthereConnection.class.getClassLoader(),
+                new Class[]{OverthereConnection.class}, new InvocationHandler() {
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        if ("canStartProcess".equals(method.getName())) {
+                            return true;
+                        }
+                        if ("startProcess".equals(method.getName())) {
+                            if (null != failure) {
+                                throw failure;
+                            }
+                            return process;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private static OverthereProcess process(final String stdout, final InputStream stderr, final int exitCode) {
+        return new OverthereProcess() {
+            public OutputStream getStdin() {
+                return new ByteArrayOutputStream();
+            }
+
+            public InputStream getStdout() {
+                return new ByteArrayInputStream(stdout.getBytes());
+            }
+
+            public InputStream getStderr() {
+                return stderr;
+            }
+
+            public int waitFor() {
+                return exitCode;
+            }
+
+            public void destroy() {
+            }
+
+            public int exitValue() {
+                return exitCode;
+            }
+        };
+    }
+
+    @Test
+    public void faultBeforeCommandIsRetried() {
+        final Started started = new Started();
+        final RuntimeIOException failure = new RuntimeIOException("Cannot create shell",
+                new ConnectException("Connection refused"));
+        try {
+            RemoteProcess.run(connection(null, failure), new CmdLine(), null, new Lines(), new Lines(), started);
+            fail("expected the fault");
+        } catch (RuntimeIOException e) {
+            assertSame(failure, e);
+        }
+        assertFalse(started.started);
+        assertTrue(RetryPolicy.isRetryable(failure, started.started));
+    }
+
+    @Test
+    public void faultAfterCommandIsNotRetried() {
+        final Started started = new Started();
+        final RuntimeIOException failure = new RuntimeIOException("Unexpected HTTP response (503)");
+        final OverthereProcess process = new OverthereProcess() {
+            public OutputStream getStdin() {
+                return new ByteArrayOutputStream();
+            }
+
+            public InputStream getStdout() {
+                throw failure;
+            }
+
+            public InputStream getStderr() {
+                return new ByteArrayInputStream(new byte[0]);
+            }
+
+            public int waitFor() {
+                return 0;
+            }
+
+            public void destroy() {
+            }
+
+            public int exitValue() {
+                return 0;
+            }
+        };
+        try {
+            RemoteProcess.run(connection(process, null), new CmdLine(), null, new Lines(), new Lines(), started);
+            fail("expected the fault");
+        } catch (RuntimeIOException e) {
+            assertSame(failure, e);
+        }
+        assertTrue(started.started);
+        assertFalse(RetryPolicy.isRetryable(failure, started.started));
+    }
+
+    @Test
+    public void passesOutputAndExitCode() {
+        final Started started = new Started();
+        final Lines stdout = new Lines();
+        final Lines stderr = new Lines();
+        final int result = RemoteProcess.run(
+                connection(process("one\r\ntwo\r\n", new ByteArrayInputStream("err\n".getBytes()), 3), null),
+                new CmdLine(), null, stdout, stderr, started);
+        assertEquals(3, result);
+        assertTrue(started.started);
+        assertEquals(2, stdout.lines.size());
+        assertEquals("two", stdout.lines.get(1));
+        assertEquals(1, stderr.lines.size());
+    }
+}
@@ -0,0 +1,29 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RemoteScriptCacheTest {
+    @Test
+    public void keyIsChecksumAndExtension() throws Exception {
+        final String key = RemoteScriptCache.key("abc".getBytes("UTF-8"), ".ps1");
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad.ps1", key);
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad",
+                RemoteScriptCache.checksum(key));
+    }
+
+    @Test
+    public void checksumWithoutExtension() throws Exception {
+        final String key = RemoteScriptCache.key("abc".getBytes("UTF-8"), "");
+        assertEquals(key, RemoteScriptCache.checksum(key));
+    }
+
+    @Test
+    public void extension() {
+        assertEquals(".ps1", RemoteScriptCache.extension("C:\\temp\\dispatch.ps1"));
+        assertEquals("", RemoteScriptCache.extension("C:\\temp.d\\dispatch"));
+        assertEquals("", RemoteScriptCache.extension("C:\\temp\\.profile"));
+        assertEquals("", RemoteScriptCache.extension(null));
+    }
+}
@@ -0,0 +1,82 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+
+import static org.junit.Assert.*;
+
+public class RetryPolicyTest {
+    @Test
+    public void classifyRejected() {
+        assertEquals(RetryPolicy.Fault.Rejected, RetryPolicy.classify(new ConnectException("refused")));
+        assertEquals(RetryPolicy.Fault.Rejected,
+                RetryPolicy.classify(new RuntimeException("wrapped", new IOException("QuotaLimit exceeded"))));
+        assertEquals(RetryPolicy.Fault.Rejected,
+                RetryPolicy.classify(new IOException("The request for the Windows Remote Shell with ShellId x "
+                        + "failed because the shell was not found on the server")));
+        assertEquals(RetryPolicy.Fault.Rejected,
+                RetryPolicy.classify(new IOException("Unexpected HTTP response on http://host:5985/wsman:  (503)")));
+    }
+
+    @Test
+    public void classifyTransient() {
+        assertEquals(RetryPolicy.Fault.Transient, RetryPolicy.classify(new SocketTimeoutException("read")));
+        assertEquals(RetryPolicy.Fault.Transient, RetryPolicy.classify(new SocketException("reset")));
+        assertEquals(RetryPolicy.Fault.Transient,
+                RetryPolicy.classify(new IOException("Unexpected HTTP response on http://host:5985/wsman:  (500)")));
+        assertEquals(RetryPolicy.Fault.Transient,
+                RetryPolicy.classify(new RuntimeException(new IOException("Connection reset by peer"))));
+    }
+
+    @Test
+    public void rejectedCauseWins() {
+        assertEquals(RetryPolicy.Fault.Rejected,
+                RetryPolicy.classify(new IOException("Connection reset", new ConnectException("refused"))));
+    }
+
+    @Test
+    public void classifyPermanent() {
+        assertEquals(RetryPolicy.Fault.Permanent, RetryPolicy.classify(new IOException("Access is denied")));
+        assertEquals(RetryPolicy.Fault.Permanent,
+                RetryPolicy.classify(new IOException("Unexpected HTTP response on http://host:5985/wsman:  (401)")));
+        assertEquals(RetryPolicy.Fault.Permanent, RetryPolicy.classify(null));
+    }
+
+    @Test
+    public void delayWithinBackoff() {
+        final RetryPolicy retries = new RetryPolicy();
+        final RetryPolicy.Settings settings = new RetryPolicy.Settings(5, 1000, 3000, 100);
+        for (int i = 0; i < 20; i++) {
+            final long first = retries.nextDelay(null, settings, 1);
+            assertTrue("first " + first, first >= 500 && first <= 1000);
+            final long second = retries.nextDelay(null, settings, 2);
+            assertTrue("second " + second, second >= 1000 && second <= 2000);
+            final long capped = retries.nextDelay(null, settings, 4);
+            assertTrue("capped " + capped, capped >= 1500 && capped <= 3000);
+        }
+    }
+
+    @Test
+    public void noDelayAfterMaxAttempts() {
+        final RetryPolicy retries = new RetryPolicy();
+        final RetryPolicy.Settings settings = new RetryPolicy.Settings(3, 10, 10, 100);
+        assertTrue(retries.nextDelay(null, settings, 2) >= 0);
+        assertEquals(-1, retries.nextDelay(null, settings, 3));
+        assertEquals(-1, retries.nextDelay(null, RetryPolicy.Settings.DISABLED, 1));
+    }
+
+    @Test
+    public void budgetPerScope() {
+        final RetryPolicy retries = new RetryPolicy();
+        final RetryPolicy.Settings settings = new RetryPolicy.Settings(10, 0, 0, 2);
+        assertEquals(0, retries.nextDelay("exec", settings, 1));
+        assertEquals(0, retries.nextDelay("exec", settings, 1));
+        assertEquals(-1, retries.nextDelay("exec", settings, 1));
+        assertEquals(0, retries.nextDelay("other", settings, 1));
+        assertEquals(-1, retries.nextDelay("exec", settings, 1));
+    }
+}
@@ -0,0 +1,64 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import com.xebialabs.overthere.ConnectionOptions;
+import com.xebialabs.overthere.cifs.CifsConnectionBuilder;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class WinRMConnectionPoolTest {
+    private static ConnectionOptions options() {
+        final ConnectionOptions options = new ConnectionOptions();
+        options.set(ConnectionOptions.ADDRESS, "host");
+        options.set(ConnectionOptions.PORT, 5986);
+        options.set(ConnectionOptions.USERNAME, "rundeck");
+        options.set(ConnectionOptions.PASSWORD, "secret");
+        options.set(ConnectionOptions.CONNECTION_TIMEOUT_MILLIS, 15000);
+        options.set(CifsConnectionBuilder.WINRM_ENABLE_HTTPS, true);
+        options.set(CifsConnectionBuilder.WINRM_HTTPS_CERTIFICATE_TRUST_STRATEGY, "STRICT");
+        options.set(CifsConnectionBuilder.WINRM_HTTPS_HOSTNAME_VERIFICATION_STRATEGY, "STRICT");
+        return options;
+    }
+
+    private static WinRMConnectionPool.Key key(final ConnectionOptions options) {
+        return WinRMConnectionPool.Key.of(CifsConnectionBuilder.CIFS_PROTOCOL, options);
+    }
+
+    private static void assertDifferent(final String option, final Object value) {
+        final ConnectionOptions options = options();
+        options.set(option, value);
+        assertFalse(option, key(options()).equals(key(options)));
+    }
+
+    @Test
+    public void sameOptionsSameKey() {
+        assertEquals(key(options()), key(options()));
+        assertEquals(key(options()).hashCode(), key(options()).hashCode());
+    }
+
+    @Test
+    public void everyOptionIsPartOfTheKey() {
+        assertDifferent(ConnectionOptions.ADDRESS, "other");
+        assertDifferent(ConnectionOptions.PORT, 5985);
+        assertDifferent(ConnectionOptions.USERNAME, "admin");
+        assertDifferent(ConnectionOptions.PASSWORD, "rotated");
+        assertDifferent(ConnectionOptions.CONNECTION_TIMEOUT_MILLIS, 30000);
+        assertDifferent(CifsConnectionBuilder.WINRM_ENABLE_HTTPS, false);
+        assertDifferent(CifsConnectionBuilder.WINRM_HTTPS_CERTIFICATE_TRUST_STRATEGY, "ALLOW_ALL");
+        assertDifferent(CifsConnectionBuilder.WINRM_HTTPS_HOSTNAME_VERIFICATION_STRATEGY, "ALLOW_ALL");
+        assertDifferent(CifsConnectionBuilder.WINRM_KERBEROS_USE_HTTP_SPN, true);
+        assertDifferent(CifsConnectionBuilder.WINRM_LOCALE, "de-DE");
+        assertDifferent(CifsConnectionBuilder.WINRM_TIMEMOUT, "PT120S");
+    }
+
+    @Test
+    public void protocolIsPartOfTheKey() {
+        assertFalse(key(options()).equals(WinRMConnectionPool.Key.of("other", options())));
+    }
+
+    @Test
+    public void passwordIsNotKeptInClear() {
+        assertFalse(key(options()).toString().contains("secret"));
+        assertEquals("https/cifs://rundeck@host:5986", key(options()).toString());
+    }
+}
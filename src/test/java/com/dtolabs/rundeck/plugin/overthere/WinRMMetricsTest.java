@@ -0,0 +1,54 @@
+package com.dtolabs.rundeck.plugin.overthere;
+
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+public class WinRMMetricsTest {
+    private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+    private static WinRMMetrics metrics() {
+        return new WinRMMetrics(null, null, null, null, null, null, null);
+    }
+
+    private static ObjectName nodeName(final String project, final String node) throws Exception {
+        return new ObjectName(WinRMMetrics.DOMAIN + ":type=WinRMNode,project=" + ObjectName.quote(project)
+                + ",node=" + ObjectName.quote(node));
+    }
+
+    @Test
+    public void disabledIsNotRegistered() throws Exception {
+        assertSame(WinRMMetrics.DISABLED, metrics().forNode(false, "disabled", "node"));
+        assertFalse(server.isRegistered(nodeName("disabled", "node")));
+    }
+
+    @Test
+    public void nodeIsRegisteredOnce() throws Exception {
+        final WinRMMetrics metrics = metrics();
+        final WinRMMetrics.NodeMetrics node = metrics.forNode(true, "registered", "node");
+        assertSame(node, metrics.forNode(true, "registered", "node"));
+        assertTrue(server.isRegistered(nodeName("registered", "node")));
+        metrics.evictIdle(0);
+    }
+
+    @Test
+    public void idleNodeIsUnregistered() throws Exception {
+        final WinRMMetrics metrics = metrics();
+        final WinRMMetrics.NodeMetrics idle = metrics.forNode(true, "idle", "a");
+        metrics.forNode(true, "idle", "b");
+        Thread.sleep(50);
+        metrics.forNode(true, "idle", "b");
+        metrics.evictIdle(25);
+        assertFalse(server.isRegistered(nodeName("idle", "a")));
+        assertTrue(server.isRegistered(nodeName("idle", "b")));
+        assertNotSame(idle, metrics.forNode(true, "idle", "a"));
+        assertTrue(server.isRegistered(nodeName("idle", "a")));
+        Thread.sleep(50);
+        metrics.evictIdle(25);
+        assertFalse(server.isRegistered(nodeName("idle", "b")));
+    }
+}